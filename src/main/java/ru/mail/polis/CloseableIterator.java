@@ -0,0 +1,46 @@
+package ru.mail.polis;
+
+import org.jetbrains.annotations.NotNull;
+
+import java.io.Closeable;
+import java.util.Iterator;
+
+/**
+ * Iterator which holds resources, e.g. open files, until it is closed.
+ *
+ * @param <E> type of elements
+ * @author Nikolai Rubtsov
+ */
+public interface CloseableIterator<E> extends Iterator<E>, Closeable {
+    /**
+     * Frees resources of the iterator, it may not be used afterwards. Repeated calls have no effect.
+     */
+    @Override
+    void close();
+
+    /**
+     * Adapts iterator which holds no resources.
+     *
+     * @param iterator iterator
+     * @param <E> type of elements
+     * @return iterator which does nothing on close
+     */
+    static <E> CloseableIterator<E> of(@NotNull final Iterator<E> iterator) {
+        return new CloseableIterator<>() {
+            @Override
+            public boolean hasNext() {
+                return iterator.hasNext();
+            }
+
+            @Override
+            public E next() {
+                return iterator.next();
+            }
+
+            @Override
+            public void close() {
+                // Nothing to free
+            }
+        };
+    }
+}
@@ -22,8 +22,20 @@ import org.jetbrains.annotations.Nullable;
 import java.io.Closeable;
 import java.io.IOException;
 import java.nio.ByteBuffer;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.channels.WritableByteChannel;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Collection;
 import java.util.Iterator;
+import java.util.List;
 import java.util.NoSuchElementException;
+import java.util.SortedMap;
+import java.util.Spliterator;
+import java.util.Spliterators;
+import java.util.TreeMap;
+import java.util.stream.Stream;
+import java.util.stream.StreamSupport;
 
 /**
  * Storage interface.
@@ -64,6 +76,53 @@ public interface DAO extends Closeable {
         return Iters.until(iterator(from), bound);
     }
 
+    /**
+     * Provides the same records as {@link #range(ByteBuffer, ByteBuffer)}.
+     * Implementations may read them sequentially with read-ahead, which suits long scans
+     * over data not cached in memory, the iterator should be closed or exhausted to free its resources.
+     */
+    @NotNull
+    default CloseableIterator<Record> scan(
+            @NotNull ByteBuffer from,
+            @Nullable ByteBuffer to) throws IOException {
+        return CloseableIterator.of(range(from, to));
+    }
+
+    /**
+     * Provides iterator (possibly empty) over {@link Record}s which keys start with "prefix"
+     * in <b>ascending</b> order according to {@link Record#compareTo(Record)}.
+     */
+    @NotNull
+    default Iterator<Record> prefix(@NotNull ByteBuffer prefix) throws IOException {
+        return Iters.takeWhile(iterator(prefix), r -> startsWith(r.getKey(), prefix));
+    }
+
+    private static boolean startsWith(final ByteBuffer key, final ByteBuffer prefix) {
+        return key.remaining() >= prefix.remaining()
+                && key.duplicate().limit(key.position() + prefix.remaining()).equals(prefix);
+    }
+
+    /**
+     * Provides sequential stream (possibly empty) over {@link Record}s starting at "from" key (inclusive)
+     * until "to" key (exclusive) in <b>ascending</b> order according to {@link Record#compareTo(Record)}.
+     * Implementations may support efficient splitting for parallel processing.
+     * Implementations may hold resources until the stream is closed, so it should be closed after use.
+     * By default the stream closes the iterator of {@link #range(ByteBuffer, ByteBuffer)} if it is closeable.
+     */
+    @NotNull
+    default Stream<Record> stream(
+            @NotNull ByteBuffer from,
+            @Nullable ByteBuffer to) throws IOException {
+        final Iterator<Record> records = range(from, to);
+        final Spliterator<Record> spliterator = Spliterators.spliteratorUnknownSize(records,
+                Spliterator.ORDERED | Spliterator.SORTED | Spliterator.DISTINCT | Spliterator.NONNULL);
+        final Stream<Record> stream = StreamSupport.stream(spliterator, false);
+        if (records instanceof CloseableIterator) {
+            return stream.onClose(((CloseableIterator<Record>) records)::close);
+        }
+        return stream;
+    }
+
     /**
      * Obtains {@link Record} corresponding to given key.
      *
@@ -84,6 +143,54 @@ public interface DAO extends Closeable {
         }
     }
 
+    /**
+     * Obtains values corresponding to given keys.
+     * Keys which have no records are absent from the result.
+     *
+     * @return values ordered by their keys
+     */
+    @NotNull
+    default SortedMap<ByteBuffer, ByteBuffer> getAll(@NotNull Collection<ByteBuffer> keys) throws IOException {
+        final SortedMap<ByteBuffer, ByteBuffer> result = new TreeMap<>();
+        for (final ByteBuffer key : keys) {
+            try {
+                result.put(key, get(key));
+            } catch (NoSuchElementException e) {
+                // Absent keys are skipped
+            }
+        }
+        return result;
+    }
+
+    /**
+     * Estimates amount of {@link Record}s starting at "from" key (inclusive)
+     * until "to" key (exclusive). Implementations may trade accuracy for speed.
+     */
+    default long estimateCount(
+            @NotNull ByteBuffer from,
+            @Nullable ByteBuffer to) throws IOException {
+        long count = 0;
+        for (final Iterator<Record> iter = range(from, to); iter.hasNext(); iter.next()) {
+            count++;
+        }
+        return count;
+    }
+
+    /**
+     * Estimates size in bytes of {@link Record}s starting at "from" key (inclusive)
+     * until "to" key (exclusive). Implementations may trade accuracy for speed.
+     */
+    default long estimateSize(
+            @NotNull ByteBuffer from,
+            @Nullable ByteBuffer to) throws IOException {
+        long size = 0;
+        for (final Iterator<Record> iter = range(from, to); iter.hasNext(); ) {
+            final Record record = iter.next();
+            size += record.getKey().remaining() + record.getValue().remaining();
+        }
+        return size;
+    }
+
     /**
      * Inserts or updates value by given key.
      */
@@ -105,6 +212,112 @@ public interface DAO extends Closeable {
      */
     void remove(@NotNull ByteBuffer key) throws IOException;
 
+    /**
+     * Removes values by keys from "from" (inclusive) until "to" (exclusive).
+     * By default keys are read and removed by bounded batches, each batch starts
+     * from the last removed key, which is not found any more.
+     */
+    default void removeRange(
+            @NotNull ByteBuffer from,
+            @NotNull ByteBuffer to) throws IOException {
+        final int batchSize = 1024;
+        final List<ByteBuffer> keys = new ArrayList<>(batchSize);
+        ByteBuffer start = from;
+        do {
+            keys.clear();
+            final Iterator<Record> records = range(start, to);
+            try {
+                while (keys.size() < batchSize && records.hasNext()) {
+                    keys.add(records.next().getKey());
+                }
+            } finally {
+                if (records instanceof CloseableIterator) {
+                    ((CloseableIterator<Record>) records).close();
+                }
+            }
+            for (final ByteBuffer key : keys) {
+                remove(key);
+            }
+            if (!keys.isEmpty()) {
+                start = keys.get(keys.size() - 1);
+            }
+        } while (keys.size() == batchSize);
+    }
+
+    /**
+     * Atomically adds records of tables built offline, e.g. by {@code SSTableWriter},
+     * without writing them one by one. Ingested records replace the existing ones
+     * and the records of later files replace the ones of earlier files.
+     */
+    void ingest(@NotNull Path... files) throws IOException;
+
+    /**
+     * Writes records of the range from "from" key (inclusive) until "to" key (exclusive)
+     * to the channel in the form accepted by {@link #importTables(ReadableByteChannel)},
+     * e.g. to move them to another node. Implementations may transfer their files as is.
+     * By default each record is written as [key size][value size][key][value], then [-1] follows them.
+     */
+    default void exportTables(
+            @NotNull ByteBuffer from,
+            @Nullable ByteBuffer to,
+            @NotNull WritableByteChannel target) throws IOException {
+        for (final Iterator<Record> iter = range(from, to); iter.hasNext(); ) {
+            final Record record = iter.next();
+            final ByteBuffer key = record.getKey();
+            final ByteBuffer value = record.getValue();
+            writeFully(target, ByteBuffer.allocate(Integer.BYTES * 2 + key.remaining() + value.remaining())
+                    .putInt(key.remaining())
+                    .putInt(value.remaining())
+                    .put(key.duplicate())
+                    .put(value.duplicate())
+                    .flip());
+        }
+        writeFully(target, ByteBuffer.allocate(Integer.BYTES).putInt(0, -1));
+    }
+
+    /**
+     * Adds records written by {@link #exportTables(ByteBuffer, ByteBuffer, WritableByteChannel)}.
+     * Implementations may add them atomically, by default they are upserted one by one.
+     *
+     * @throws IOException if stream is malformed
+     */
+    default void importTables(@NotNull ReadableByteChannel source) throws IOException {
+        while (true) {
+            final ByteBuffer keySize = readFully(source, ByteBuffer.allocate(Integer.BYTES));
+            if (keySize.getInt(0) == -1) {
+                return;
+            }
+            final ByteBuffer valueSize = readFully(source, ByteBuffer.allocate(Integer.BYTES));
+            if (keySize.getInt(0) < 0 || valueSize.getInt(0) < 0) {
+                throw new IOException("Malformed record");
+            }
+            final ByteBuffer key = readFully(source, ByteBuffer.allocate(keySize.getInt(0)));
+            final ByteBuffer value = readFully(source, ByteBuffer.allocate(valueSize.getInt(0)));
+            upsert(key, value);
+        }
+    }
+
+    private static void writeFully(final WritableByteChannel target, final ByteBuffer buffer) throws IOException {
+        while (buffer.hasRemaining()) {
+            target.write(buffer);
+        }
+    }
+
+    private static ByteBuffer readFully(final ReadableByteChannel source, final ByteBuffer buffer) throws IOException {
+        while (buffer.hasRemaining()) {
+            if (source.read(buffer) < 0) {
+                throw new IOException("Stream of records is cut");
+            }
+        }
+        return buffer.flip();
+    }
+
+    /**
+     * Saves consistent copy of the storage into the directory, which may be opened as a storage.
+     * Implementations may share unchanging files with the copy instead of copying them.
+     */
+    void checkpoint(@NotNull Path target) throws IOException;
+
     /**
      * Perform compaction
      */
@@ -6,6 +6,7 @@ import org.jetbrains.annotations.NotNull;
 import java.util.Iterator;
 import java.util.NoSuchElementException;
 import java.util.function.Function;
+import java.util.function.Predicate;
 
 /**
  * Utility methods for iterators.
@@ -41,6 +42,12 @@ public final class Iters {
         return new UntilIterator<>(iter, until);
     }
 
+    public static <E> Iterator<E> takeWhile(
+            @NotNull final Iterator<E> iter,
+            @NotNull final Predicate<E> condition) {
+        return new TakeWhileIterator<>(iter, condition);
+    }
+
     public static <E> Iterator<E> collapseEquals(
             @NotNull final Iterator<E> iter,
             @NotNull final Function<E, ?> byKey) {
@@ -80,6 +87,35 @@ public final class Iters {
         }
     }
 
+    private static class TakeWhileIterator<E> implements Iterator<E> {
+        private final Iterator<E> iter;
+        private final Predicate<E> condition;
+
+        private E next;
+
+        TakeWhileIterator(
+                @NotNull final Iterator<E> iter,
+                @NotNull final Predicate<E> condition) {
+            this.iter = iter;
+            this.condition = condition;
+            this.next = iter.hasNext() ? iter.next() : null;
+        }
+
+        @Override
+        public boolean hasNext() {
+            return next != null && condition.test(next);
+        }
+
+        @Override
+        public E next() {
+            assert hasNext();
+
+            final E result = this.next;
+            this.next = iter.hasNext() ? iter.next() : null;
+            return result;
+        }
+    }
+
     private static class CollapseEqualsIterator<E> implements Iterator<E> {
         private final Iterator<E> iter;
         private final Function<E, ?> keyExtractor;
@@ -0,0 +1,89 @@
+package ru.mail.polis;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import ru.mail.polis.rubtsov.ShardedDAO;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadLocalRandom;
+
+/**
+ * Measures write throughput of {@link ShardedDAO} depending on amount of shards.
+ * Every run writes the same amount of random records from as many threads as there are processors.
+ * Usage: WriteBenchmark [records amount] [value size]
+ *
+ * @author Nikolai Rubtsov
+ */
+public final class WriteBenchmark {
+    private static final Logger log = LoggerFactory.getLogger(WriteBenchmark.class);
+    private static final int KEY_LENGTH = 16;
+
+    private WriteBenchmark() {
+        // Not instantiable
+    }
+
+    public static void main(final String[] args) throws IOException, InterruptedException, ExecutionException {
+        final int records = args.length > 0 ? Integer.parseInt(args[0]) : 1_000_000;
+        final int valueSize = args.length > 1 ? Integer.parseInt(args[1]) : 128;
+        final int threads = Runtime.getRuntime().availableProcessors();
+        log.info("Writing {} records of {} bytes from {} threads", records, valueSize, threads);
+
+        final ExecutorService executor = Executors.newFixedThreadPool(threads);
+        try {
+            double baseline = 0;
+            for (int shards = 1; shards <= threads; shards *= 2) {
+                final double throughput = run(executor, threads, shards, records, valueSize);
+                if (shards == 1) {
+                    baseline = throughput;
+                }
+                log.info("{} shards: {} ops/s, x{}", shards,
+                        String.format("%.0f", throughput), String.format("%.2f", throughput / baseline));
+            }
+        } finally {
+            executor.shutdown();
+        }
+    }
+
+    private static double run(final ExecutorService executor, final int threads, final int shards,
+                              final int records, final int valueSize)
+            throws IOException, InterruptedException, ExecutionException {
+        final File data = java.nio.file.Files.createTempDirectory("benchmark").toFile();
+        try {
+            final long elapsed;
+            try (DAO dao = new ShardedDAO(data, Runtime.getRuntime().maxMemory(), shards)) {
+                final long start = System.nanoTime();
+                final List<Future<?>> writers = new ArrayList<>(threads);
+                for (int i = 0; i < threads; i++) {
+                    writers.add(executor.submit(() -> write(dao, records / threads, valueSize)));
+                }
+                for (final Future<?> writer : writers) {
+                    writer.get();
+                }
+                elapsed = System.nanoTime() - start;
+            }
+            return records * 1e9 / elapsed;
+        } finally {
+            Files.recursiveDelete(data);
+        }
+    }
+
+    private static Void write(final DAO dao, final int records, final int valueSize) throws IOException {
+        final ThreadLocalRandom random = ThreadLocalRandom.current();
+        final byte[] key = new byte[KEY_LENGTH];
+        final byte[] value = new byte[valueSize];
+        for (int i = 0; i < records; i++) {
+            random.nextBytes(key);
+            random.nextBytes(value);
+            dao.upsert(ByteBuffer.wrap(key.clone()), ByteBuffer.wrap(value.clone()));
+        }
+        return null;
+    }
+}
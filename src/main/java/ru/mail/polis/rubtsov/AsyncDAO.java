@@ -0,0 +1,219 @@
+package ru.mail.polis.rubtsov;
+
+import com.google.common.util.concurrent.MoreExecutors;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+import ru.mail.polis.CloseableIterator;
+import ru.mail.polis.Record;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Flow;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.function.Consumer;
+
+/**
+ * Non-blocking facade of {@link MyDAO}. Reads run on a pool of internal threads.
+ * Writes are queued and a single internal thread applies everything queued so far
+ * as one {@link WriteBatch}, so writes of each caller are applied in order.
+ * Futures complete exceptionally with the failure of operation,
+ * e.g. {@link java.util.NoSuchElementException} for a missing key.
+ */
+public final class AsyncDAO implements Closeable {
+    private static final int MAX_BATCH_SIZE = 1024;
+    private static final int PUBLISHER_BATCH_SIZE = 256;
+
+    private final MyDAO dao;
+    private final ExecutorService readExecutor;
+    private final ExecutorService writeExecutor = Executors.newSingleThreadExecutor(
+            new ThreadFactoryBuilder().setNameFormat("async-write-%d").setDaemon(true).build());
+    private final Queue<PendingWrite> pendingWrites = new ConcurrentLinkedQueue<>();
+    private final AtomicBoolean draining = new AtomicBoolean();
+
+    /**
+     * Creates a new facade which owns given storage.
+     *
+     * @param dao storage, it is closed with the facade
+     */
+    public AsyncDAO(@NotNull final MyDAO dao) {
+        this(dao, Runtime.getRuntime().availableProcessors());
+    }
+
+    /**
+     * Creates a new facade which owns given storage.
+     *
+     * @param dao storage, it is closed with the facade
+     * @param readThreads amount of threads serving reads
+     */
+    public AsyncDAO(@NotNull final MyDAO dao, final int readThreads) {
+        this.dao = dao;
+        this.readExecutor = Executors.newFixedThreadPool(readThreads,
+                new ThreadFactoryBuilder().setNameFormat("async-read-%d").setDaemon(true).build());
+    }
+
+    @NotNull
+    public CompletableFuture<ByteBuffer> getAsync(@NotNull final ByteBuffer key) {
+        return read(() -> dao.get(key), value -> { });
+    }
+
+    /**
+     * Opens iterator over records from "from" key (inclusive) until "to" key (exclusive).
+     * Iterator is positioned in background, but it is consumed by the caller.
+     * Files which it reads are kept until it is exhausted or closed,
+     * if the future is cancelled before, the iterator is closed once it is opened.
+     *
+     * @param from the key from which to start the iteration
+     * @param to the key at which to stop the iteration or null to iterate till the end
+     * @return future iterator
+     */
+    @NotNull
+    public CompletableFuture<CloseableIterator<Record>> rangeAsync(@NotNull final ByteBuffer from,
+                                                                   @Nullable final ByteBuffer to) {
+        return read(() -> dao.range(from, to), CloseableIterator::close);
+    }
+
+    /**
+     * Streams records from "from" key (inclusive) until "to" key (exclusive)
+     * as fast as subscriber requests them. Each subscriber sees the storage
+     * as it was at the moment of its first request.
+     *
+     * @param from the key from which to start the iteration
+     * @param to the key at which to stop the iteration or null to iterate till the end
+     * @return publisher of records
+     */
+    @NotNull
+    public Flow.Publisher<Record> rangePublisher(@NotNull final ByteBuffer from, @Nullable final ByteBuffer to) {
+        return new RangePublisher(dao, from, to, readExecutor, PUBLISHER_BATCH_SIZE);
+    }
+
+    @NotNull
+    public CompletableFuture<Void> upsertAsync(@NotNull final ByteBuffer key, @NotNull final ByteBuffer value) {
+        return write(b -> b.upsert(key, value));
+    }
+
+    @NotNull
+    public CompletableFuture<Void> upsertAsync(@NotNull final ByteBuffer key, @NotNull final ByteBuffer value,
+                                               final long timeToLive) {
+        return write(b -> b.upsert(key, value, timeToLive));
+    }
+
+    @NotNull
+    public CompletableFuture<Void> mergeAsync(@NotNull final ByteBuffer key, @NotNull final ByteBuffer operand) {
+        return write(b -> b.merge(key, operand));
+    }
+
+    @NotNull
+    public CompletableFuture<Void> removeAsync(@NotNull final ByteBuffer key) {
+        return write(b -> b.remove(key));
+    }
+
+    @NotNull
+    public CompletableFuture<Void> removeRangeAsync(@NotNull final ByteBuffer from, @NotNull final ByteBuffer to) {
+        return write(b -> b.removeRange(from, to));
+    }
+
+    /**
+     * Runs read in background.
+     *
+     * @param task read
+     * @param discard frees result which nobody receives since the future is already completed, e.g. cancelled
+     * @return future result
+     */
+    private <T> CompletableFuture<T> read(final Callable<T> task, final Consumer<T> discard) {
+        final CompletableFuture<T> result = new CompletableFuture<>();
+        try {
+            readExecutor.execute(() -> {
+                try {
+                    final T value = task.call();
+                    if (!result.complete(value)) {
+                        discard.accept(value);
+                    }
+                } catch (Exception e) {
+                    result.completeExceptionally(e);
+                }
+            });
+        } catch (RejectedExecutionException e) {
+            result.completeExceptionally(e);
+        }
+        return result;
+    }
+
+    private CompletableFuture<Void> write(final Consumer<WriteBatch> change) {
+        final PendingWrite pendingWrite = new PendingWrite(change);
+        pendingWrites.add(pendingWrite);
+        scheduleDrain();
+        return pendingWrite.result;
+    }
+
+    private void scheduleDrain() {
+        if (!draining.compareAndSet(false, true)) {
+            return;
+        }
+        try {
+            writeExecutor.execute(this::drain);
+        } catch (RejectedExecutionException e) {
+            PendingWrite pendingWrite;
+            while ((pendingWrite = pendingWrites.poll()) != null) {
+                pendingWrite.result.completeExceptionally(e);
+            }
+            draining.set(false);
+        }
+    }
+
+    /**
+     * Applies queued writes by batches until the queue is empty.
+     */
+    private void drain() {
+        while (!pendingWrites.isEmpty()) {
+            final WriteBatch batch = new WriteBatch();
+            final List<PendingWrite> group = new ArrayList<>();
+            PendingWrite pendingWrite;
+            while (group.size() < MAX_BATCH_SIZE && (pendingWrite = pendingWrites.poll()) != null) {
+                pendingWrite.change.accept(batch);
+                group.add(pendingWrite);
+            }
+            try {
+                dao.write(batch);
+                group.forEach(w -> w.result.complete(null));
+            } catch (IOException | RuntimeException e) {
+                group.forEach(w -> w.result.completeExceptionally(e));
+            }
+        }
+        draining.set(false);
+        // Write could be queued after the queue was found empty but before the flag was reset
+        if (!pendingWrites.isEmpty()) {
+            scheduleDrain();
+        }
+    }
+
+    /**
+     * Waits for queued writes and closes the storage.
+     */
+    @Override
+    public void close() throws IOException {
+        MoreExecutors.shutdownAndAwaitTermination(writeExecutor, Long.MAX_VALUE, TimeUnit.NANOSECONDS);
+        MoreExecutors.shutdownAndAwaitTermination(readExecutor, Long.MAX_VALUE, TimeUnit.NANOSECONDS);
+        dao.close();
+    }
+
+    private static final class PendingWrite {
+        private final Consumer<WriteBatch> change;
+        private final CompletableFuture<Void> result = new CompletableFuture<>();
+
+        PendingWrite(final Consumer<WriteBatch> change) {
+            this.change = change;
+        }
+    }
+}
@@ -0,0 +1,227 @@
+package ru.mail.polis.rubtsov;
+
+import com.google.common.base.Preconditions;
+import com.google.common.util.concurrent.RateLimiter;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.zip.CRC32C;
+
+/**
+ * CRC32C checksums of fixed-size blocks which the data of SSTable is cut into.
+ * Each block is verified once, when it is read for the first time.
+ */
+final class BlockChecksums {
+    static final int BLOCK_SIZE = 64 * 1024;
+
+    private final int blockSize;
+    private final int[] checksums;
+    // Bit set of blocks which are already verified
+    private final AtomicLongArray verified;
+
+    private BlockChecksums(final int blockSize, final int[] checksums) {
+        this.blockSize = blockSize;
+        this.checksums = checksums;
+        this.verified = new AtomicLongArray((checksums.length + Long.SIZE - 1) / Long.SIZE);
+    }
+
+    /**
+     * Reads checksums serialized by {@link Builder#build()}.
+     *
+     * @param section serialized checksums
+     * @param dataSize size of checksummed data
+     * @return checksums
+     * @throws IllegalArgumentException if checksums don't match the size of data
+     */
+    static BlockChecksums readFrom(final ByteBuffer section, final long dataSize) {
+        final int blockSize = section.getInt();
+        final int amount = section.getInt();
+        Preconditions.checkArgument(blockSize > 0 && amount == (dataSize + blockSize - 1) / blockSize
+                && section.remaining() == amount * Integer.BYTES);
+        final int[] checksums = new int[amount];
+        section.asIntBuffer().get(checksums);
+        return new BlockChecksums(blockSize, checksums);
+    }
+
+    /**
+     * Verifies blocks which bytes from "from" (inclusive) until "to" (exclusive) belong to.
+     *
+     * @param data checksummed data
+     * @param from the first byte
+     * @param to the byte following the last one
+     * @param fileName name of the file for error messages
+     * @throws UncheckedIOException if some block is corrupted
+     */
+    void verify(final ByteBuffer data, final long from, final long to, final String fileName) {
+        final int last = (int) ((Math.max(from + 1, to) - 1) / blockSize);
+        for (int block = (int) (from / blockSize); block <= last && block < checksums.length; block++) {
+            if (!verify(data, block)) {
+                throw new UncheckedIOException(
+                        new IOException("Checksum mismatch in block " + block + " of file " + fileName));
+            }
+        }
+    }
+
+    /**
+     * Verifies the block unless it is already verified.
+     *
+     * @param data checksummed data
+     * @param block index of block
+     * @return false if block is corrupted
+     */
+    boolean verify(final ByteBuffer data, final int block) {
+        if (isVerified(block)) {
+            return true;
+        }
+        final int from = block * blockSize;
+        return verify(block, data.duplicate().position(from).limit(Math.min(data.limit(), from + blockSize)));
+    }
+
+    /**
+     * Verifies the block read apart from the rest of data unless it is already verified.
+     *
+     * @param block index of block
+     * @param bytes remaining bytes of buffer are the whole block, position is not changed
+     * @return false if block is corrupted
+     */
+    boolean verify(final int block, final ByteBuffer bytes) {
+        if (isVerified(block)) {
+            return true;
+        }
+        final CRC32C crc = new CRC32C();
+        crc.update(bytes.duplicate());
+        if ((int) crc.getValue() != checksums[block]) {
+            return false;
+        }
+        final long mask = 1L << (block % Long.SIZE);
+        verified.accumulateAndGet(block / Long.SIZE, mask, (bits, m) -> bits | m);
+        return true;
+    }
+
+    /**
+     * Verifies every block which is not verified yet at a limited rate.
+     *
+     * @param data checksummed data
+     * @param rateLimiter limiter of verified bytes per second
+     * @return false if some block is corrupted
+     */
+    boolean verifyAll(final ByteBuffer data, final RateLimiter rateLimiter) {
+        for (int block = 0; block < checksums.length; block++) {
+            if (!isVerified(block)) {
+                rateLimiter.acquire(blockSize);
+                if (!verify(data, block)) {
+                    return false;
+                }
+            }
+        }
+        return true;
+    }
+
+    int getBlockSize() {
+        return blockSize;
+    }
+
+    int getChecksum(final int block) {
+        return checksums[block];
+    }
+
+    boolean isVerified(final int block) {
+        return (verified.get(block / Long.SIZE) & 1L << (block % Long.SIZE)) != 0;
+    }
+
+    /**
+     * Checks whether every block is already verified.
+     *
+     * @return true if there is nothing to verify
+     */
+    boolean isVerified() {
+        for (int block = 0; block < checksums.length; block++) {
+            if (!isVerified(block)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Computes checksums of data written block by block.
+     */
+    static final class Builder {
+        private final int blockSize;
+        private final CRC32C crc = new CRC32C();
+        private ByteBuffer checksums = ByteBuffer.allocate(Integer.BYTES * 16);
+        private int blockRemaining;
+        private int amount;
+
+        Builder() {
+            this(BLOCK_SIZE);
+        }
+
+        Builder(final int blockSize) {
+            this.blockSize = blockSize;
+            this.blockRemaining = blockSize;
+        }
+
+        /**
+         * Accounts the next written bytes.
+         *
+         * @param bytes remaining bytes of buffer, position is not changed
+         */
+        void update(final ByteBuffer bytes) {
+            final ByteBuffer rest = bytes.duplicate();
+            while (rest.hasRemaining()) {
+                final int chunk = Math.min(blockRemaining, rest.remaining());
+                crc.update(rest.duplicate().limit(rest.position() + chunk));
+                rest.position(rest.position() + chunk);
+                blockRemaining -= chunk;
+                if (blockRemaining == 0) {
+                    finishBlock();
+                }
+            }
+        }
+
+        /**
+         * Accounts the next whole block which checksum is already known, e.g. copied from another table.
+         *
+         * @param checksum checksum of block
+         * @throws IllegalStateException if previous bytes don't end with a whole block
+         */
+        void add(final int checksum) {
+            Preconditions.checkState(blockRemaining == blockSize, "Block is not finished");
+            finishBlock(checksum);
+        }
+
+        private void finishBlock() {
+            finishBlock((int) crc.getValue());
+        }
+
+        private void finishBlock(final int checksum) {
+            if (!checksums.hasRemaining()) {
+                checksums = ByteBuffer.allocate(checksums.capacity() * 2).put(checksums.flip());
+            }
+            checksums.putInt(checksum);
+            amount++;
+            crc.reset();
+            blockRemaining = blockSize;
+        }
+
+        /**
+         * Serializes checksums as [block size][blocks amount] { [checksum] } * blocks amount.
+         *
+         * @return serialized checksums
+         */
+        ByteBuffer build() {
+            if (blockRemaining < blockSize) {
+                finishBlock();
+            }
+            checksums.flip();
+            return ByteBuffer.allocate(Integer.BYTES * 2 + checksums.remaining())
+                    .putInt(blockSize)
+                    .putInt(amount)
+                    .put(checksums)
+                    .flip();
+        }
+    }
+}
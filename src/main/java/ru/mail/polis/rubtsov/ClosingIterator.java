@@ -0,0 +1,59 @@
+package ru.mail.polis.rubtsov;
+
+import ru.mail.polis.CloseableIterator;
+
+import java.lang.ref.Cleaner;
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+
+/**
+ * Iterator which frees resources it reads, e.g. a snapshot or open files, as soon as
+ * it is exhausted or closed. Resources of an iterator which is abandoned in the middle
+ * without being closed are freed when it becomes unreachable.
+ *
+ * @param <E> type of elements
+ */
+final class ClosingIterator<E> implements CloseableIterator<E> {
+    private static final Cleaner cleaner = Cleaner.create();
+
+    private final Iterator<E> iterator;
+    private final Cleaner.Cleanable cleanable;
+    private boolean closed;
+
+    /**
+     * Creates a new iterator.
+     *
+     * @param iterator iterator reading the resources
+     * @param onClose action freeing the resources, it must not refer to this iterator
+     */
+    ClosingIterator(final Iterator<E> iterator, final Runnable onClose) {
+        this.iterator = iterator;
+        this.cleanable = cleaner.register(this, onClose);
+    }
+
+    @Override
+    public boolean hasNext() {
+        if (closed) {
+            return false;
+        }
+        if (iterator.hasNext()) {
+            return true;
+        }
+        close();
+        return false;
+    }
+
+    @Override
+    public E next() {
+        if (!hasNext()) {
+            throw new NoSuchElementException("No more elements");
+        }
+        return iterator.next();
+    }
+
+    @Override
+    public void close() {
+        closed = true;
+        cleanable.clean();
+    }
+}
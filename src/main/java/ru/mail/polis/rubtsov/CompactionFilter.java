@@ -0,0 +1,26 @@
+package ru.mail.polis.rubtsov;
+
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Callback invoked by compaction for every live record it rewrites.
+ * Since compaction merges all the data, dropped records are gone
+ * for good without leaving tombstones.
+ */
+@FunctionalInterface
+public interface CompactionFilter {
+    CompactionFilter KEEP_ALL = (key, value) -> value;
+
+    /**
+     * Decides the fate of the record.
+     *
+     * @param key key of the record
+     * @param value current value of the record
+     * @return the given value to keep the record, another value to replace it or null to drop it
+     */
+    @Nullable
+    ByteBuffer filter(@NotNull ByteBuffer key, @NotNull ByteBuffer value);
+}
@@ -1,7 +1,10 @@
 package ru.mail.polis.rubtsov;
 
 import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
 
+import java.io.IOException;
+import java.io.UncheckedIOException;
 import java.nio.ByteBuffer;
 import java.util.Comparator;
 
@@ -18,22 +21,33 @@ public final class Item implements Comparable<Item> {
     private final long timeStamp;
     private final long timeToLive;
     private final boolean removed;
+    private final boolean operand;
+    // Value is a pointer into the log if it is set
+    private final ValueLog valueLog;
 
     private Item(final ByteBuffer key, final ByteBuffer value, final long timeStamp, final boolean removed) {
-        this.key = key;
-        this.value = value;
-        this.timeStamp = timeStamp;
-        this.removed = removed;
-        this.timeToLive = NO_TTL;
+        this(key, value, timeStamp, removed, NO_TTL);
     }
 
     private Item(final ByteBuffer key, final ByteBuffer value, final long timeStamp,
                  final boolean removed, final long timeToLive) {
+        this(key, value, timeStamp, removed, timeToLive, false);
+    }
+
+    private Item(final ByteBuffer key, final ByteBuffer value, final long timeStamp,
+                 final boolean removed, final long timeToLive, final boolean operand) {
+        this(key, value, timeStamp, removed, timeToLive, operand, null);
+    }
+
+    private Item(final ByteBuffer key, final ByteBuffer value, final long timeStamp, final boolean removed,
+                 final long timeToLive, final boolean operand, @Nullable final ValueLog valueLog) {
         this.key = key;
         this.value = value;
         this.timeStamp = timeStamp;
         this.removed = removed;
         this.timeToLive = timeToLive;
+        this.operand = operand;
+        this.valueLog = valueLog;
     }
 
     public static Item of(final ByteBuffer key, final ByteBuffer value) {
@@ -58,14 +72,92 @@ public final class Item implements Comparable<Item> {
         return new Item(key.duplicate(), TOMBSTONE, timeStamp, true, timeToLive);
     }
 
+    /**
+     * Creates merge operand which is combined with older versions of the key by {@link MergeOperator}.
+     *
+     * @param key key of item
+     * @param value operand
+     * @return item
+     */
+    static Item operand(final ByteBuffer key, final ByteBuffer value) {
+        return operand(key, value, TimeUtils.getCurrentTime());
+    }
+
+    static Item operand(final ByteBuffer key, final ByteBuffer value, final long timeStamp) {
+        return new Item(key.duplicate(), value.duplicate(), timeStamp, false, NO_TTL, true);
+    }
+
+    /**
+     * Creates item which value is kept in the value log.
+     *
+     * @param key key of item
+     * @param pointer pointer into the value log
+     * @param timeStamp timestamp of item
+     * @param timeToLive time-to-live in millis
+     * @param valueLog log the value is read from
+     * @return item
+     */
+    static Item separated(final ByteBuffer key, final ByteBuffer pointer, final long timeStamp,
+                          final long timeToLive, final ValueLog valueLog) {
+        return new Item(key.duplicate(), pointer.duplicate(), timeStamp, false, timeToLive, false, valueLog);
+    }
+
+    /**
+     * Returns the newest possible version of the key, it precedes all the real ones.
+     *
+     * @param key key of item
+     * @return item which is less than any other item with the same key
+     */
+    static Item bound(final ByteBuffer key) {
+        return removed(key, Long.MAX_VALUE, NO_TTL);
+    }
+
+    /**
+     * Checks whether key starts with the prefix.
+     *
+     * @param key checked key
+     * @param prefix expected prefix
+     * @return true if first bytes of key are equal to prefix
+     */
+    static boolean startsWith(final ByteBuffer key, final ByteBuffer prefix) {
+        return key.remaining() >= prefix.remaining()
+                && key.duplicate().limit(key.position() + prefix.remaining()).equals(prefix);
+    }
+
     public ByteBuffer getKey() {
         return key;
     }
 
+    /**
+     * Returns value reading it from the value log if it is kept there.
+     *
+     * @return value
+     * @throws UncheckedIOException if value can't be read
+     */
     public ByteBuffer getValue() {
+        if (valueLog == null) {
+            return value;
+        }
+        try {
+            return valueLog.read(value);
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    /**
+     * Returns value as it is stored in SSTable.
+     *
+     * @return value or pointer into the value log
+     */
+    ByteBuffer getStoredValue() {
         return value;
     }
 
+    boolean isSeparated() {
+        return valueLog != null;
+    }
+
     long getTimeStamp() {
         return timeStamp;
     }
@@ -75,15 +167,35 @@ public final class Item implements Comparable<Item> {
     }
 
     boolean isRemoved() {
-        return removed || hasTTL() && isExpired();
+        return isRemoved(System.currentTimeMillis());
+    }
+
+    /**
+     * Checks whether item is dead at the given moment. Value written with time-to-live
+     * of t millis is dead since t millis passed, as {@link TableMeta#isExpired(long)} assumes.
+     *
+     * @param now current time in millis
+     * @return true if item is a tombstone or it has expired
+     */
+    boolean isRemoved(final long now) {
+        return removed || hasTTL() && now >= getExpiry();
+    }
+
+    /**
+     * Checks whether item is a merge operand rather than a complete value.
+     *
+     * @return true if item must be merged with older versions of the key
+     */
+    boolean isOperand() {
+        return operand;
     }
 
-    private boolean hasTTL() {
+    boolean hasTTL() {
         return timeToLive > NO_TTL;
     }
 
-    private boolean isExpired() {
-        return System.currentTimeMillis() > (timeStamp / 1_000_000 + timeToLive);
+    long getExpiry() {
+        return timeStamp / 1_000_000 + timeToLive;
     }
 
     @Override
@@ -0,0 +1,337 @@
+package ru.mail.polis.rubtsov;
+
+import com.google.common.base.Preconditions;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.zip.CRC32C;
+
+/**
+ * Log of changes of the SSTables set. Each record of the log is an {@link Edit}
+ * which is applied atomically: a partially written record is ignored on load.
+ * Format:
+ * { [edit size][edit][edit checksum] } * edits amount
+ * where edit is { [type][generation] (for added tables [level][table meta]) } * changes amount,
+ * ingested tables are added with [level][sequence][table meta].
+ * Tables kept outside of the data folder are followed by [type][generation][folder].
+ */
+final class Manifest implements Closeable {
+    static final String FILE_NAME = "MANIFEST";
+    private static final String TEMP_FILE_NAME = FILE_NAME + ".tmp";
+    private static final byte ADD = 1;
+    private static final byte REMOVE = 2;
+    private static final byte NEXT_GENERATION = 3;
+    private static final byte ADD_INGESTED = 4;
+    private static final byte PLACE = 5;
+
+    private final Path path;
+    private final Map<Long, Entry> tables;
+    private long nextGeneration;
+    private int obsoleteChanges;
+    private FileChannel log;
+
+    private Manifest(final Path path, final Map<Long, Entry> tables, final long nextGeneration) {
+        this.path = path;
+        this.tables = tables;
+        this.nextGeneration = nextGeneration;
+    }
+
+    static boolean exists(final File dir) {
+        return Files.isRegularFile(dir.toPath().resolve(FILE_NAME));
+    }
+
+    /**
+     * Creates a new manifest containing given tables, replacing the existing one.
+     * Manifest of empty storage is not written until the first change.
+     *
+     * @param dir data files directory
+     * @param entries tables of the storage
+     * @return manifest
+     * @throws IOException if manifest can't be written
+     */
+    static Manifest create(final File dir, final Collection<Entry> entries) throws IOException {
+        final Map<Long, Entry> tables = new TreeMap<>();
+        long nextGeneration = 1;
+        for (final Entry entry : entries) {
+            tables.put(entry.generation, entry);
+            nextGeneration = Math.max(nextGeneration, entry.generation + 1);
+        }
+        final Manifest manifest = new Manifest(dir.toPath().resolve(FILE_NAME), tables, nextGeneration);
+        if (!tables.isEmpty()) {
+            manifest.rewrite();
+        }
+        return manifest;
+    }
+
+    /**
+     * Replays manifest of the storage located at given directory.
+     *
+     * @param dir data files directory
+     * @return manifest
+     * @throws IOException if manifest can't be read
+     */
+    static Manifest open(final File dir) throws IOException {
+        final Path path = dir.toPath().resolve(FILE_NAME);
+        final ByteBuffer content = ByteBuffer.wrap(Files.readAllBytes(path));
+        final Manifest manifest = new Manifest(path, new TreeMap<>(), 1);
+        while (content.remaining() >= Integer.BYTES) {
+            final int size = content.getInt();
+            if (size < 0 || content.remaining() < size + Integer.BYTES) {
+                break;
+            }
+            final ByteBuffer edit = content.slice().limit(size);
+            content.position(content.position() + size);
+            if (checksum(edit) != content.getInt()) {
+                break;
+            }
+            manifest.replay(edit);
+        }
+        if (content.hasRemaining() || manifest.obsoleteChanges > 0) {
+            manifest.rewrite();
+        } else {
+            manifest.log = FileChannel.open(path, StandardOpenOption.WRITE, StandardOpenOption.APPEND);
+        }
+        return manifest;
+    }
+
+    private void replay(final ByteBuffer edit) {
+        while (edit.hasRemaining()) {
+            final byte type = edit.get();
+            final long generation = edit.getLong();
+            switch (type) {
+                case ADD:
+                    final int level = edit.getInt();
+                    tables.put(generation, new Entry(generation, level, TableMeta.readFrom(edit)));
+                    nextGeneration = Math.max(nextGeneration, generation + 1);
+                    break;
+                case ADD_INGESTED:
+                    final int ingestedLevel = edit.getInt();
+                    final long sequence = edit.getLong();
+                    tables.put(generation, new Entry(generation, ingestedLevel, sequence, 0, TableMeta.readFrom(edit)));
+                    nextGeneration = Math.max(nextGeneration, generation + 1);
+                    break;
+                case PLACE:
+                    final Entry placed = tables.get(generation);
+                    Preconditions.checkArgument(placed != null, "Unknown table is placed: %s", generation);
+                    tables.put(generation, new Entry(generation, placed.level, placed.sequence, edit.getInt(),
+                            placed.meta));
+                    break;
+                case REMOVE:
+                    tables.remove(generation);
+                    obsoleteChanges += 2;
+                    break;
+                case NEXT_GENERATION:
+                    nextGeneration = Math.max(nextGeneration, generation);
+                    break;
+                default:
+                    throw new IllegalArgumentException("Unknown manifest record: " + type);
+            }
+        }
+    }
+
+    /**
+     * Returns live tables ordered by generation.
+     *
+     * @return tables descriptions
+     */
+    List<Entry> getTables() {
+        return new ArrayList<>(tables.values());
+    }
+
+    boolean contains(final long generation) {
+        return tables.containsKey(generation);
+    }
+
+    /**
+     * Reserves generation for a new table, generations of tables grow with their creation order.
+     *
+     * @return unique generation
+     */
+    long nextGeneration() {
+        return nextGeneration++;
+    }
+
+    /**
+     * Durably applies the change of tables set.
+     *
+     * @param edit change
+     * @throws IOException if change can't be written
+     */
+    void apply(final Edit edit) throws IOException {
+        for (final Entry entry : edit.added) {
+            tables.put(entry.generation, entry);
+        }
+        for (final Long generation : edit.removed) {
+            tables.remove(generation);
+        }
+        obsoleteChanges += edit.removed.size() * 2;
+        if (log == null || obsoleteChanges > tables.size()) {
+            rewrite();
+        } else {
+            append(edit.serialize(nextGeneration));
+        }
+    }
+
+    /**
+     * Replaces log with a single edit which adds every live table.
+     */
+    private void rewrite() throws IOException {
+        close();
+        final Edit snapshot = new Edit();
+        tables.values().forEach(e -> snapshot.add(e.generation, e.level, e.sequence, e.folder, e.meta));
+        final Path tempPath = path.resolveSibling(TEMP_FILE_NAME);
+        try (FileChannel channel = FileChannel.open(tempPath, StandardOpenOption.WRITE,
+                StandardOpenOption.CREATE, StandardOpenOption.TRUNCATE_EXISTING)) {
+            channel.write(frame(snapshot.serialize(nextGeneration)));
+            channel.force(true);
+        }
+        Files.move(tempPath, path, StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+        obsoleteChanges = 0;
+        log = FileChannel.open(path, StandardOpenOption.WRITE, StandardOpenOption.APPEND);
+    }
+
+    private void append(final ByteBuffer edit) throws IOException {
+        log.write(frame(edit));
+        log.force(true);
+    }
+
+    private static ByteBuffer frame(final ByteBuffer edit) {
+        final ByteBuffer frame = ByteBuffer.allocate(Integer.BYTES * 2 + edit.remaining());
+        return frame.putInt(edit.remaining())
+                .put(edit.duplicate())
+                .putInt(checksum(edit))
+                .flip();
+    }
+
+    private static int checksum(final ByteBuffer data) {
+        final CRC32C crc = new CRC32C();
+        crc.update(data.duplicate());
+        return (int) crc.getValue();
+    }
+
+    @Override
+    public void close() throws IOException {
+        if (log != null) {
+            log.close();
+            log = null;
+        }
+    }
+
+    /**
+     * Description of a live table.
+     */
+    static final class Entry {
+        private final long generation;
+        private final int level;
+        // Timestamp of every record of ingested table or 0
+        private final long sequence;
+        // Index of folder among the data folder and the extra ones
+        private final int folder;
+        private final TableMeta meta;
+
+        Entry(final long generation, final int level, final TableMeta meta) {
+            this(generation, level, 0, 0, meta);
+        }
+
+        Entry(final long generation, final int level, final long sequence, final int folder,
+              final TableMeta meta) {
+            this.generation = generation;
+            this.level = level;
+            this.sequence = sequence;
+            this.folder = folder;
+            this.meta = meta;
+        }
+
+        long getGeneration() {
+            return generation;
+        }
+
+        int getLevel() {
+            return level;
+        }
+
+        long getSequence() {
+            return sequence;
+        }
+
+        int getFolder() {
+            return folder;
+        }
+
+        TableMeta getMeta() {
+            return meta;
+        }
+    }
+
+    /**
+     * Set of tables added and removed at once.
+     */
+    static final class Edit {
+        private final List<Entry> added = new ArrayList<>();
+        private final List<Long> removed = new ArrayList<>();
+
+        Edit add(final long generation, final int level, final int folder, final TableMeta meta) {
+            return add(generation, level, 0, folder, meta);
+        }
+
+        Edit add(final long generation, final int level, final long sequence, final int folder,
+                 final TableMeta meta) {
+            added.add(new Entry(generation, level, sequence, folder, meta));
+            return this;
+        }
+
+        Edit remove(final long generation) {
+            removed.add(generation);
+            return this;
+        }
+
+        boolean isEmpty() {
+            return added.isEmpty() && removed.isEmpty();
+        }
+
+        private ByteBuffer serialize(final long nextGeneration) {
+            int size = Byte.BYTES + Long.BYTES;
+            for (final Entry entry : added) {
+                size += Byte.BYTES + Long.BYTES + Integer.BYTES + entry.meta.getSerializedSize();
+                if (entry.sequence > 0) {
+                    size += Long.BYTES;
+                }
+                if (entry.folder > 0) {
+                    size += Byte.BYTES + Long.BYTES + Integer.BYTES;
+                }
+            }
+            size += removed.size() * (Byte.BYTES + Long.BYTES);
+            final ByteBuffer buffer = ByteBuffer.allocate(size);
+            for (final Entry entry : added) {
+                if (entry.sequence > 0) {
+                    buffer.put(ADD_INGESTED).putLong(entry.generation).putInt(entry.level).putLong(entry.sequence);
+                } else {
+                    // Plain record keeps manifest readable by older versions
+                    buffer.put(ADD).putLong(entry.generation).putInt(entry.level);
+                }
+                entry.meta.writeTo(buffer);
+                if (entry.folder > 0) {
+                    buffer.put(PLACE).putLong(entry.generation).putInt(entry.folder);
+                }
+            }
+            for (final Long generation : removed) {
+                buffer.put(REMOVE).putLong(generation);
+            }
+            buffer.put(NEXT_GENERATION).putLong(nextGeneration);
+            Preconditions.checkState(!buffer.hasRemaining());
+            return buffer.flip();
+        }
+    }
+}
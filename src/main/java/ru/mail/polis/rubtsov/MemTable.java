@@ -1,22 +1,34 @@
 package ru.mail.polis.rubtsov;
 
+import org.jetbrains.annotations.Nullable;
+
 import java.io.File;
 import java.io.IOException;
 import java.nio.ByteBuffer;
 import java.nio.file.Path;
+import java.util.Collection;
+import java.util.Collections;
 import java.util.Iterator;
-import java.util.SortedMap;
-import java.util.TreeMap;
+import java.util.NavigableSet;
+import java.util.NoSuchElementException;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ConcurrentSkipListSet;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.UnaryOperator;
 
 /**
  * Part of storage located in RAM.
+ * Keeps every version of the data, so readers may see it as of any moment.
  */
 
 final class MemTable {
     private final long flushThresholdInBytes;
 
-    private final SortedMap<ByteBuffer, Item> data;
-    private long sizeInBytes;
+    private final NavigableSet<Item> data;
+    private final Queue<RangeTombstone> rangeTombstones = new ConcurrentLinkedQueue<>();
+    private final AtomicLong sizeInBytes = new AtomicLong();
+    private final AtomicLong count = new AtomicLong();
 
     /**
      * Creates a new RAM-storage.
@@ -25,12 +37,31 @@ final class MemTable {
      */
 
     MemTable(final long heapSizeInBytes) {
-        data = new TreeMap<>();
+        data = new ConcurrentSkipListSet<>(Item.COMPARATOR);
         flushThresholdInBytes = heapSizeInBytes / 16;
     }
 
+    /**
+     * Returns iterator over all versions of data starting from the newest version of the given key.
+     *
+     * @param from the key from which to start the iteration
+     * @return iterator
+     */
     Iterator<Item> iterator(final ByteBuffer from) {
-        return data.tailMap(from).values().iterator();
+        return data.tailSet(Item.bound(from)).iterator();
+    }
+
+    /**
+     * Returns the newest version of the key which is not newer than the given sequence number.
+     *
+     * @param key key to search
+     * @param sequence greatest timestamp of visible records
+     * @return item or null if there is no such version
+     */
+    @Nullable
+    Item get(final ByteBuffer key, final long sequence) {
+        final Item item = data.ceiling(Item.removed(key, sequence, Item.NO_TTL));
+        return item == null || !item.getKey().equals(key) ? null : item;
     }
 
     /**
@@ -46,8 +77,7 @@ final class MemTable {
     }
 
     void upsert(final ByteBuffer key, final ByteBuffer value, final long timeToLive) {
-        final Item val = Item.ofTTL(key, value, timeToLive);
-        calcNewSize(data.put(key, val), val);
+        add(Item.ofTTL(key, value, timeToLive));
     }
 
     /**
@@ -56,39 +86,102 @@ final class MemTable {
      * @param key that should be removed
      */
     void remove(final ByteBuffer key) {
-        final Item dead = Item.removed(key);
-        calcNewSize(data.put(key, dead), dead);
+        add(Item.removed(key));
     }
 
-    private void calcNewSize(final Item previousItem, final Item val) {
-        if (previousItem == null) {
-            sizeInBytes += val.getSizeInBytes();
-        } else {
-            sizeInBytes += -previousItem.getSizeInBytes() + val.getSizeInBytes();
-        }
+    /**
+     * Adds merge operand which is applied to the value of the key when it is read.
+     *
+     * @param key key of record
+     * @param operand operand of {@link MergeOperator}
+     */
+    void merge(final ByteBuffer key, final ByteBuffer operand) {
+        add(Item.operand(key, operand));
+    }
+
+    /**
+     * Removes all the keys from "from" (inclusive) until "to" (exclusive) by a single tombstone.
+     *
+     * @param from the first removed key
+     * @param to the key following removed ones
+     */
+    void removeRange(final ByteBuffer from, final ByteBuffer to) {
+        final RangeTombstone tombstone = RangeTombstone.of(from, to);
+        rangeTombstones.add(tombstone);
+        sizeInBytes.addAndGet(tombstone.getSizeInBytes());
+    }
+
+    /**
+     * Returns range tombstones of every age.
+     *
+     * @return tombstones in any order
+     */
+    Collection<RangeTombstone> getRangeTombstones() {
+        return Collections.unmodifiableCollection(rangeTombstones);
+    }
+
+    private void add(final Item item) {
+        data.add(item);
+        sizeInBytes.addAndGet(item.getSizeInBytes());
+        count.incrementAndGet();
     }
 
     boolean isFlushNeeded() {
-        return sizeInBytes > flushThresholdInBytes;
+        return sizeInBytes.get() > flushThresholdInBytes;
+    }
+
+    /**
+     * Drops the newest versions of data and range tombstones to file. Versions hidden by range tombstones
+     * are skipped, merge operands are applied to the versions below them,
+     * operands on top of older tables are combined into one.
+     *
+     * @param ssTablesDir data files directory
+     * @param generation generation of new table
+     * @param prefixExtractor extractor of prefixes put into prefix filter or null if table has no filter
+     * @param hashIndex whether table has hash index of keys
+     * @param mergeOperator operator combining merge operands or null if the storage has none
+     * @param valueSeparator moves large values of written items to value log
+     * @return path of new SSTable
+     */
+    Path flush(final File ssTablesDir, final long generation, @Nullable final PrefixExtractor prefixExtractor,
+               final boolean hashIndex, @Nullable final MergeOperator mergeOperator,
+               final UnaryOperator<Iterator<Item>> valueSeparator) throws IOException {
+        final Iterator<Item> visible = RangeTombstones.of(rangeTombstones, Long.MAX_VALUE).filter(data.iterator());
+        final Iterator<Item> newest = new ResolvingIterator(visible, mergeOperator, false);
+        return SSTable.writeNewTable(valueSeparator.apply(newest), rangeTombstones,
+                ssTablesDir, generation, prefixExtractor, hashIndex);
+    }
+
+    /**
+     * Checks whether some versions of data may fall into the range.
+     *
+     * @param from the first key of range
+     * @param to the key following range or null if range is not bounded
+     * @return false if there are no versions in the range
+     */
+    boolean overlaps(final ByteBuffer from, @Nullable final ByteBuffer to) {
+        try {
+            return data.last().getKey().compareTo(from) >= 0
+                    && (to == null || data.first().getKey().compareTo(to) < 0);
+        } catch (NoSuchElementException e) {
+            return false;
+        }
     }
 
     /**
-     * Drops current MemTable to file.
+     * Returns amount of all versions of data.
      *
-     * @return path of new SSTable or null if something went wrong during flush
+     * @return amount of items
      */
-    Path flush(final File ssTablesDir) throws IOException {
-        final Path newSSTablePath = SSTable.writeNewTable(data.values().iterator(), ssTablesDir);
-        clear();
-        return newSSTablePath;
+    long getCount() {
+        return count.get();
     }
 
-    void clear() {
-        data.clear();
-        sizeInBytes = 0;
+    long getSizeInBytes() {
+        return sizeInBytes.get();
     }
 
     boolean isEmpty() {
-        return data.isEmpty();
+        return data.isEmpty() && rangeTombstones.isEmpty();
     }
 }
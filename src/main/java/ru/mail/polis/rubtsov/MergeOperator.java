@@ -0,0 +1,37 @@
+package ru.mail.polis.rubtsov;
+
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+import java.nio.ByteBuffer;
+import java.util.List;
+
+/**
+ * Combines merge operands written by {@link MyDAO#merge(ByteBuffer, ByteBuffer)} with the value
+ * they are applied to, e.g. adds increments to a counter or appends elements to a list.
+ * Operands are combined lazily when the key is read and folded into values by compaction,
+ * so the same operator must be used every time the storage is opened.
+ */
+public interface MergeOperator {
+    /**
+     * Applies operands to the value.
+     *
+     * @param key key of the record
+     * @param existing value the operands were written over or null if there was none
+     * @param operands operands from the oldest to the newest one
+     * @return new value
+     */
+    @NotNull
+    ByteBuffer fullMerge(@NotNull ByteBuffer key, @Nullable ByteBuffer existing, @NotNull List<ByteBuffer> operands);
+
+    /**
+     * Combines consecutive operands into a single one when the value they are applied to
+     * is not known yet, e.g. when a RAM-table is flushed.
+     *
+     * @param key key of the record
+     * @param operands operands from the oldest to the newest one
+     * @return operand which has the same effect as all the given ones
+     */
+    @NotNull
+    ByteBuffer partialMerge(@NotNull ByteBuffer key, @NotNull List<ByteBuffer> operands);
+}
@@ -1,33 +1,98 @@
 package ru.mail.polis.rubtsov;
 
+import com.google.common.base.Preconditions;
+import com.google.common.base.Throwables;
 import com.google.common.collect.Iterators;
+import com.google.common.util.concurrent.RateLimiter;
+import com.google.common.util.concurrent.Uninterruptibles;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
 import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
+import ru.mail.polis.CloseableIterator;
 import ru.mail.polis.DAO;
 import ru.mail.polis.Iters;
 import ru.mail.polis.Record;
 
 import java.io.File;
 import java.io.IOException;
+import java.io.UncheckedIOException;
 import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.channels.WritableByteChannel;
 import java.nio.file.Files;
 import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
 import java.util.ArrayList;
 import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.HashSet;
 import java.util.Iterator;
 import java.util.List;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.Objects;
+import java.util.Set;
+import java.util.SortedMap;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.function.Consumer;
 import java.util.stream.Stream;
 
 /**
  * Simple LSM based {@link DAO} implementation.
+ * Readers work with immutable {@link TableSet}s, so they don't block writers.
+ * Flushes and compactions are serialized.
  */
 public class MyDAO implements DAO {
     private static final int COMPACTION_THRESHOLD = 8;
+    private static final int COMPACTION_THREADS = Runtime.getRuntime().availableProcessors();
+    private static final long MIN_SUB_COMPACTION_RECORDS = 100_000;
+    private static final int SAMPLES_PER_SUB_COMPACTION = 4;
+    private static final double TTL_COMPACTION_RATIO = 0.5;
+    private static final int FLUSHED_LEVEL = 0;
+    private static final int COMPACTED_LEVEL = 1;
+    private static final long SCRUB_PERIOD_SECONDS = 60;
+    private static final double VALUE_LOG_GC_RATIO = 0.5;
+    private static final long END_OF_TABLES = 0;
 
-    private final MemTable memTable;
-    private final List<SSTable> ssTables = new ArrayList<>();
+    private final long heapSizeInBytes;
+    private volatile TableSet tables;
+    // Writers hold read lock while their records get timestamps and reach the table
+    private final ReadWriteLock sequenceLock = new ReentrantReadWriteLock();
     private final File ssTablesDir;
+    // Data folder followed by the extra ones
+    private final List<File> tableFolders;
+    private final PlacementPolicy placementPolicy;
+    private final Manifest manifest;
+    private final CompactionFilter compactionFilter;
+    private final PrefixExtractor prefixExtractor;
+    private final boolean hashIndex;
+    private final MergeOperator mergeOperator;
+    private final ValueLog valueLog;
+    private final int valueLogThreshold;
+    private final SSTable.ContentCache contentCache;
+    private final ExecutorService compactionExecutor;
+    private final ScheduledExecutorService scrubExecutor;
+    // Executors given by options are shared with other storages, so they are not shut down
+    private final boolean ownExecutors;
+    private final ScheduledFuture<?> scrubbing;
+    private boolean closed;
+    private final RateLimiter scrubRateLimiter;
     private static final Logger logger = LoggerFactory.getLogger(MyDAO.class);
 
     /**
@@ -37,97 +102,995 @@ public class MyDAO implements DAO {
      * @param heapSizeInBytes JVM max heap size
      */
     public MyDAO(final File dataFolder, final long heapSizeInBytes) throws IOException {
-        memTable = new MemTable(heapSizeInBytes);
+        this(dataFolder, heapSizeInBytes, new Options());
+    }
+
+    /**
+     * Constructs a new storage.
+     *
+     * @param dataFolder the folder which SSTables will be contained.
+     * @param heapSizeInBytes JVM max heap size
+     * @param options tunable parameters of storage
+     * @throws IOException if some extra folder doesn't exist or tables are kept in the folder which isn't given
+     */
+    public MyDAO(final File dataFolder, final long heapSizeInBytes,
+                 @NotNull final Options options) throws IOException {
+        this.heapSizeInBytes = heapSizeInBytes;
         ssTablesDir = dataFolder;
+        final List<File> folders = new ArrayList<>();
+        folders.add(ssTablesDir);
+        for (final File folder : options.getExtraFolders()) {
+            if (!folder.isDirectory()) {
+                throw new IOException("Folder doesn't exist: " + folder);
+            }
+            folders.add(folder);
+        }
+        tableFolders = Collections.unmodifiableList(folders);
+        placementPolicy = options.getPlacementPolicy();
+        compactionFilter = options.getCompactionFilter();
+        prefixExtractor = options.getPrefixExtractor();
+        hashIndex = options.isHashIndex();
+        mergeOperator = options.getMergeOperator();
+        valueLog = new ValueLog(ssTablesDir);
+        valueLogThreshold = options.getValueLogThreshold();
+        ownExecutors = options.getCompactionExecutor() == null;
+        compactionExecutor = ownExecutors ? newCompactionExecutor() : options.getCompactionExecutor();
+        scrubExecutor = ownExecutors ? newScrubExecutor() : options.getScrubExecutor();
+        contentCache = new SSTable.ContentCache(options.getMaxOpenTables(), this::quarantineLater);
+        scrubRateLimiter = RateLimiter.create(options.getScrubRate() > 0 ? options.getScrubRate() : Double.MAX_VALUE);
+        manifest = Manifest.exists(ssTablesDir)
+                ? Manifest.open(ssTablesDir) : Manifest.create(ssTablesDir, migrateTables());
+        final Set<Path> files = listFiles();
+        final List<SSTable> ssTables = new ArrayList<>();
+        for (final Manifest.Entry entry : manifest.getTables()) {
+            if (entry.getFolder() >= tableFolders.size()) {
+                manifest.close();
+                throw new IOException("Folder of table isn't configured: " + SSTable.fileName(entry.getGeneration()));
+            }
+            if (files.contains(tableFile(entry.getGeneration(), entry.getFolder()).toPath())) {
+                final SSTable ssTable = openTable(entry.getGeneration(), entry.getLevel(), entry.getFolder(),
+                        entry.getSequence(), entry.getMeta());
+                if (ssTable != null) {
+                    ssTables.add(ssTable);
+                }
+            } else {
+                logger.error("File lost: {}, skipped.", SSTable.fileName(entry.getGeneration()));
+            }
+        }
+        tables = new TableSet(Collections.singletonList(new MemTable(heapSizeInBytes)), ssTables, mergeOperator);
+        removeTrash(files);
+        dropExpiredTables();
+        if (options.getScrubRate() > 0) {
+            scrubbing = scrubExecutor.scheduleWithFixedDelay(this::scrubInBackground,
+                    SCRUB_PERIOD_SECONDS, SCRUB_PERIOD_SECONDS, TimeUnit.SECONDS);
+        } else {
+            scrubbing = null;
+        }
+    }
+
+    /**
+     * Creates executor of compactions which storage has unless options give a shared one.
+     *
+     * @return executor of a thread per processor
+     */
+    static ExecutorService newCompactionExecutor() {
+        return Executors.newFixedThreadPool(COMPACTION_THREADS,
+                new ThreadFactoryBuilder().setNameFormat("compaction-%d").setDaemon(true).build());
+    }
+
+    /**
+     * Creates executor of scrubbing which storage has unless options give a shared one.
+     *
+     * @return executor of a single thread
+     */
+    static ScheduledExecutorService newScrubExecutor() {
+        return Executors.newSingleThreadScheduledExecutor(
+                new ThreadFactoryBuilder().setNameFormat("scrubber-%d").setDaemon(true).build());
+    }
+
+    /**
+     * Names tables of storage created before the manifest appeared after generations.
+     * Generations follow the age of the newest record of each table.
+     *
+     * @return descriptions of migrated tables
+     */
+    private List<Manifest.Entry> migrateTables() throws IOException {
+        final Map<Path, Future<SSTable>> openedTables = new HashMap<>();
+        // Tables are opened again by the manifest, so their mappings are dropped with this cache
+        final SSTable.ContentCache migratedContents = new SSTable.ContentCache(0, table -> { });
+        long generation = 0;
         try (Stream<Path> files = Files.list(ssTablesDir.toPath())) {
-            files.filter(Files::isRegularFile)
+            final Iterator<Path> iterator = files.filter(Files::isRegularFile)
                     .filter(p -> p.getFileName().toString().endsWith(SSTable.VALID_FILE_EXTENSTION))
-                    .forEach(p -> {
-                        try {
-                            initNewSSTable(p.toFile());
-                        } catch (IOException e) {
-                            logger.error("Init of SSTable failed: {}", p.getFileName(), e);
-                        }
-                    });
+                    .iterator();
+            while (iterator.hasNext()) {
+                final Path p = iterator.next();
+                generation = Math.max(generation, SSTable.parseGeneration(p.getFileName().toString()));
+                openedTables.put(p, compactionExecutor.submit(() -> new SSTable(p.toFile(), 0, 0, 0, null, valueLog,
+                        migratedContents)));
+            }
+        }
+        final List<SSTable> tables = new ArrayList<>(openedTables.size());
+        for (final Map.Entry<Path, Future<SSTable>> openedTable : openedTables.entrySet()) {
+            try {
+                tables.add(getUninterruptibly(openedTable.getValue()));
+            } catch (IllegalArgumentException e) {
+                logger.error("File corrupted: {}, skipped.", openedTable.getKey().getFileName());
+            }
+        }
+        tables.sort(Comparator.comparingLong(s -> s.getMeta().getMaxTimeStamp()));
+        final List<Manifest.Entry> entries = new ArrayList<>(tables.size());
+        for (final SSTable s : tables) {
+            generation++;
+            Files.move(s.getTableFile().toPath(), tableFile(generation, 0).toPath(), StandardCopyOption.ATOMIC_MOVE);
+            entries.add(new Manifest.Entry(generation, 0, s.getMeta()));
+        }
+        return entries;
+    }
+
+    private Set<Path> listFiles() throws IOException {
+        final Set<Path> found = new HashSet<>();
+        for (final File folder : tableFolders) {
+            try (Stream<Path> files = Files.list(folder.toPath())) {
+                files.filter(Files::isRegularFile).forEach(found::add);
+            }
         }
+        return found;
     }
 
-    private void initNewSSTable(final File ssTableFile) throws IOException {
+    /**
+     * Removes unfinished temporary files and tables which are not in the manifest.
+     */
+    private void removeTrash(final Set<Path> files) {
+        for (final Path file : files) {
+            final String fileName = file.getFileName().toString();
+            final long generation = SSTable.parseGeneration(fileName);
+            if (SSTable.isTempFile(fileName) || generation >= 0 && !manifest.contains(generation)) {
+                removeFile(file);
+            }
+        }
+    }
+
+    @Nullable
+    private SSTable openTable(final long generation, final int level, final int folder) throws IOException {
+        return openTable(generation, level, folder, 0, null);
+    }
+
+    @Nullable
+    private SSTable openTable(final long generation, final int level, final int folder, final long sequence,
+                              @Nullable final TableMeta meta) throws IOException {
+        final File ssTableFile = tableFile(generation, folder);
         try {
-            final SSTable ssTable = new SSTable(ssTableFile);
-            ssTables.add(ssTable);
+            return new SSTable(ssTableFile, generation, level, sequence, meta, valueLog, contentCache);
         } catch (IllegalArgumentException e) {
             logger.error("File corrupted: {}, skipped.", ssTableFile.getName());
         }
+        return null;
     }
 
+    private File tableFile(final long generation, final int folder) {
+        return tableFolders.get(folder).toPath().resolve(SSTable.fileName(generation)).toFile();
+    }
+
+    /**
+     * Picks folder of a new table by the placement policy.
+     *
+     * @return index of folder
+     */
+    private int folderOf(final long generation, final int level) {
+        final int folder = placementPolicy.folderOf(generation, level, tableFolders.size());
+        Preconditions.checkState(folder >= 0 && folder < tableFolders.size(), "No such folder: %s", folder);
+        return folder;
+    }
+
+    /**
+     * Returns temporary file of a new flushed table which is committed by {@link #addTables(List, long[])}.
+     */
+    private Path tempTable(final long generation) {
+        return SSTable.tempFile(tableFolders.get(folderOf(generation, FLUSHED_LEVEL)), generation);
+    }
+
+    /**
+     * Provides iterator over records starting at "from" key (inclusive) in ascending order.
+     * Files which the iterator reads, including value log, are kept until it is exhausted or closed.
+     *
+     * @param from the key from which to start the iteration
+     * @return iterator
+     */
     @NotNull
     @Override
-    public Iterator<Record> iterator(@NotNull final ByteBuffer from) throws IOException {
-        final Iterator<Item> itemIterator = itemIterator(from);
-        return Iterators.transform(itemIterator, i -> Record.of(i.getKey(), i.getValue()));
+    public CloseableIterator<Record> iterator(@NotNull final ByteBuffer from) throws IOException {
+        final Snapshot snapshot = snapshot();
+        try {
+            return closing(snapshot.iterator(from), snapshot);
+        } catch (IOException | RuntimeException e) {
+            snapshot.close();
+            throw e;
+        }
     }
 
-    private Iterator<Item> itemIterator(@NotNull final ByteBuffer from) {
-        final Collection<Iterator<Item>> iterators = new ArrayList<>();
-        iterators.add(memTable.iterator(from));
-        for (final SSTable s : ssTables) {
-            iterators.add(s.iterator(from));
+    /**
+     * Provides iterator over records starting at "from" key (inclusive) until "to" key (exclusive)
+     * in ascending order. Files which the iterator reads are kept until it is exhausted or closed.
+     *
+     * @param from the key from which to start the iteration
+     * @param to the key at which to stop the iteration or null to iterate till the end
+     * @return iterator
+     */
+    @NotNull
+    @Override
+    public CloseableIterator<Record> range(@NotNull final ByteBuffer from,
+                                           @Nullable final ByteBuffer to) throws IOException {
+        // The bound is checked inside, so the iterator is exhausted when the range is over
+        final Snapshot snapshot = snapshot();
+        try {
+            return closing(snapshot.range(from, to), snapshot);
+        } catch (IOException | RuntimeException e) {
+            snapshot.close();
+            throw e;
         }
-        final Iterator<Item> mergedIter = Iterators.mergeSorted(iterators, Item.COMPARATOR);
-        final Iterator<Item> collapsedIter = Iters.collapseEquals(mergedIter, Item::getKey);
-        return Iterators.filter(collapsedIter, i -> !i.isRemoved());
     }
 
+    /**
+     * Wraps iterator of the snapshot, so the snapshot is closed together with it.
+     */
+    private static CloseableIterator<Record> closing(final CloseableIterator<Record> records,
+                                                     final Snapshot snapshot) {
+        return new ClosingIterator<>(records, () -> {
+            records.close();
+            snapshot.close();
+        });
+    }
+
+    @NotNull
     @Override
-    public void upsert(@NotNull final ByteBuffer key, @NotNull final ByteBuffer value) throws IOException {
-        memTable.upsert(key, value);
-        if (memTable.isFlushNeeded()) {
-            flushTable();
+    public ByteBuffer get(@NotNull final ByteBuffer key) throws IOException, NoSuchElementException {
+        try (Snapshot snapshot = snapshot()) {
+            return snapshot.get(key);
+        }
+    }
+
+    @NotNull
+    @Override
+    public CloseableIterator<Record> scan(@NotNull final ByteBuffer from,
+                                          @Nullable final ByteBuffer to) throws IOException {
+        // Files are kept until the iteration is over
+        final Snapshot snapshot = snapshot();
+        try {
+            return closing(snapshot.scan(from, to), snapshot);
+        } catch (IOException | RuntimeException e) {
+            snapshot.close();
+            throw e;
+        }
+    }
+
+    @NotNull
+    @Override
+    public CloseableIterator<Record> prefix(@NotNull final ByteBuffer prefix) throws IOException {
+        final Snapshot snapshot = snapshot();
+        try {
+            return closing(snapshot.prefix(prefix), snapshot);
+        } catch (IOException | RuntimeException e) {
+            snapshot.close();
+            throw e;
         }
     }
 
+    @NotNull
+    @Override
+    public Stream<Record> stream(@NotNull final ByteBuffer from, @Nullable final ByteBuffer to) throws IOException {
+        // Files are kept until the stream is closed, its parts are read lazily
+        final Snapshot snapshot = snapshot();
+        try {
+            return snapshot.stream(from, to).onClose(snapshot::close);
+        } catch (IOException | RuntimeException e) {
+            snapshot.close();
+            throw e;
+        }
+    }
+
+    @Override
+    public long estimateCount(@NotNull final ByteBuffer from, @Nullable final ByteBuffer to) throws IOException {
+        try (Snapshot snapshot = snapshot()) {
+            return snapshot.estimateCount(from, to);
+        }
+    }
+
+    @Override
+    public long estimateSize(@NotNull final ByteBuffer from, @Nullable final ByteBuffer to) throws IOException {
+        try (Snapshot snapshot = snapshot()) {
+            return snapshot.estimateSize(from, to);
+        }
+    }
+
+    @NotNull
+    @Override
+    public SortedMap<ByteBuffer, ByteBuffer> getAll(@NotNull final Collection<ByteBuffer> keys) throws IOException {
+        try (Snapshot snapshot = snapshot()) {
+            return snapshot.getAll(keys);
+        }
+    }
+
+    /**
+     * Takes point-in-time view of the storage which must be closed after use.
+     * Writers are not blocked while the snapshot is open.
+     *
+     * @return snapshot
+     */
+    @NotNull
+    public Snapshot snapshot() {
+        while (true) {
+            final TableSet current;
+            final long sequence;
+            sequenceLock.writeLock().lock();
+            try {
+                current = tables;
+                sequence = TimeUtils.getCurrentTime();
+            } finally {
+                sequenceLock.writeLock().unlock();
+            }
+            // Fails only if tables were replaced concurrently
+            if (current.acquire()) {
+                return new Snapshot(current, sequence, prefixExtractor);
+            }
+        }
+    }
+
+    private CloseableIterator<Item> itemIterator(final List<SSTable> ssTables,
+                                                 final RangeTombstones rangeTombstones,
+                                                 @NotNull final ByteBuffer from,
+                                                 @Nullable final ByteBuffer to) throws IOException {
+        final List<CloseableIterator<Item>> iterators = new ArrayList<>(ssTables.size());
+        try {
+            for (final SSTable s : ssTables) {
+                iterators.add(s.iterator(from));
+            }
+        } catch (IOException | RuntimeException e) {
+            iterators.forEach(CloseableIterator::close);
+            throw e;
+        }
+        final Iterator<Item> iterator = TableSet.merge(new ArrayList<>(iterators), Long.MAX_VALUE,
+                rangeTombstones, mergeOperator);
+        return new ClosingIterator<>(to == null ? iterator : Iters.until(iterator, Item.bound(to)),
+                () -> iterators.forEach(CloseableIterator::close));
+    }
+
+    @Override
+    public void upsert(@NotNull final ByteBuffer key, @NotNull final ByteBuffer value) throws IOException {
+        write(m -> m.upsert(key, value));
+    }
+
     @Override
     public void upsert(@NotNull final ByteBuffer key,
                        @NotNull final ByteBuffer value, final long timeToLive) throws IOException {
-        memTable.upsert(key, value, timeToLive);
-        if (memTable.isFlushNeeded()) {
-            flushTable();
-        }
+        write(m -> m.upsert(key, value, timeToLive));
     }
 
     @Override
     public void remove(@NotNull final ByteBuffer key) throws IOException {
-        memTable.remove(key);
+        write(m -> m.remove(key));
+    }
+
+    /**
+     * Removes the whole range by a single range tombstone, which is dropped
+     * by compaction together with the records it hides.
+     */
+    @Override
+    public void removeRange(@NotNull final ByteBuffer from, @NotNull final ByteBuffer to) throws IOException {
+        if (from.compareTo(to) < 0) {
+            write(m -> m.removeRange(from, to));
+        }
+    }
+
+    /**
+     * Writes merge operand which is combined with the value by {@link MergeOperator}
+     * when the key is read, so the value is updated without reading it.
+     *
+     * @param key key of record
+     * @param operand operand of merge operator
+     * @throws IllegalStateException if merge operator is not set
+     */
+    public void merge(@NotNull final ByteBuffer key, @NotNull final ByteBuffer operand) throws IOException {
+        checkMergeOperator();
+        write(m -> m.merge(key, operand));
+    }
+
+    /**
+     * Applies all the changes of batch at once.
+     *
+     * @param batch changes
+     * @throws IllegalStateException if batch has merge operands but merge operator is not set
+     */
+    public void write(@NotNull final WriteBatch batch) throws IOException {
+        if (batch.hasOperands()) {
+            checkMergeOperator();
+        }
+        if (!batch.isEmpty()) {
+            write(batch::applyTo);
+        }
+    }
+
+    private void checkMergeOperator() {
+        if (mergeOperator == null) {
+            throw new IllegalStateException("Merge operator is not set");
+        }
+    }
+
+    private void write(final Consumer<MemTable> change) throws IOException {
+        final MemTable memTable;
+        sequenceLock.readLock().lock();
+        try {
+            memTable = tables.getMemTable();
+            change.accept(memTable);
+        } finally {
+            sequenceLock.readLock().unlock();
+        }
         if (memTable.isFlushNeeded()) {
             flushTable();
         }
     }
 
+    /**
+     * Verifies checksums of tables blocks which were not read yet and quarantines corrupted tables:
+     * their files are renamed and they are removed from the storage, so reads no longer fail on them.
+     * It runs periodically in background at the rate set by {@link Options#setScrubRate(long)} if it is enabled.
+     * Tables found corrupted by reads are quarantined in background in any case.
+     *
+     * @return amount of quarantined tables
+     */
+    public int scrub() throws IOException {
+        int quarantined = 0;
+        for (final SSTable s : tables.getSSTables()) {
+            // Table may be already replaced by compaction
+            if (!s.acquire()) {
+                continue;
+            }
+            try {
+                if (!s.scrub(scrubRateLimiter) && quarantine(s)) {
+                    quarantined++;
+                }
+            } finally {
+                s.release();
+            }
+        }
+        return quarantined;
+    }
+
+    private void scrubInBackground() {
+        try {
+            scrub();
+        } catch (IOException | RuntimeException e) {
+            logger.error("Scrubbing failed", e);
+        }
+    }
+
+    /**
+     * Quarantines the table as soon as a read finds it corrupted, whether scrubbing is enabled or not,
+     * so following reads don't fail on it. It is done in background, so the reader is not blocked.
+     */
+    private void quarantineLater(final SSTable table) {
+        try {
+            scrubExecutor.execute(() -> {
+                try {
+                    quarantine(table);
+                } catch (IOException e) {
+                    logger.error("Can't quarantine file: {}", table.getTableFile().getName(), e);
+                }
+            });
+        } catch (RejectedExecutionException e) {
+            // Storage is closed, the table is found corrupted again after it is opened
+        }
+    }
+
+    private synchronized boolean quarantine(final SSTable table) throws IOException {
+        // Both a read and scrubbing may find the table corrupted
+        if (table.isQuarantined()) {
+            return true;
+        }
+        if (closed || !tables.getSSTables().contains(table)) {
+            return false;
+        }
+        logger.error("File corrupted: {}, quarantined.", table.getTableFile().getName());
+        manifest.apply(new Manifest.Edit().remove(table.getGeneration()));
+        tables = tables.replace(Collections.singletonList(table), Collections.emptyList());
+        // New reads don't find the table by the time its file is renamed
+        table.quarantine();
+        table.release();
+        return true;
+    }
+
+    /**
+     * Links the files into the folders picked for them, falling back to copying, verifies them entirely
+     * and adds them to the storage as flushed tables by a single manifest edit.
+     * Files must not be changed after ingestion, but they may be removed.
+     * Each table gets its own sequence which serves as the timestamp of its records,
+     * so they replace records written before the ingestion started.
+     *
+     * @param files tables written by {@link SSTableWriter}
+     * @throws IOException if a file can't be linked or it is corrupted, then nothing is ingested
+     */
+    @Override
+    public synchronized void ingest(@NotNull final Path... files) throws IOException {
+        final long[] sequences = new long[files.length];
+        sequenceLock.writeLock().lock();
+        try {
+            for (int i = 0; i < files.length; i++) {
+                sequences[i] = TimeUtils.getCurrentTime();
+            }
+        } finally {
+            sequenceLock.writeLock().unlock();
+        }
+        final List<Long> generations = new ArrayList<>(files.length);
+        final List<Path> linked = new ArrayList<>(files.length);
+        try {
+            for (final Path file : files) {
+                final long generation = manifest.nextGeneration();
+                final Path tempFile = tempTable(generation);
+                generations.add(generation);
+                linked.add(tempFile);
+                linkOrCopy(file, tempFile);
+            }
+            addTables(generations, sequences);
+        } finally {
+            for (final Path tempFile : linked) {
+                Files.deleteIfExists(tempFile);
+            }
+        }
+    }
+
+    /**
+     * Writes tables containing records and range tombstones of the range to the channel,
+     * RAM-table is flushed first. Each table is written as [table size][table file], then [0] follows them.
+     * Files are transferred by the file system as is, only the range is cut out of them,
+     * records are neither decoded nor encoded again, see {@link SSTable#exportTo}.
+     * Records keep their timestamps, so importing storage resolves versions by them.
+     *
+     * @param from the first key of range
+     * @param to the key following range or null if range is not bounded
+     * @param target blocking channel, e.g. file or socket
+     * @throws IOException if tables can't be read or channel can't be written
+     */
+    @Override
+    public void exportTables(@NotNull final ByteBuffer from, @Nullable final ByteBuffer to,
+                             @NotNull final WritableByteChannel target) throws IOException {
+        final TableSet exported;
+        synchronized (this) {
+            flushMemTable();
+            exported = tables;
+            // Tables are not replaced while the monitor is held
+            Preconditions.checkState(exported.acquire());
+        }
+        try {
+            for (final SSTable s : exported.getSSTables()) {
+                s.exportTo(from, to, target, prefixExtractor);
+            }
+        } finally {
+            exported.release();
+        }
+        final ByteBuffer end = ByteBuffer.allocate(Long.BYTES).putLong(0, END_OF_TABLES);
+        while (end.hasRemaining()) {
+            target.write(end);
+        }
+    }
+
+    /**
+     * Receives tables written by {@link #exportTables(ByteBuffer, ByteBuffer, WritableByteChannel)}
+     * straight into files of the folders picked for them, then verifies them entirely and adds them
+     * to the storage as flushed tables by a single manifest edit.
+     * Records keep their timestamps, so they replace only older versions of the same keys.
+     * Timestamps of the following writes are made greater than the imported ones.
+     *
+     * @param source blocking channel, e.g. file or socket
+     * @throws IOException if stream is malformed or some table is corrupted, then nothing is imported
+     */
+    @Override
+    public void importTables(@NotNull final ReadableByteChannel source) throws IOException {
+        final List<Long> generations = new ArrayList<>();
+        final List<Path> received = new ArrayList<>();
+        try {
+            while (true) {
+                final ByteBuffer header = ByteBuffer.allocate(Long.BYTES);
+                while (header.hasRemaining()) {
+                    if (source.read(header) < 0) {
+                        throw new IOException("Stream of tables is cut");
+                    }
+                }
+                final long size = header.getLong(0);
+                if (size == END_OF_TABLES) {
+                    break;
+                }
+                if (size < 0 || size >= Integer.MAX_VALUE) {
+                    throw new IOException("Malformed size of table: " + size);
+                }
+                final long generation;
+                synchronized (this) {
+                    generation = manifest.nextGeneration();
+                }
+                // Table is received straight into the folder it is placed to
+                final Path tempFile = tempTable(generation);
+                generations.add(generation);
+                received.add(tempFile);
+                try (FileChannel fileChannel = FileChannel.open(tempFile,
+                        StandardOpenOption.WRITE, StandardOpenOption.CREATE_NEW)) {
+                    long transferred = 0;
+                    while (transferred < size) {
+                        final long count = fileChannel.transferFrom(source, transferred, size - transferred);
+                        if (count == 0) {
+                            throw new IOException("Stream of tables is cut");
+                        }
+                        transferred += count;
+                    }
+                }
+            }
+            addTables(generations, new long[generations.size()]);
+        } finally {
+            for (final Path tempFile : received) {
+                Files.deleteIfExists(tempFile);
+            }
+        }
+    }
+
+    /**
+     * Commits temporary files named by {@link #tempTable(long)} to new tables, verifies them entirely
+     * and adds them to the storage as flushed tables by a single manifest edit.
+     *
+     * @param generations reserved generations of tables
+     * @param sequences sequences of ingested tables or zeros if records keep their timestamps
+     * @throws IOException if some table is corrupted, then no table is added
+     */
+    private synchronized void addTables(final List<Long> generations, final long[] sequences) throws IOException {
+        final List<SSTable> added = new ArrayList<>(generations.size());
+        final Manifest.Edit edit = new Manifest.Edit();
+        try {
+            for (int i = 0; i < generations.size(); i++) {
+                final long generation = generations.get(i);
+                final int folder = folderOf(generation, FLUSHED_LEVEL);
+                final Path tableFile = SSTable.commitTable(tempTable(generation));
+                final String fileName = tableFile.getFileName().toString();
+                final SSTable table;
+                try {
+                    table = new SSTable(tableFile.toFile(), generation, FLUSHED_LEVEL, sequences[i], null, valueLog,
+                            contentCache);
+                } catch (IllegalArgumentException | UncheckedIOException e) {
+                    removeFile(tableFile);
+                    throw new IOException("File corrupted: " + fileName, e);
+                }
+                added.add(table);
+                if (!table.scrub(RateLimiter.create(Double.MAX_VALUE))) {
+                    throw new IOException("File corrupted: " + fileName);
+                }
+                if (!table.getValueLogRefs().isEmpty()) {
+                    throw new IOException("Table references value log: " + fileName);
+                }
+                edit.add(generation, FLUSHED_LEVEL, sequences[i], folder, table.getMeta());
+                TimeUtils.advance(table.getMeta().getMaxTimeStamp());
+            }
+            manifest.apply(edit);
+        } catch (IOException | RuntimeException e) {
+            // Released tables remove their files
+            added.forEach(SSTable::release);
+            throw e;
+        }
+        tables = tables.replace(Collections.emptyList(), added);
+    }
+
+    /**
+     * Flushes RAM-table and links files of the live tables and value log files they reference
+     * into the new directory together with the manifest of those tables, falling back to copying.
+     * Linked files are never changed, except the current value log file which may grow
+     * by records the checkpoint doesn't reference. Records written meanwhile are not included.
+     * The directory is a storage which may be opened as is, e.g. to restore the data.
+     *
+     * @param target directory which doesn't exist yet
+     * @throws IOException if directory exists or files can't be linked, then it is removed
+     */
+    @Override
+    public synchronized void checkpoint(@NotNull final Path target) throws IOException {
+        flushMemTable();
+        Files.createDirectory(target);
+        try {
+            final List<Manifest.Entry> entries = new ArrayList<>();
+            final Set<Long> valueLogFiles = new HashSet<>();
+            // Tables are neither replaced nor removed while flushes and compactions wait
+            for (final SSTable s : tables.getSSTables()) {
+                linkOrCopy(s.getTableFile().toPath(), target.resolve(SSTable.fileName(s.getGeneration())));
+                // Tables of every folder are gathered in the checkpoint folder
+                entries.add(new Manifest.Entry(s.getGeneration(), s.getLevel(), s.getSequence(), 0, s.getMeta()));
+                valueLogFiles.addAll(s.getValueLogRefs().keySet());
+            }
+            for (final long fileId : valueLogFiles) {
+                final Path file = valueLog.file(fileId).toPath();
+                linkOrCopy(file, target.resolve(file.getFileName()));
+            }
+            Manifest.create(target.toFile(), entries).close();
+        } catch (IOException | RuntimeException e) {
+            try (Stream<Path> files = Files.list(target)) {
+                files.forEach(this::removeFile);
+            }
+            removeFile(target);
+            throw e;
+        }
+    }
+
+    /**
+     * Creates hard link to the file or copies it if file system doesn't support links between them.
+     */
+    private static void linkOrCopy(final Path file, final Path link) throws IOException {
+        try {
+            Files.createLink(link, file);
+        } catch (IOException | UnsupportedOperationException e) {
+            Files.copy(file, link, StandardCopyOption.REPLACE_EXISTING);
+        }
+    }
+
     @Override
-    public void close() throws IOException {
-        if (!memTable.isEmpty()) {
-            memTable.flush(ssTablesDir);
+    public synchronized void close() throws IOException {
+        closed = true;
+        if (scrubbing != null) {
+            scrubbing.cancel(false);
+        }
+        if (ownExecutors) {
+            compactionExecutor.shutdown();
+            scrubExecutor.shutdown();
+        }
+        try {
+            flushMemTable();
+        } finally {
+            manifest.close();
+            valueLog.close();
+            contentCache.clear();
         }
     }
 
-    private void flushTable() throws IOException {
-        if (ssTables.size() >= COMPACTION_THRESHOLD) {
+    private synchronized void flushTable() throws IOException {
+        if (!tables.getMemTable().isFlushNeeded()) {
+            return;
+        }
+        if (getFlushedTablesAmount() >= COMPACTION_THRESHOLD || isTTLCompactionNeeded()) {
             compact();
         } else {
-            final Path flushedFilePath = memTable.flush(ssTablesDir);
-            initNewSSTable(flushedFilePath.toFile());
+            flushMemTable();
+            dropExpiredTables();
+        }
+    }
+
+    /**
+     * Switches writes to a new RAM-table and writes the previous ones to disk.
+     */
+    private void flushMemTable() throws IOException {
+        if (!tables.getMemTable().isEmpty()) {
+            sequenceLock.writeLock().lock();
+            try {
+                tables = tables.freeze(new MemTable(heapSizeInBytes));
+            } finally {
+                sequenceLock.writeLock().unlock();
+            }
+        }
+        for (final MemTable frozen : tables.getFrozenMemTables()) {
+            final long generation = manifest.nextGeneration();
+            final int folder = folderOf(generation, FLUSHED_LEVEL);
+            frozen.flush(tableFolders.get(folder), generation, prefixExtractor, hashIndex, mergeOperator,
+                    items -> valueLog.separate(items, valueLogThreshold, Collections.emptySet()));
+            final SSTable flushed = openTable(generation, FLUSHED_LEVEL, folder);
+            if (flushed != null) {
+                manifest.apply(new Manifest.Edit().add(generation, FLUSHED_LEVEL, folder, flushed.getMeta()));
+            }
+            tables = tables.flushed(frozen, flushed);
         }
     }
 
+    private long getFlushedTablesAmount() {
+        return tables.getSSTables().stream().filter(s -> s.getLevel() == FLUSHED_LEVEL).count();
+    }
+
+    private boolean isTTLCompactionNeeded() {
+        final long now = System.currentTimeMillis();
+        for (final SSTable s : tables.getSSTables()) {
+            if (s.getMeta().expiredRatio(now) > TTL_COMPACTION_RATIO) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Removes tables which contain only dead records without rewriting them.
+     * Dead records still hide older versions of the same keys, so table is removed
+     * only if every table it overlaps with is entirely newer.
+     */
+    private void dropExpiredTables() throws IOException {
+        final List<SSTable> ssTables = tables.getSSTables();
+        final long now = System.currentTimeMillis();
+        final Manifest.Edit edit = new Manifest.Edit();
+        final List<SSTable> dropped = new ArrayList<>();
+        // Tables are ordered from the newest to the oldest one
+        for (int i = ssTables.size() - 1; i >= 0; i--) {
+            final SSTable s = ssTables.get(i);
+            if (s.getMeta().isExpired(now) && isOldestInRange(s, dropped)) {
+                edit.remove(s.getGeneration());
+                dropped.add(s);
+            }
+        }
+        if (edit.isEmpty()) {
+            return;
+        }
+        manifest.apply(edit);
+        tables = tables.replace(dropped, Collections.emptyList());
+        dropped.forEach(SSTable::release);
+    }
+
+    private boolean isOldestInRange(final SSTable table, final Collection<SSTable> dropped) {
+        for (final SSTable s : tables.getSSTables()) {
+            // Imported tables may be newer than records they contain
+            final boolean older = s.getGeneration() < table.getGeneration()
+                    || s.getMeta().getMinTimeStamp() < table.getMeta().getMaxTimeStamp();
+            if (s != table && older && !dropped.contains(s) && s.getMeta().overlaps(table.getMeta())) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Merges all the data into new SSTables. Key space is split into disjoint
+     * ranges which are merged in parallel, each of them into its own file.
+     * Range tombstones are applied and not written, since nothing older remains.
+     * New tables replace old ones by a single manifest edit, files of old ones
+     * are removed as soon as open snapshots release them.
+     * Value log files referenced by no new table are removed together with the old tables.
+     * Since merged tables reference only live values, they show which value log files are
+     * mostly dead, the live values of those are moved to the current file by one more merge.
+     */
     @Override
-    public void compact() throws IOException {
-        final Iterator<Item> itemIterator = itemIterator(Item.TOMBSTONE);
-        final Path mergedTable = SSTable.writeNewTable(itemIterator, ssTablesDir);
-        ssTables.forEach(s -> removeFile(s.getTableFile().toPath()));
-        ssTables.clear();
-        memTable.clear();
-        initNewSSTable(mergedTable.toFile());
+    public synchronized void compact() throws IOException {
+        flushMemTable();
+        mergeTables(Collections.emptySet(), valueLog.getSealedFileSizes().keySet());
+        final Set<Long> relocatedFiles = relocatedFiles(tables.getSSTables(), valueLog.getSealedFileSizes());
+        if (!relocatedFiles.isEmpty()) {
+            mergeTables(relocatedFiles, relocatedFiles);
+        }
+    }
+
+    /**
+     * Merges all the tables.
+     *
+     * @param relocatedFiles value log files which live values are moved to the current one
+     * @param removedFiles value log files which are removed unless new tables reference them
+     */
+    private void mergeTables(final Set<Long> relocatedFiles, final Set<Long> removedFiles) throws IOException {
+        final List<SSTable> oldTables = tables.getSSTables();
+        final List<ByteBuffer> bounds = splitKeys(oldTables);
+        final RangeTombstones rangeTombstones = RangeTombstones.of(TableSet.rangeTombstones(oldTables), Long.MAX_VALUE);
+        final List<Future<Path>> subCompactions = new ArrayList<>(bounds.size() + 1);
+        final List<Long> generations = new ArrayList<>(bounds.size() + 1);
+        final List<Integer> folders = new ArrayList<>(bounds.size() + 1);
+        for (int i = 0; i <= bounds.size(); i++) {
+            final ByteBuffer from = i == 0 ? Item.TOMBSTONE : bounds.get(i - 1);
+            final ByteBuffer to = i == bounds.size() ? null : bounds.get(i);
+            final long generation = manifest.nextGeneration();
+            final int folder = folderOf(generation, COMPACTED_LEVEL);
+            generations.add(generation);
+            folders.add(folder);
+            subCompactions.add(compactionExecutor.submit(() -> {
+                try (CloseableIterator<Item> items = itemIterator(oldTables, rangeTombstones, from, to)) {
+                    return SSTable.writeTempTable(
+                            valueLog.separate(filter(items), valueLogThreshold, relocatedFiles),
+                            Collections.emptyList(), tableFolders.get(folder), generation, prefixExtractor,
+                            hashIndex);
+                }
+            }));
+        }
+        final List<Path> mergedTables = new ArrayList<>(subCompactions.size());
+        IOException failure = null;
+        for (final Future<Path> subCompaction : subCompactions) {
+            try {
+                mergedTables.add(getUninterruptibly(subCompaction));
+            } catch (IOException e) {
+                failure = e;
+            }
+        }
+        if (failure != null) {
+            mergedTables.forEach(this::removeFile);
+            throw failure;
+        }
+        final List<SSTable> newTables = new ArrayList<>(mergedTables.size());
+        final Manifest.Edit edit = new Manifest.Edit();
+        for (int i = 0; i < mergedTables.size(); i++) {
+            SSTable.commitTable(mergedTables.get(i));
+            final SSTable merged = openTable(generations.get(i), COMPACTED_LEVEL, folders.get(i));
+            if (merged == null) {
+                continue;
+            }
+            if (merged.getMeta().isEmpty()) {
+                merged.release();
+            } else {
+                newTables.add(merged);
+                edit.add(merged.getGeneration(), COMPACTED_LEVEL, folders.get(i), merged.getMeta());
+            }
+        }
+        oldTables.forEach(s -> edit.remove(s.getGeneration()));
+        manifest.apply(edit);
+        tables = tables.replace(oldTables, newTables);
+        final Set<Long> obsoleteFiles = new HashSet<>(removedFiles);
+        for (final SSTable s : newTables) {
+            obsoleteFiles.removeAll(s.getValueLogRefs().keySet());
+        }
+        if (!obsoleteFiles.isEmpty()) {
+            final CompletableFuture<?>[] released = oldTables.stream()
+                    .map(SSTable::whenReleased)
+                    .toArray(CompletableFuture[]::new);
+            CompletableFuture.allOf(released).thenRun(() -> valueLog.delete(obsoleteFiles));
+        }
+        oldTables.forEach(SSTable::release);
+    }
+
+    /**
+     * Picks value log files which are mostly dead judging by the amount of bytes tables reference.
+     * Files without references at all are not picked, they are removed by the merge anyway.
+     *
+     * @param ssTables fully merged tables
+     * @param valueLogFiles sizes of sealed value log files
+     * @return ids of files which live values are moved from
+     */
+    private static Set<Long> relocatedFiles(final List<SSTable> ssTables,
+                                            final Map<Long, Long> valueLogFiles) throws IOException {
+        final Map<Long, Long> liveBytes = new HashMap<>();
+        for (final SSTable s : ssTables) {
+            s.getValueLogRefs().forEach((fileId, bytes) -> liveBytes.merge(fileId, bytes, Long::sum));
+        }
+        final Set<Long> relocated = new HashSet<>();
+        valueLogFiles.forEach((fileId, size) -> {
+            final long live = liveBytes.getOrDefault(fileId, 0L);
+            if (live > 0 && live < size * VALUE_LOG_GC_RATIO) {
+                relocated.add(fileId);
+            }
+        });
+        return relocated;
+    }
+
+    private Iterator<Item> filter(final Iterator<Item> items) {
+        if (compactionFilter == CompactionFilter.KEEP_ALL) {
+            // Separated values are not read from value log without need
+            return items;
+        }
+        final Iterator<Item> filtered = Iterators.transform(items, i -> {
+            final ByteBuffer value = i.getValue().asReadOnlyBuffer();
+            final ByteBuffer newValue = compactionFilter.filter(i.getKey().asReadOnlyBuffer(), value);
+            if (newValue == null) {
+                return null;
+            }
+            return newValue == value ? i : Item.ofTTL(i.getKey(), newValue, i.getTimeStamp(), i.getTimeToLive());
+        });
+        return Iterators.filter(filtered, Objects::nonNull);
+    }
+
+    /**
+     * Picks boundaries of sub-compactions from the indexes of SSTables.
+     *
+     * @param ssTables tables which are merged
+     * @return ascending distinct keys splitting the key space
+     */
+    private List<ByteBuffer> splitKeys(final List<SSTable> ssTables) throws IOException {
+        long recordsAmount = 0;
+        for (final SSTable s : ssTables) {
+            recordsAmount += s.getRecordsAmount();
+        }
+        final int parts = (int) Math.min(COMPACTION_THREADS,
+                Math.max(1, recordsAmount / MIN_SUB_COMPACTION_RECORDS));
+        return TableSet.splitKeys(ssTables, Item.TOMBSTONE, null, parts, SAMPLES_PER_SUB_COMPACTION);
+    }
+
+    /**
+     * Waits for the task running in background and rethrows its failure.
+     */
+    private static <T> T getUninterruptibly(final Future<T> task) throws IOException {
+        try {
+            return Uninterruptibles.getUninterruptibly(task);
+        } catch (ExecutionException e) {
+            Throwables.throwIfInstanceOf(e.getCause(), IOException.class);
+            Throwables.throwIfUnchecked(e.getCause());
+            throw new IOException("Background task failed", e.getCause());
+        }
     }
 
     private void removeFile(final Path p) {
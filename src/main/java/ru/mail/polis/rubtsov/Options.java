@@ -0,0 +1,228 @@
+package ru.mail.polis.rubtsov;
+
+import com.google.common.base.Preconditions;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.ScheduledExecutorService;
+
+/**
+ * Tunable parameters of {@link MyDAO}.
+ */
+public final class Options {
+    private CompactionFilter compactionFilter = CompactionFilter.KEEP_ALL;
+    private PrefixExtractor prefixExtractor;
+    private MergeOperator mergeOperator;
+    private long scrubBytesPerSecond;
+    private int valueLogThreshold;
+    private int maxOpenTables;
+    private boolean hashIndex;
+    private List<File> extraFolders = Collections.emptyList();
+    private PlacementPolicy placementPolicy = PlacementPolicy.ROUND_ROBIN;
+    private ExecutorService compactionExecutor;
+    private ScheduledExecutorService scrubExecutor;
+
+    /**
+     * Sets callback which may drop or rewrite records during compaction.
+     *
+     * @param compactionFilter filter applied to live records
+     * @return these options
+     */
+    public Options setCompactionFilter(@NotNull final CompactionFilter compactionFilter) {
+        this.compactionFilter = compactionFilter;
+        return this;
+    }
+
+    /**
+     * Sets extractor of key prefixes which new SSTables keep in Bloom filters,
+     * so prefix scans skip tables without the prefix.
+     *
+     * @param prefixExtractor extractor or null to write no prefix filters
+     * @return these options
+     */
+    public Options setPrefixExtractor(@Nullable final PrefixExtractor prefixExtractor) {
+        this.prefixExtractor = prefixExtractor;
+        return this;
+    }
+
+    /**
+     * Sets operator which combines merge operands with values, it is required
+     * to write operands and to read the storage containing them.
+     *
+     * @param mergeOperator operator or null if merge operands are not used
+     * @return these options
+     */
+    public Options setMergeOperator(@Nullable final MergeOperator mergeOperator) {
+        this.mergeOperator = mergeOperator;
+        return this;
+    }
+
+    /**
+     * Sets rate at which tables are verified in background, it doesn't limit verification by reads.
+     * Background verification is off by default, then corrupted tables are quarantined once reads find them.
+     *
+     * @param bytesPerSecond verified bytes per second or 0 to verify tables only when they are read
+     * @return these options
+     */
+    public Options setScrubRate(final long bytesPerSecond) {
+        Preconditions.checkArgument(bytesPerSecond >= 0, "Rate must not be negative");
+        this.scrubBytesPerSecond = bytesPerSecond;
+        return this;
+    }
+
+    /**
+     * Sets size starting from which values are moved from SSTables to value log when tables are written,
+     * so compaction doesn't rewrite them. Values are read from value log by one more random read.
+     *
+     * @param bytes least size of moved values or 0 to keep all values in SSTables
+     * @return these options
+     */
+    public Options setValueLogThreshold(final int bytes) {
+        Preconditions.checkArgument(bytes >= 0, "Threshold must not be negative");
+        this.valueLogThreshold = bytes;
+        return this;
+    }
+
+    /**
+     * Limits amount of tables which files are kept mapped, the least recently used ones are unmapped
+     * and mapped again when they are read. Bounds of keys and filters of tables are kept anyway.
+     *
+     * @param maxOpenTables maximum amount of mapped tables or 0 to keep all of them mapped
+     * @return these options
+     */
+    public Options setMaxOpenTables(final int maxOpenTables) {
+        Preconditions.checkArgument(maxOpenTables >= 0, "Limit must not be negative");
+        this.maxOpenTables = maxOpenTables;
+        return this;
+    }
+
+    /**
+     * Makes new SSTables keep hash index of their keys, so a point lookup reads about one record
+     * of a table instead of searching its sorted keys. Scans still search keys.
+     * Index takes 8 to 16 bytes per record.
+     *
+     * @param hashIndex whether new tables are written with hash index
+     * @return these options
+     */
+    public Options setHashIndex(final boolean hashIndex) {
+        this.hashIndex = hashIndex;
+        return this;
+    }
+
+    /**
+     * Sets folders which SSTables are written to besides the data folder, e.g. on other disks,
+     * so flushes and compactions are spread over them. Manifest and value log stay in the data folder.
+     * Manifest refers to folders by their positions, so the storage must be opened with the same folders
+     * in the same order, new ones may be appended.
+     *
+     * @param extraFolders existing folders
+     * @return these options
+     */
+    public Options setExtraFolders(@NotNull final List<File> extraFolders) {
+        this.extraFolders = new ArrayList<>(extraFolders);
+        return this;
+    }
+
+    /**
+     * Sets policy which picks folders of new SSTables among the data folder and the extra ones.
+     *
+     * @param placementPolicy policy, {@link PlacementPolicy#ROUND_ROBIN} by default
+     * @return these options
+     */
+    public Options setPlacementPolicy(@NotNull final PlacementPolicy placementPolicy) {
+        this.placementPolicy = placementPolicy;
+        return this;
+    }
+
+    /**
+     * Sets executors of background work, so several storages share their threads.
+     * Compaction executor merges and opens tables, its tasks never wait for each other.
+     * Scrub executor verifies tables and quarantines corrupted ones.
+     * Storage doesn't shut given executors down. By default it has its own ones:
+     * a thread per processor for compaction and a single thread for scrubbing.
+     *
+     * @param compactionExecutor executor of compactions
+     * @param scrubExecutor executor of scrubbing
+     * @return these options
+     */
+    public Options setBackgroundExecutors(@NotNull final ExecutorService compactionExecutor,
+                                          @NotNull final ScheduledExecutorService scrubExecutor) {
+        this.compactionExecutor = compactionExecutor;
+        this.scrubExecutor = scrubExecutor;
+        return this;
+    }
+
+    /**
+     * Copies options, so they may be changed without affecting the original ones.
+     *
+     * @return new options
+     */
+    Options copy() {
+        final Options copy = new Options();
+        copy.compactionFilter = compactionFilter;
+        copy.prefixExtractor = prefixExtractor;
+        copy.mergeOperator = mergeOperator;
+        copy.scrubBytesPerSecond = scrubBytesPerSecond;
+        copy.valueLogThreshold = valueLogThreshold;
+        copy.maxOpenTables = maxOpenTables;
+        copy.hashIndex = hashIndex;
+        copy.extraFolders = extraFolders;
+        copy.placementPolicy = placementPolicy;
+        copy.compactionExecutor = compactionExecutor;
+        copy.scrubExecutor = scrubExecutor;
+        return copy;
+    }
+
+    CompactionFilter getCompactionFilter() {
+        return compactionFilter;
+    }
+
+    @Nullable
+    PrefixExtractor getPrefixExtractor() {
+        return prefixExtractor;
+    }
+
+    @Nullable
+    MergeOperator getMergeOperator() {
+        return mergeOperator;
+    }
+
+    long getScrubRate() {
+        return scrubBytesPerSecond;
+    }
+
+    int getValueLogThreshold() {
+        return valueLogThreshold;
+    }
+
+    int getMaxOpenTables() {
+        return maxOpenTables;
+    }
+
+    boolean isHashIndex() {
+        return hashIndex;
+    }
+
+    List<File> getExtraFolders() {
+        return extraFolders;
+    }
+
+    PlacementPolicy getPlacementPolicy() {
+        return placementPolicy;
+    }
+
+    @Nullable
+    ExecutorService getCompactionExecutor() {
+        return compactionExecutor;
+    }
+
+    @Nullable
+    ScheduledExecutorService getScrubExecutor() {
+        return scrubExecutor;
+    }
+}
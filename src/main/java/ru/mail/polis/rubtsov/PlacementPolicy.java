@@ -0,0 +1,32 @@
+package ru.mail.polis.rubtsov;
+
+/**
+ * Picks the folder which a new SSTable is written to, so tables of one storage
+ * are spread over several disks. Folder 0 is the data folder of the storage,
+ * the following ones are extra folders in the order they are configured.
+ * The same arguments must always give the same folder.
+ */
+@FunctionalInterface
+public interface PlacementPolicy {
+    /**
+     * Spreads tables over all the folders evenly.
+     */
+    PlacementPolicy ROUND_ROBIN = (generation, level, folders) -> (int) (generation % folders);
+
+    /**
+     * Keeps flushed tables, which are the most recent ones, in the data folder, e.g. on a fast disk,
+     * and spreads compacted ones over the extra folders.
+     */
+    PlacementPolicy BY_LEVEL = (generation, level, folders) ->
+            level == 0 || folders == 1 ? 0 : 1 + (int) (generation % (folders - 1));
+
+    /**
+     * Picks the folder of a new table.
+     *
+     * @param generation generation of table
+     * @param level 0 for flushed tables and 1 for compacted ones
+     * @param folders amount of folders, at least 1
+     * @return index of folder from 0 to amount of folders exclusive
+     */
+    int folderOf(long generation, int level, int folders);
+}
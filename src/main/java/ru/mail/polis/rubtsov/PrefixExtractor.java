@@ -0,0 +1,55 @@
+package ru.mail.polis.rubtsov;
+
+import com.google.common.base.Preconditions;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Defines prefixes of keys which SSTables keep in their prefix filters.
+ * Every key starting with an extractable prefix must have the same extracted prefix,
+ * e.g. first N bytes of keys are fine, while the part before the first delimiter is not.
+ * Filters are used only by tables written with the extractor of the same name.
+ */
+public interface PrefixExtractor {
+    /**
+     * Extracts prefix of the key.
+     *
+     * @param key key of record or prefix being searched
+     * @return prefix or null if the key has none
+     */
+    @Nullable
+    ByteBuffer extract(@NotNull ByteBuffer key);
+
+    /**
+     * Returns name which identifies the way prefixes are extracted.
+     *
+     * @return name of the extractor
+     */
+    @NotNull
+    String getName();
+
+    /**
+     * Creates extractor of the first bytes of keys, shorter keys have no prefix.
+     *
+     * @param length length of prefix
+     * @return extractor
+     */
+    static PrefixExtractor fixedLength(final int length) {
+        Preconditions.checkArgument(length > 0, "Length of prefix must be positive");
+        return new PrefixExtractor() {
+            @Nullable
+            @Override
+            public ByteBuffer extract(@NotNull final ByteBuffer key) {
+                return key.remaining() < length ? null : key.duplicate().limit(key.position() + length).slice();
+            }
+
+            @NotNull
+            @Override
+            public String getName() {
+                return "fixed:" + length;
+            }
+        };
+    }
+}
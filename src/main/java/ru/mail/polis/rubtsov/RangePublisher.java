@@ -0,0 +1,156 @@
+package ru.mail.polis.rubtsov;
+
+import com.google.common.math.LongMath;
+import org.jetbrains.annotations.Nullable;
+import ru.mail.polis.CloseableIterator;
+import ru.mail.polis.Record;
+
+import java.nio.ByteBuffer;
+import java.util.Objects;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Flow;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Publisher of records of a range which emits them only as fast as subscriber requests.
+ * Each subscriber reads its own snapshot of the storage taken on its first request.
+ * Records are read in batches, one task of executor per batch, and the snapshot
+ * is closed as soon as the range is over, cancelled or failed.
+ */
+final class RangePublisher implements Flow.Publisher<Record> {
+    private final MyDAO dao;
+    private final ByteBuffer from;
+    private final ByteBuffer to;
+    private final Executor executor;
+    private final int batchSize;
+
+    RangePublisher(final MyDAO dao, final ByteBuffer from, @Nullable final ByteBuffer to,
+                   final Executor executor, final int batchSize) {
+        this.dao = dao;
+        this.from = from.duplicate();
+        this.to = to == null ? null : to.duplicate();
+        this.executor = executor;
+        this.batchSize = batchSize;
+    }
+
+    @Override
+    public void subscribe(final Flow.Subscriber<? super Record> subscriber) {
+        Objects.requireNonNull(subscriber);
+        subscriber.onSubscribe(new RangeSubscription(subscriber));
+    }
+
+    /**
+     * Serializes all the signals to subscriber: at most one task of subscription
+     * is running or scheduled at any moment.
+     */
+    private final class RangeSubscription implements Flow.Subscription, Runnable {
+        private final Flow.Subscriber<? super Record> subscriber;
+        private final AtomicLong demand = new AtomicLong();
+        private final AtomicInteger pendingSignals = new AtomicInteger();
+        private volatile boolean cancelled;
+        private volatile Throwable failure;
+        private Snapshot snapshot;
+        private CloseableIterator<Record> iterator;
+        private boolean done;
+
+        RangeSubscription(final Flow.Subscriber<? super Record> subscriber) {
+            this.subscriber = subscriber;
+        }
+
+        @Override
+        public void request(final long n) {
+            if (n <= 0) {
+                failure = new IllegalArgumentException("Non-positive request: " + n);
+            } else {
+                demand.accumulateAndGet(n, LongMath::saturatedAdd);
+            }
+            schedule();
+        }
+
+        @Override
+        public void cancel() {
+            cancelled = true;
+            schedule();
+        }
+
+        private void schedule() {
+            if (pendingSignals.getAndIncrement() == 0) {
+                execute();
+            }
+        }
+
+        private void execute() {
+            try {
+                executor.execute(this);
+            } catch (RejectedExecutionException e) {
+                failure = e;
+                run();
+            }
+        }
+
+        @Override
+        public void run() {
+            final int signals = pendingSignals.get();
+            emitBatch();
+            if (!done && demand.get() > 0) {
+                // Let other tasks run between batches
+                execute();
+            } else if (pendingSignals.addAndGet(-signals) != 0) {
+                execute();
+            }
+        }
+
+        private void emitBatch() {
+            if (done) {
+                return;
+            }
+            if (cancelled) {
+                finish();
+                return;
+            }
+            if (failure != null) {
+                finish();
+                subscriber.onError(failure);
+                return;
+            }
+            try {
+                if (iterator == null) {
+                    snapshot = dao.snapshot();
+                    iterator = snapshot.range(from, to);
+                }
+                final long requested = demand.get();
+                long emitted = 0;
+                while (emitted < Math.min(requested, batchSize) && iterator.hasNext() && !cancelled) {
+                    subscriber.onNext(iterator.next());
+                    emitted++;
+                }
+                if (requested != Long.MAX_VALUE) {
+                    demand.addAndGet(-emitted);
+                }
+                if (cancelled) {
+                    finish();
+                } else if (!iterator.hasNext()) {
+                    finish();
+                    subscriber.onComplete();
+                }
+            } catch (Exception e) {
+                finish();
+                subscriber.onError(e);
+            }
+        }
+
+        private void finish() {
+            done = true;
+            if (iterator != null) {
+                iterator.close();
+                iterator = null;
+            }
+            if (snapshot != null) {
+                snapshot.close();
+                snapshot = null;
+            }
+        }
+    }
+}
@@ -0,0 +1,138 @@
+package ru.mail.polis.rubtsov;
+
+import com.google.common.collect.Iterators;
+import org.jetbrains.annotations.Nullable;
+import ru.mail.polis.CloseableIterator;
+import ru.mail.polis.Iters;
+import ru.mail.polis.Record;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Queue;
+import java.util.Spliterator;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.function.Consumer;
+
+/**
+ * Spliterator over records of a range which splits it at the given keys,
+ * so every part does its own merged iteration over the tables.
+ * Parts can be split only until their iteration is started.
+ * Iterations of all the parts are closed together by {@link #close()}.
+ */
+final class RangeSpliterator implements Spliterator<Record> {
+    private final TableSet tables;
+    private final long sequence;
+    private ByteBuffer from;
+    private final ByteBuffer to;
+    private List<ByteBuffer> splitKeys;
+    private final Queue<CloseableIterator<Item>> iterations;
+    private Iterator<Record> iterator;
+
+    /**
+     * Creates a new spliterator.
+     *
+     * @param tables acquired tables which are kept until the iteration is over
+     * @param sequence greatest timestamp of visible records
+     * @param from the first key of range
+     * @param to the key following range or null if range is not bounded
+     * @param splitKeys ascending keys inside the range
+     */
+    RangeSpliterator(final TableSet tables, final long sequence, final ByteBuffer from,
+                     @Nullable final ByteBuffer to, final List<ByteBuffer> splitKeys) {
+        this(tables, sequence, from, to, splitKeys, new ConcurrentLinkedQueue<>());
+    }
+
+    private RangeSpliterator(final TableSet tables, final long sequence, final ByteBuffer from,
+                             @Nullable final ByteBuffer to, final List<ByteBuffer> splitKeys,
+                             final Queue<CloseableIterator<Item>> iterations) {
+        this.tables = tables;
+        this.sequence = sequence;
+        this.from = from;
+        this.to = to;
+        this.splitKeys = splitKeys;
+        this.iterations = iterations;
+    }
+
+    @Override
+    public boolean tryAdvance(final Consumer<? super Record> action) {
+        final Iterator<Record> records = records();
+        if (!records.hasNext()) {
+            return false;
+        }
+        action.accept(records.next());
+        return true;
+    }
+
+    @Override
+    public void forEachRemaining(final Consumer<? super Record> action) {
+        records().forEachRemaining(action);
+    }
+
+    private Iterator<Record> records() {
+        if (iterator == null) {
+            try {
+                final CloseableIterator<Item> items = tables.itemIterator(from, sequence);
+                iterations.add(items);
+                final Iterator<Item> bounded = to == null ? items : Iters.until(items, Item.bound(to));
+                final Iterator<Record> records = Iterators.transform(bounded, i -> Record.of(i.getKey(), i.getValue()));
+                // Tables are released as soon as the part is over
+                iterator = new ClosingIterator<>(records, items::close);
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+        }
+        return iterator;
+    }
+
+    /**
+     * Gives away the lower half of the remaining range.
+     */
+    @Nullable
+    @Override
+    public Spliterator<Record> trySplit() {
+        if (iterator != null || splitKeys.isEmpty()) {
+            return null;
+        }
+        final int middle = splitKeys.size() / 2;
+        final ByteBuffer splitKey = splitKeys.get(middle);
+        final Spliterator<Record> lowerHalf = new RangeSpliterator(tables, sequence, from, splitKey,
+                splitKeys.subList(0, middle), iterations);
+        from = splitKey;
+        splitKeys = splitKeys.subList(middle + 1, splitKeys.size());
+        return lowerHalf;
+    }
+
+    /**
+     * Closes iterations of this spliterator and of all the parts split from it.
+     */
+    void close() {
+        for (CloseableIterator<Item> i = iterations.poll(); i != null; i = iterations.poll()) {
+            i.close();
+        }
+    }
+
+    @Override
+    public long estimateSize() {
+        try {
+            return tables.estimateCount(from, to);
+        } catch (IOException e) {
+            return Long.MAX_VALUE;
+        }
+    }
+
+    @Override
+    public int characteristics() {
+        return ORDERED | SORTED | DISTINCT | NONNULL | IMMUTABLE;
+    }
+
+    @Nullable
+    @Override
+    public Comparator<? super Record> getComparator() {
+        // Records are ordered naturally
+        return null;
+    }
+}
@@ -0,0 +1,68 @@
+package ru.mail.polis.rubtsov;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Removal of all the keys from "from" (inclusive) until "to" (exclusive).
+ * It hides versions of the keys which are older than the tombstone itself.
+ */
+final class RangeTombstone {
+    private final ByteBuffer from;
+    private final ByteBuffer to;
+    private final long timeStamp;
+
+    RangeTombstone(final ByteBuffer from, final ByteBuffer to, final long timeStamp) {
+        this.from = from;
+        this.to = to;
+        this.timeStamp = timeStamp;
+    }
+
+    static RangeTombstone of(final ByteBuffer from, final ByteBuffer to) {
+        return new RangeTombstone(from.duplicate(), to.duplicate(), TimeUtils.getCurrentTime());
+    }
+
+    ByteBuffer getFrom() {
+        return from;
+    }
+
+    ByteBuffer getTo() {
+        return to;
+    }
+
+    long getTimeStamp() {
+        return timeStamp;
+    }
+
+    /**
+     * Returns size of tombstone in serialized form in bytes.
+     *
+     * @return size in bytes
+     */
+    int getSizeInBytes() {
+        return Integer.BYTES * 2 + from.remaining() + to.remaining() + Long.BYTES;
+    }
+
+    /**
+     * Serializes tombstone as [from size][from][to size][to][timestamp].
+     *
+     * @param buffer destination
+     */
+    void writeTo(final ByteBuffer buffer) {
+        buffer.putInt(from.remaining()).put(from.duplicate());
+        buffer.putInt(to.remaining()).put(to.duplicate());
+        buffer.putLong(timeStamp);
+    }
+
+    static RangeTombstone readFrom(final ByteBuffer buffer) {
+        final ByteBuffer from = readKey(buffer);
+        final ByteBuffer to = readKey(buffer);
+        return new RangeTombstone(from, to, buffer.getLong());
+    }
+
+    private static ByteBuffer readKey(final ByteBuffer buffer) {
+        final int size = buffer.getInt();
+        final ByteBuffer key = buffer.slice().limit(size).asReadOnlyBuffer();
+        buffer.position(buffer.position() + size);
+        return key;
+    }
+}
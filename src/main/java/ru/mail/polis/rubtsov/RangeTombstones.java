@@ -0,0 +1,92 @@
+package ru.mail.polis.rubtsov;
+
+import com.google.common.collect.Iterators;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.NavigableMap;
+import java.util.SortedSet;
+import java.util.TreeMap;
+import java.util.TreeSet;
+
+/**
+ * Range tombstones of several tables cut into non-overlapping fragments,
+ * so the newest tombstone covering a key is found by a single lookup.
+ */
+final class RangeTombstones {
+    static final RangeTombstones EMPTY = new RangeTombstones(Collections.emptyNavigableMap());
+    private static final long NONE = Long.MIN_VALUE;
+
+    // The first key of fragment -> timestamp of the newest tombstone covering it
+    private final NavigableMap<ByteBuffer, Long> fragments;
+
+    private RangeTombstones(final NavigableMap<ByteBuffer, Long> fragments) {
+        this.fragments = fragments;
+    }
+
+    /**
+     * Cuts tombstones visible at the moment of given sequence number into fragments.
+     *
+     * @param tombstones tombstones in any order
+     * @param sequence greatest timestamp of visible tombstones
+     * @return fragments
+     */
+    static RangeTombstones of(final Collection<RangeTombstone> tombstones, final long sequence) {
+        final NavigableMap<ByteBuffer, List<Long>> starts = new TreeMap<>();
+        final NavigableMap<ByteBuffer, List<Long>> ends = new TreeMap<>();
+        for (final RangeTombstone t : tombstones) {
+            if (t.getTimeStamp() <= sequence && t.getFrom().compareTo(t.getTo()) < 0) {
+                starts.computeIfAbsent(t.getFrom(), k -> new ArrayList<>()).add(t.getTimeStamp());
+                ends.computeIfAbsent(t.getTo(), k -> new ArrayList<>()).add(t.getTimeStamp());
+            }
+        }
+        if (starts.isEmpty()) {
+            return EMPTY;
+        }
+        final NavigableMap<ByteBuffer, Long> fragments = new TreeMap<>();
+        // Timestamps of tombstones covering the current fragment with their amounts
+        final NavigableMap<Long, Integer> active = new TreeMap<>();
+        final SortedSet<ByteBuffer> bounds = new TreeSet<>(starts.keySet());
+        bounds.addAll(ends.keySet());
+        for (final ByteBuffer bound : bounds) {
+            for (final long timeStamp : ends.getOrDefault(bound, Collections.emptyList())) {
+                active.computeIfPresent(timeStamp, (ts, count) -> count == 1 ? null : count - 1);
+            }
+            for (final long timeStamp : starts.getOrDefault(bound, Collections.emptyList())) {
+                active.merge(timeStamp, 1, Integer::sum);
+            }
+            fragments.put(bound, active.isEmpty() ? NONE : active.lastKey());
+        }
+        return new RangeTombstones(fragments);
+    }
+
+    boolean isEmpty() {
+        return fragments.isEmpty();
+    }
+
+    /**
+     * Checks whether the item is removed by a newer tombstone.
+     *
+     * @param item version of a key
+     * @return true if item is hidden
+     */
+    boolean covers(final Item item) {
+        final Map.Entry<ByteBuffer, Long> fragment = fragments.floorEntry(item.getKey());
+        return fragment != null && item.getTimeStamp() < fragment.getValue();
+    }
+
+    /**
+     * Drops versions removed by newer tombstones.
+     *
+     * @param items versions of keys
+     * @return iterator over the rest of versions
+     */
+    Iterator<Item> filter(final Iterator<Item> items) {
+        return isEmpty() ? items : Iterators.filter(items, i -> !covers(i));
+    }
+}
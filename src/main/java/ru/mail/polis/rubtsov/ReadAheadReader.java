@@ -0,0 +1,213 @@
+package ru.mail.polis.rubtsov;
+
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import org.jetbrains.annotations.Nullable;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Sequential reader of a file which reads it by large chunks through positional reads
+ * instead of mapping, the next chunk is read in background while the current one is consumed.
+ * Two halves of a buffer are reused for all the chunks, so bytes are copied out of them.
+ * Direct buffers are taken from a bounded pool shared by all the readers and returned on close.
+ * Readers which find the pool empty read by single blocks into heap buffers,
+ * so many open scans exhaust neither direct memory nor heap.
+ */
+final class ReadAheadReader implements Closeable {
+    static final int CHUNK_SIZE = 1024 * 1024;
+    static final int POOLED_BUFFERS = 8;
+    private static final BlockingQueue<ByteBuffer> buffers = new ArrayBlockingQueue<>(POOLED_BUFFERS);
+    private static final AtomicInteger allocatedBuffers = new AtomicInteger();
+    private static final ThreadPoolExecutor prefetcher = prefetcher();
+
+    private final String fileName;
+    private final FileChannel channel;
+    private final long end;
+    private final BlockChecksums checksums;
+    private final int chunkSize;
+    // Holds both chunks, it is returned to the pool on close
+    private final ByteBuffer buffer;
+    private ByteBuffer current;
+    private long currentStart;
+    private CompletableFuture<ByteBuffer> pending;
+    private long pendingStart;
+    private boolean closed;
+
+    /**
+     * Opens the file and starts reading the first chunk.
+     *
+     * @param file file to read
+     * @param start the first byte which will be read
+     * @param end the byte following the last one which will be read
+     * @param dataSize size of checksummed data
+     * @param checksums checksums of blocks which chunks are verified by or null if file has none
+     */
+    ReadAheadReader(final File file, final long start, final long end, final long dataSize,
+                    @Nullable final BlockChecksums checksums) throws IOException {
+        this.fileName = file.getName();
+        this.channel = FileChannel.open(file.toPath(), StandardOpenOption.READ);
+        this.checksums = checksums;
+        // Chunks consist of whole blocks, so they are verified at once
+        final int blockSize = checksums == null ? BlockChecksums.BLOCK_SIZE : checksums.getBlockSize();
+        this.end = checksums == null ? end : Math.min(dataSize, (end + blockSize - 1) / blockSize * blockSize);
+        final ByteBuffer pooled = blockSize <= CHUNK_SIZE ? takeBuffer() : null;
+        this.chunkSize = pooled == null ? blockSize : CHUNK_SIZE / blockSize * blockSize;
+        this.buffer = pooled == null ? ByteBuffer.allocate(chunkSize * 2) : pooled;
+        this.current = buffer.duplicate().limit(chunkSize).slice().limit(0);
+        this.currentStart = start - start % blockSize;
+        this.pendingStart = currentStart;
+        this.pending = prefetch(buffer.duplicate().position(chunkSize).limit(chunkSize * 2).slice(), pendingStart);
+    }
+
+    /**
+     * Creates executor which runs at most one prefetch per processor, the others wait in the queue.
+     */
+    private static ThreadPoolExecutor prefetcher() {
+        final int threads = Runtime.getRuntime().availableProcessors();
+        final ThreadPoolExecutor executor = new ThreadPoolExecutor(threads, threads, 1, TimeUnit.MINUTES,
+                new LinkedBlockingQueue<>(),
+                new ThreadFactoryBuilder().setNameFormat("read-ahead-%d").setDaemon(true).build());
+        executor.allowCoreThreadTimeOut(true);
+        return executor;
+    }
+
+    /**
+     * Takes buffer of two chunks from the pool, allocating it unless the pool is full.
+     *
+     * @return pooled buffer or null if every pooled buffer is used
+     */
+    @Nullable
+    private static ByteBuffer takeBuffer() {
+        final ByteBuffer pooled = buffers.poll();
+        if (pooled != null) {
+            return pooled;
+        }
+        if (allocatedBuffers.incrementAndGet() <= POOLED_BUFFERS) {
+            return ByteBuffer.allocateDirect(CHUNK_SIZE * 2);
+        }
+        allocatedBuffers.decrementAndGet();
+        return null;
+    }
+
+    private static void returnBuffer(final ByteBuffer buffer) {
+        // Only pooled buffers are direct, so the pool always has room for them
+        if (buffer.isDirect()) {
+            buffers.add(buffer);
+        }
+    }
+
+    private CompletableFuture<ByteBuffer> prefetch(final ByteBuffer chunk, final long start) {
+        return CompletableFuture.supplyAsync(() -> {
+            try {
+                return fill(chunk, start);
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+        }, prefetcher);
+    }
+
+    private ByteBuffer fill(final ByteBuffer chunk, final long start) throws IOException {
+        chunk.clear().limit((int) Math.min(chunkSize, end - start));
+        while (chunk.hasRemaining()) {
+            if (channel.read(chunk, start + chunk.position()) < 0) {
+                throw new IOException("File " + fileName + " is cut at " + (start + chunk.position()));
+            }
+        }
+        return chunk.flip();
+    }
+
+    private void verify(final ByteBuffer chunk, final long start) {
+        final int blockSize = checksums.getBlockSize();
+        for (int from = 0; from < chunk.limit(); from += blockSize) {
+            final int block = (int) ((start + from) / blockSize);
+            if (!checksums.verify(block, chunk.duplicate()
+                    .position(from)
+                    .limit(Math.min(chunk.limit(), from + blockSize)))) {
+                throw new UncheckedIOException(
+                        new IOException("Checksum mismatch in block " + block + " of file " + fileName));
+            }
+        }
+    }
+
+    /**
+     * Switches to the prefetched chunk and starts reading the following one into the released buffer.
+     */
+    private void advance() throws IOException {
+        if (pending == null) {
+            throw new IOException("Read beyond the end of file " + fileName);
+        }
+        final ByteBuffer filled;
+        try {
+            filled = pending.join();
+        } catch (CompletionException e) {
+            if (e.getCause() instanceof UncheckedIOException) {
+                throw ((UncheckedIOException) e.getCause()).getCause();
+            }
+            throw e;
+        }
+        if (checksums != null) {
+            verify(filled, pendingStart);
+        }
+        final ByteBuffer released = current;
+        current = filled;
+        currentStart = pendingStart;
+        pendingStart += chunkSize;
+        pending = pendingStart < end ? prefetch(released, pendingStart) : null;
+    }
+
+    /**
+     * Reads bytes which must follow the previously read ones.
+     *
+     * @param offset position of the first byte in file
+     * @param size amount of bytes
+     * @return buffer which isn't changed by the following reads
+     * @throws IOException if file can't be read
+     * @throws UncheckedIOException if bytes are corrupted
+     */
+    ByteBuffer read(final long offset, final int size) throws IOException {
+        final ByteBuffer result = ByteBuffer.allocate(size);
+        long position = offset;
+        while (result.hasRemaining()) {
+            while (position >= currentStart + current.limit()) {
+                advance();
+            }
+            final int from = (int) (position - currentStart);
+            final int chunk = Math.min(result.remaining(), current.limit() - from);
+            result.put(current.duplicate().position(from).limit(from + chunk));
+            position += chunk;
+        }
+        return result.flip();
+    }
+
+    /**
+     * Closes the file and returns the buffer to the pool as soon as the chunk being read is done.
+     */
+    @Override
+    public void close() throws IOException {
+        if (closed) {
+            return;
+        }
+        closed = true;
+        if (pending == null) {
+            returnBuffer(buffer);
+        } else {
+            pending.whenComplete((chunk, e) -> returnBuffer(buffer));
+            pending = null;
+        }
+        channel.close();
+    }
+}
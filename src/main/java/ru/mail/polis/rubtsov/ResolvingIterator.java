@@ -0,0 +1,84 @@
+package ru.mail.polis.rubtsov;
+
+import com.google.common.collect.Iterators;
+import com.google.common.collect.PeekingIterator;
+import org.jetbrains.annotations.Nullable;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.List;
+
+/**
+ * Collapses versions of each key into the newest one. Merge operands on top of the versions
+ * are combined with the value below them, so the result is a value, a tombstone
+ * or, if the versions may be incomplete, a single operand.
+ */
+final class ResolvingIterator implements Iterator<Item> {
+    private final PeekingIterator<Item> versions;
+    private final MergeOperator mergeOperator;
+    private final boolean complete;
+
+    /**
+     * Creates a new iterator.
+     *
+     * @param versions versions of keys ordered by {@link Item#COMPARATOR}
+     * @param mergeOperator operator combining operands or null if the storage has none
+     * @param complete whether the versions include the oldest data, so operands without
+     *                 a value below them are applied to nothing rather than combined together
+     */
+    ResolvingIterator(final Iterator<Item> versions, @Nullable final MergeOperator mergeOperator,
+                      final boolean complete) {
+        this.versions = Iterators.peekingIterator(versions);
+        this.mergeOperator = mergeOperator;
+        this.complete = complete;
+    }
+
+    @Override
+    public boolean hasNext() {
+        return versions.hasNext();
+    }
+
+    @Override
+    public Item next() {
+        final Item newest = versions.next();
+        final ByteBuffer key = newest.getKey();
+        if (!newest.isOperand()) {
+            skipOlder(key);
+            return newest;
+        }
+        final List<ByteBuffer> operands = new ArrayList<>();
+        operands.add(newest.getValue().asReadOnlyBuffer());
+        Item base = null;
+        while (base == null && versions.hasNext() && versions.peek().getKey().equals(key)) {
+            final Item older = versions.next();
+            if (older.isOperand()) {
+                operands.add(older.getValue().asReadOnlyBuffer());
+            } else {
+                base = older;
+            }
+        }
+        skipOlder(key);
+        if (base == null && !complete && operands.size() == 1) {
+            return newest;
+        }
+        if (mergeOperator == null) {
+            throw new IllegalStateException("Merge operator is not set");
+        }
+        Collections.reverse(operands);
+        if (base == null && !complete) {
+            return Item.operand(key, mergeOperator.partialMerge(key.asReadOnlyBuffer(), operands),
+                    newest.getTimeStamp());
+        }
+        final ByteBuffer existing = base == null || base.isRemoved() ? null : base.getValue().asReadOnlyBuffer();
+        return Item.ofTTL(key, mergeOperator.fullMerge(key.asReadOnlyBuffer(), existing, operands),
+                newest.getTimeStamp(), Item.NO_TTL);
+    }
+
+    private void skipOlder(final ByteBuffer key) {
+        while (versions.hasNext() && versions.peek().getKey().equals(key)) {
+            versions.next();
+        }
+    }
+}
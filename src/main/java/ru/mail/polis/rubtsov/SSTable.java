@@ -1,128 +1,548 @@
 package ru.mail.polis.rubtsov;
 
 import com.google.common.base.Preconditions;
+import com.google.common.base.Throwables;
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import com.google.common.hash.BloomFilter;
+import com.google.common.hash.Funnel;
+import com.google.common.hash.HashFunction;
+import com.google.common.hash.Hashing;
+import com.google.common.hash.PrimitiveSink;
+import com.google.common.util.concurrent.RateLimiter;
+import com.google.common.util.concurrent.UncheckedExecutionException;
+import org.jetbrains.annotations.Nullable;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import ru.mail.polis.CloseableIterator;
 
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
 import java.io.File;
 import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
+import java.lang.reflect.Field;
 import java.nio.ByteBuffer;
 import java.nio.ByteOrder;
+import java.nio.IntBuffer;
 import java.nio.LongBuffer;
+import java.nio.MappedByteBuffer;
 import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
 import java.nio.file.Files;
 import java.nio.file.Path;
 import java.nio.file.Paths;
 import java.nio.file.StandardOpenOption;
 import java.nio.file.StandardCopyOption;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
 import java.util.Iterator;
+import java.util.LinkedHashMap;
 import java.util.List;
-import java.util.UUID;
+import java.util.Map;
 import java.util.NoSuchElementException;
+import java.util.TreeMap;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Consumer;
+import java.util.function.ToIntFunction;
+import java.util.zip.CRC32C;
 
 /**
  * Part of storage located at disk.
  */
 final class SSTable {
     private static final String TEMP_FILE_EXTENSTION = ".tmp";
+    private static final String CORRUPTED_FILE_EXTENSTION = ".corrupted";
     static final String VALID_FILE_EXTENSTION = ".dat";
 
-    private final ByteBuffer records;
-    private final LongBuffer offsets;
-    private final long recordsAmount;
+    private static final long MAGIC = 0x4C534D5441424C45L;
+    private static final int UNCHECKED_FORMAT_VERSION = 1;
+    private static final int FIXED_FORMAT_VERSION = 2;
+    private static final int FORMAT_VERSION = 3;
+    private static final int UNCHECKED_FOOTER_TAIL_SIZE = Integer.BYTES * 2 + Long.BYTES;
+    private static final int FOOTER_TAIL_SIZE = Integer.BYTES * 3 + Long.BYTES;
+    private static final byte META_SECTION = 1;
+    private static final byte PREFIX_FILTER_SECTION = 2;
+    private static final byte RANGE_TOMBSTONES_SECTION = 3;
+    private static final byte CHECKSUMS_SECTION = 4;
+    private static final byte VALUE_LOG_SECTION = 5;
+    private static final byte BASE_TIMESTAMP_SECTION = 6;
+    private static final byte HASH_INDEX_SECTION = 7;
+    private static final double PREFIX_FILTER_FPP = 0.01;
+    private static final HashFunction KEY_HASH = Hashing.murmur3_32();
+    private static final double HASH_INDEX_MAX_LOAD = 0.75;
+    // Kind of live record is kept in the top byte of its value size by fixed format and in flags by compact one
+    private static final int KIND_SHIFT = Long.SIZE - Byte.SIZE;
+    private static final long VALUE_KIND = 0;
+    private static final long OPERAND_KIND = 1;
+    private static final long POINTER_KIND = 2;
+    private static final int REMOVED_FLAG = 1;
+    private static final int TTL_FLAG = 1 << 1;
+    private static final int FLAGS_KIND_SHIFT = 2;
+    private static final int MIN_COMPACT_RECORD_SIZE = 3;
+    private static final int MIN_FIXED_RECORD_SIZE = 21;
+
     private final File tableFile;
+    private final long generation;
+    private final int level;
+    private final long sequence;
+    private final TableMeta meta;
+    private final ValueLog valueLog;
+    private final ContentCache contentCache;
+    private final AtomicInteger references = new AtomicInteger(1);
+    private final CompletableFuture<Void> released = new CompletableFuture<>();
+    private final AtomicBoolean corrupted = new AtomicBoolean();
+    private volatile boolean quarantined;
+    // Kept when the file is unmapped
+    private volatile Summary summary;
+    private static final Logger logger = LoggerFactory.getLogger(SSTable.class);
+    private static final MethodHandle invokeCleaner = findCleaner();
 
     /**
-     * Creates a new representation of data file.
+     * Creates a new representation of data file. If meta of table is known
+     * the file is not touched until the table is used for the first time.
+     * Mapped file is kept by the cache and it is mapped again after eviction.
+     * Table is referenced by the storage until it is released.
      *
      * @param tableFile file with data
+     * @param generation sequence number of table, newer tables have greater ones
+     * @param level 0 for flushed tables and 1 for compacted ones
+     * @param sequence timestamp of every record of ingested table or 0 if records keep their own ones
+     * @param knownMeta meta of table if it is already known
+     * @param valueLog log which separated values of table are read from
+     * @param contentCache cache of mapped files
      * @throws IllegalArgumentException if file corrupted
      */
-    SSTable(final File tableFile) throws IOException {
+    SSTable(final File tableFile, final long generation, final int level, final long sequence,
+            @Nullable final TableMeta knownMeta, final ValueLog valueLog,
+            final ContentCache contentCache) throws IOException {
         this.tableFile = tableFile;
-        try (FileChannel fileChannel = (FileChannel) Files.newByteChannel(
-                tableFile.toPath(), StandardOpenOption.READ)) {
-            Preconditions.checkArgument(fileChannel.size() >= Long.BYTES);
-            final ByteBuffer mappedByteBuffer = fileChannel.map(FileChannel.MapMode.READ_ONLY,
-                    0, tableFile.length()).order(ByteOrder.BIG_ENDIAN);
-            Preconditions.checkArgument(mappedByteBuffer.limit() < Integer.MAX_VALUE);
-            recordsAmount = mappedByteBuffer.getLong(mappedByteBuffer.limit() - Long.BYTES);
-            Preconditions.checkArgument(mappedByteBuffer.limit() > recordsAmount * 21);
-            offsets = mappedByteBuffer.duplicate()
-                    .position((int) (mappedByteBuffer.limit() - Long.BYTES * (recordsAmount + 2)))
-                    .limit(mappedByteBuffer.limit() - Long.BYTES)
-                    .slice()
-                    .asLongBuffer();
-            Preconditions.checkArgument(offsets.limit() == recordsAmount + 1);
-            records = mappedByteBuffer.duplicate()
-                    .limit((int) (mappedByteBuffer.limit() - Long.BYTES * (recordsAmount + 2)))
-                    .slice()
-                    .asReadOnlyBuffer();
+        this.generation = generation;
+        this.level = level;
+        this.sequence = sequence;
+        this.valueLog = valueLog;
+        this.contentCache = contentCache;
+        if (knownMeta == null) {
+            final Content loaded = new Content(tableFile, this::markCorrupted, sequence, valueLog,
+                    contentCache.detached);
+            final ByteBuffer metaSection = loaded.sections.get(META_SECTION);
+            // Meta written by an external writer doesn't know the timestamps of ingested records
+            meta = metaSection == null || sequence > 0
+                    ? loaded.collectMeta(sequence > 0) : TableMeta.readFrom(metaSection);
+            summary = loaded.summary;
+            contentCache.contents.put(this, loaded);
+        } else {
+            meta = knownMeta;
         }
     }
 
+    /**
+     * Maps the file unless it is already mapped, which may evict another table from the cache.
+     * The mapping is kept until the returned content is released.
+     *
+     * @return acquired content of the table
+     * @throws IOException if file can't be read or it is corrupted
+     */
+    private Content content() throws IOException {
+        while (true) {
+            final Content c;
+            try {
+                c = contentCache.contents.get(this, this::load);
+            } catch (ExecutionException | UncheckedExecutionException e) {
+                Throwables.throwIfInstanceOf(e.getCause(), IOException.class);
+                Throwables.throwIfUnchecked(e.getCause());
+                throw new IOException("Can't read file: " + tableFile.getName(), e.getCause());
+            }
+            // Fails only if the content was evicted and unmapped concurrently, then it is mapped again
+            if (c.acquire()) {
+                return c;
+            }
+        }
+    }
+
+    private Content load() throws IOException {
+        final Content loaded;
+        try {
+            loaded = new Content(tableFile, this::markCorrupted, sequence, valueLog, contentCache.detached);
+        } catch (IllegalArgumentException e) {
+            markCorrupted();
+            throw new IOException("File corrupted: " + tableFile.getName(), e);
+        }
+        summary = loaded.summary;
+        return loaded;
+    }
+
+    /**
+     * Returns parts of content which are kept after the file is evicted from the cache.
+     *
+     * @return summary of the table
+     * @throws IOException if file can't be read or it is corrupted
+     */
+    private Summary summary() throws IOException {
+        final Summary loaded = summary;
+        if (loaded != null) {
+            return loaded;
+        }
+        final Content c = content();
+        c.release();
+        return c.summary;
+    }
+
+    private static Map<Byte, ByteBuffer> readSections(final ByteBuffer footer) {
+        final Map<Byte, ByteBuffer> sections = new HashMap<>();
+        while (footer.hasRemaining()) {
+            final byte tag = footer.get();
+            final int size = footer.getInt();
+            Preconditions.checkArgument(size >= 0 && size <= footer.remaining());
+            sections.put(tag, footer.slice().limit(size));
+            footer.position(footer.position() + size);
+        }
+        return sections;
+    }
+
     /**
      * Writes new SSTable on disk.
      * Format:
-     * { [key size][key][timestamp] (if value exists [value size][value]) [time to live] } * records amount
-     * at the end of file - [array of longs that contains offsets][offsets number]
+     * { [flags][key size][key][timestamp delta] (if value exists [value size][value or pointer])
+     * (if flags have it [time to live]) } * records amount
+     * then - [array of ints that contains offsets][offsets number]
+     * at the end of file - { [section tag][section size][section] } * sections amount
+     * [checksum of sections][sections size][format version][magic]
+     * Records and offsets are covered by checksums of blocks kept in a section.
+     * Optional hash index section is [slots amount] { [hash of key][record number + 1 or 0 if slot is empty] } * slots,
+     * keys are put by linear probing.
+     * Sizes, time to live and timestamp deltas from the first record kept in a section are varints,
+     * flags are removal, presence of time to live and kind of value.
+     * Format of version 2 is { [key size][key][timestamp] (if value exists [kind and value size][value])
+     * [time to live] } * records amount, then [array of longs that contains offsets][offsets number].
      *
      * @param items iterator of data that should be written
+     * @param rangeTombstones range tombstones that should be written
      * @param ssTablesDir data files directory
+     * @param generation generation of new table
+     * @param prefixExtractor extractor of prefixes put into prefix filter or null if table has no filter
+     * @param hashIndex whether table has hash index of keys
      * @return path of new file
      * @throws IOException if something went wrong during writing
      */
-    static Path writeNewTable(final Iterator<Item> items, final File ssTablesDir) throws IOException {
-        final List<Long> offsets = new ArrayList<>();
-        long offset = 0;
-        offsets.add(offset);
-        final String uuid = UUID.randomUUID().toString();
-        final String fileName = uuid + TEMP_FILE_EXTENSTION;
-        final String fileNameComplete = uuid + VALID_FILE_EXTENSTION;
-        final Path path = ssTablesDir.toPath().resolve(Paths.get(fileName));
-        final Path pathComplete = ssTablesDir.toPath().resolve(Paths.get(fileNameComplete));
-        try (FileChannel fileChannel = (FileChannel) Files.newByteChannel(path,
-                StandardOpenOption.WRITE, StandardOpenOption.CREATE)) {
+    static Path writeNewTable(final Iterator<Item> items, final Collection<RangeTombstone> rangeTombstones,
+                              final File ssTablesDir, final long generation,
+                              @Nullable final PrefixExtractor prefixExtractor,
+                              final boolean hashIndex) throws IOException {
+        return commitTable(writeTempTable(items, rangeTombstones, ssTablesDir, generation, prefixExtractor,
+                hashIndex));
+    }
+
+    /**
+     * Writes new SSTable on disk under a temporary name, so it is ignored
+     * until {@link #commitTable(Path)} is called.
+     *
+     * @param items iterator of data that should be written
+     * @param rangeTombstones range tombstones that should be written
+     * @param ssTablesDir data files directory
+     * @param generation generation of new table
+     * @param prefixExtractor extractor of prefixes put into prefix filter or null if table has no filter
+     * @param hashIndex whether table has hash index of keys
+     * @return path of new temporary file
+     * @throws IOException if something went wrong during writing
+     */
+    static Path writeTempTable(final Iterator<Item> items, final Collection<RangeTombstone> rangeTombstones,
+                               final File ssTablesDir, final long generation,
+                               @Nullable final PrefixExtractor prefixExtractor,
+                               final boolean hashIndex) throws IOException {
+        final Path path = tempFile(ssTablesDir, generation);
+        try (Writer writer = new Writer(path, prefixExtractor, hashIndex, System.currentTimeMillis())) {
             while (items.hasNext()) {
-                final Item item = items.next();
-                final ByteBuffer key = item.getKey();
-                final ByteBuffer value = item.getValue();
-                final boolean removed = item.isRemoved();
-                final int itemSize = (int) item.getSizeInBytes(removed);
-                final ByteBuffer row = ByteBuffer.allocate(itemSize);
-                row.putInt(key.remaining()).put(key.duplicate());
-                if (removed) {
-                    row.putLong(-item.getTimeStamp());
-                } else {
-                    row.putLong(item.getTimeStamp()).putLong(value.remaining()).put(value.duplicate());
-                }
-                row.putLong(item.getTimeToLive());
-                offset += itemSize;
-                offsets.add(offset);
-                row.flip();
-                fileChannel.write(row);
+                writer.add(items.next());
+            }
+            writer.finish(rangeTombstones);
+        }
+        return path;
+    }
+
+    /**
+     * Writes records of a new table one by one in ascending order.
+     */
+    static final class Writer implements Closeable {
+        private final FileChannel fileChannel;
+        private final PrefixExtractor prefixExtractor;
+        private final long now;
+        private final List<Integer> offsets = new ArrayList<>();
+        private final TableMeta.Builder meta = new TableMeta.Builder();
+        // Keys with the same prefix are adjacent, so each prefix is collected once
+        private final List<ByteBuffer> prefixes = new ArrayList<>();
+        private final BlockChecksums.Builder checksums = new BlockChecksums.Builder();
+        // Hashes of keys by record numbers or null if table has no hash index
+        private final List<Integer> keyHashes;
+        // Bytes of value log records referenced by the table
+        private final Map<Long, Long> valueLogRefs = new TreeMap<>();
+        private int offset;
+        private long baseTimeStamp;
+
+        /**
+         * Creates the file, an existing one is overwritten.
+         *
+         * @param path path of new file
+         * @param prefixExtractor extractor of prefixes put into prefix filter or null if table has no filter
+         * @param hashIndex whether table has hash index of keys
+         * @param now moment in millis records expired before which are written as removed
+         */
+        Writer(final Path path, @Nullable final PrefixExtractor prefixExtractor, final boolean hashIndex,
+               final long now) throws IOException {
+            this.fileChannel = FileChannel.open(path,
+                    StandardOpenOption.WRITE, StandardOpenOption.CREATE, StandardOpenOption.TRUNCATE_EXISTING);
+            this.prefixExtractor = prefixExtractor;
+            this.keyHashes = hashIndex ? new ArrayList<>() : null;
+            this.now = now;
+            offsets.add(offset);
+        }
+
+        /**
+         * Appends the record, its key must follow keys of the previous ones.
+         *
+         * @param item record
+         */
+        void add(final Item item) throws IOException {
+            final ByteBuffer key = item.getKey();
+            final ByteBuffer value = item.getStoredValue();
+            final boolean removed = item.isRemoved(now);
+            final int itemSize = (int) item.getSizeInBytes(removed);
+            final ByteBuffer prefix = prefixExtractor == null ? null : prefixExtractor.extract(key);
+            if (prefix != null && (prefixes.isEmpty() || !prefixes.get(prefixes.size() - 1).equals(prefix))) {
+                prefixes.add(ByteBuffer.allocate(prefix.remaining()).put(prefix.duplicate()).flip());
+            }
+            if (offsets.size() == 1) {
+                baseTimeStamp = item.getTimeStamp();
+            }
+            if (keyHashes != null) {
+                keyHashes.add(hash(key));
+            }
+            int flags = item.hasTTL() ? TTL_FLAG : 0;
+            if (removed) {
+                flags |= REMOVED_FLAG;
+            } else if (item.isSeparated()) {
+                flags |= POINTER_KIND << FLAGS_KIND_SHIFT;
+                valueLogRefs.merge(ValueLog.fileId(value), (long) ValueLog.recordSize(value), Long::sum);
+            } else if (item.isOperand()) {
+                flags |= OPERAND_KIND << FLAGS_KIND_SHIFT;
             }
-            final ByteBuffer offsetsByteBuffer = ByteBuffer.allocate((offsets.size() + 1) * Long.BYTES);
-            for (final Long i : offsets) {
-                offsetsByteBuffer.putLong(i);
+            // Compact record is never longer than fixed one by more than two longs
+            final ByteBuffer row = ByteBuffer.allocate(itemSize + Long.BYTES * 2);
+            row.put((byte) flags);
+            putVarLong(row, key.remaining());
+            row.put(key.duplicate());
+            putVarLong(row, zigZag(item.getTimeStamp() - baseTimeStamp));
+            if (!removed) {
+                putVarLong(row, value.remaining());
+                row.put(value.duplicate());
+            }
+            if (item.hasTTL()) {
+                putVarLong(row, item.getTimeToLive());
+            }
+            offset = Math.addExact(offset, row.position());
+            offsets.add(offset);
+            row.flip();
+            meta.add(item, removed, row.remaining());
+            checksums.update(row);
+            write(row);
+        }
+
+        /**
+         * Writes the index and the footer after the last record.
+         *
+         * @param rangeTombstones range tombstones that should be written
+         */
+        void finish(final Collection<RangeTombstone> rangeTombstones) throws IOException {
+            final ByteBuffer offsetsByteBuffer = ByteBuffer.allocate(offsets.size() * Integer.BYTES + Long.BYTES);
+            for (final int i : offsets) {
+                offsetsByteBuffer.putInt(i);
             }
             offsetsByteBuffer.putLong(offsets.size() - 1);
             offsetsByteBuffer.flip();
-            fileChannel.write(offsetsByteBuffer);
-            Files.move(path, pathComplete, StandardCopyOption.ATOMIC_MOVE);
+            checksums.update(offsetsByteBuffer);
+            write(offsetsByteBuffer);
+            rangeTombstones.forEach(meta::add);
+            final Map<Byte, ByteBuffer> sections = new LinkedHashMap<>();
+            sections.put(META_SECTION, serialize(meta.build()));
+            sections.put(BASE_TIMESTAMP_SECTION, ByteBuffer.allocate(Long.BYTES).putLong(0, baseTimeStamp));
+            if (!rangeTombstones.isEmpty()) {
+                sections.put(RANGE_TOMBSTONES_SECTION, serialize(rangeTombstones));
+            }
+            if (prefixExtractor != null) {
+                sections.put(PREFIX_FILTER_SECTION, serialize(prefixExtractor.getName(), prefixes));
+            }
+            if (!valueLogRefs.isEmpty()) {
+                sections.put(VALUE_LOG_SECTION, serialize(valueLogRefs));
+            }
+            if (keyHashes != null) {
+                sections.put(HASH_INDEX_SECTION, serializeHashIndex(keyHashes));
+            }
+            sections.put(CHECKSUMS_SECTION, checksums.build());
+            write(footer(sections));
+        }
+
+        private void write(final ByteBuffer buffer) throws IOException {
+            while (buffer.hasRemaining()) {
+                fileChannel.write(buffer);
+            }
+        }
+
+        @Override
+        public void close() throws IOException {
+            fileChannel.close();
         }
-        return pathComplete;
     }
 
-    private ByteBuffer getRecord(final long index) {
-        final long offset = offsets.get((int) index);
-        return records.duplicate()
-                .position((int) offset)
-                .limit((int) offsets.get((int) index + 1))
-                .slice()
-                .asReadOnlyBuffer();
+    private static ByteBuffer serialize(final TableMeta meta) {
+        final ByteBuffer buffer = ByteBuffer.allocate(meta.getSerializedSize());
+        meta.writeTo(buffer);
+        return buffer.flip();
+    }
+
+    /**
+     * Serializes range tombstones as [amount] { [tombstone] } * amount.
+     */
+    private static ByteBuffer serialize(final Collection<RangeTombstone> rangeTombstones) {
+        int size = Integer.BYTES;
+        for (final RangeTombstone t : rangeTombstones) {
+            size += t.getSizeInBytes();
+        }
+        final ByteBuffer buffer = ByteBuffer.allocate(size).putInt(rangeTombstones.size());
+        rangeTombstones.forEach(t -> t.writeTo(buffer));
+        return buffer.flip();
+    }
+
+    /**
+     * Serializes references to value log as [amount] { [file id][bytes] } * amount.
+     */
+    private static ByteBuffer serialize(final Map<Long, Long> valueLogRefs) {
+        final ByteBuffer buffer = ByteBuffer.allocate(Integer.BYTES + valueLogRefs.size() * Long.BYTES * 2)
+                .putInt(valueLogRefs.size());
+        valueLogRefs.forEach((fileId, bytes) -> buffer.putLong(fileId).putLong(bytes));
+        return buffer.flip();
+    }
+
+    /**
+     * Serializes prefix filter as [name of extractor][Bloom filter].
+     */
+    private static ByteBuffer serialize(final String extractorName,
+                                        final List<ByteBuffer> prefixes) throws IOException {
+        final BloomFilter<ByteBuffer> filter = BloomFilter.create(KeyFunnel.INSTANCE,
+                Math.max(prefixes.size(), 1), PREFIX_FILTER_FPP);
+        prefixes.forEach(filter::put);
+        final ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        try (DataOutputStream out = new DataOutputStream(bytes)) {
+            out.writeUTF(extractorName);
+            filter.writeTo(out);
+        }
+        return ByteBuffer.wrap(bytes.toByteArray());
+    }
+
+    /**
+     * Serializes hash index as [slots amount] { [hash][record number + 1] } * slots amount,
+     * amount of slots is a power of two.
+     */
+    private static ByteBuffer serializeHashIndex(final List<Integer> keyHashes) {
+        final int slots = Math.toIntExact(
+                Long.highestOneBit(Math.max((long) (keyHashes.size() / HASH_INDEX_MAX_LOAD), 1)) * 2);
+        final int mask = slots - 1;
+        final ByteBuffer buffer = ByteBuffer.allocate(Math.toIntExact(Integer.BYTES + slots * Integer.BYTES * 2L))
+                .putInt(slots);
+        final IntBuffer index = buffer.slice().asIntBuffer();
+        for (int i = 0; i < keyHashes.size(); i++) {
+            final int hash = keyHashes.get(i);
+            int slot = hash & mask;
+            while (index.get(slot * 2 + 1) != 0) {
+                slot = (slot + 1) & mask;
+            }
+            index.put(slot * 2, hash).put(slot * 2 + 1, i + 1);
+        }
+        return buffer.position(0);
+    }
+
+    private static int hash(final ByteBuffer key) {
+        return KEY_HASH.hashBytes(key.duplicate()).asInt();
+    }
+
+    private static void putVarLong(final ByteBuffer buffer, final long value) {
+        long rest = value;
+        while ((rest & ~0x7FL) != 0) {
+            buffer.put((byte) (rest & 0x7F | 0x80));
+            rest >>>= 7;
+        }
+        buffer.put((byte) rest);
+    }
+
+    private static long getVarLong(final ByteBuffer buffer) {
+        long value = 0;
+        for (int shift = 0; shift < Long.SIZE; shift += 7) {
+            final byte b = buffer.get();
+            value |= (long) (b & 0x7F) << shift;
+            if (b >= 0) {
+                return value;
+            }
+        }
+        throw new IllegalArgumentException("Malformed varint");
+    }
+
+    private static long zigZag(final long value) {
+        return value << 1 ^ value >> (Long.SIZE - 1);
+    }
+
+    private static long unZigZag(final long value) {
+        return value >>> 1 ^ -(value & 1);
+    }
+
+    private static ByteBuffer footer(final Map<Byte, ByteBuffer> sections) {
+        int sectionsSize = 0;
+        for (final ByteBuffer section : sections.values()) {
+            sectionsSize += Byte.BYTES + Integer.BYTES + section.remaining();
+        }
+        final ByteBuffer footer = ByteBuffer.allocate(sectionsSize + FOOTER_TAIL_SIZE);
+        for (final Map.Entry<Byte, ByteBuffer> section : sections.entrySet()) {
+            footer.put(section.getKey())
+                    .putInt(section.getValue().remaining())
+                    .put(section.getValue().duplicate());
+        }
+        final CRC32C crc = new CRC32C();
+        crc.update(footer.duplicate().flip());
+        return footer.putInt((int) crc.getValue())
+                .putInt(sectionsSize)
+                .putInt(FORMAT_VERSION)
+                .putLong(MAGIC)
+                .flip();
+    }
+
+    /**
+     * Makes table written by {@link #writeTempTable(Iterator, Collection, File, long, PrefixExtractor, boolean)}
+     * visible.
+     *
+     * @param tempTable path of temporary file
+     * @return path of new file
+     * @throws IOException if file can't be renamed
+     */
+    static Path commitTable(final Path tempTable) throws IOException {
+        final String fileName = tempTable.getFileName().toString();
+        final String fileNameComplete = fileName.substring(0, fileName.length() - TEMP_FILE_EXTENSTION.length())
+                + VALID_FILE_EXTENSTION;
+        final Path pathComplete = tempTable.resolveSibling(fileNameComplete);
+        Files.move(tempTable, pathComplete, StandardCopyOption.ATOMIC_MOVE);
+        return pathComplete;
     }
 
-    private ByteBuffer getKey(final ByteBuffer record) {
+    private static ByteBuffer getFixedKey(final ByteBuffer record) {
         final ByteBuffer rec = record.duplicate();
         final int keySize = rec.getInt();
         return rec.limit(Integer.BYTES + keySize)
@@ -130,7 +550,7 @@ final class SSTable {
                 .asReadOnlyBuffer();
     }
 
-    private ByteBuffer getValue(final ByteBuffer record) {
+    private static ByteBuffer getFixedValue(final ByteBuffer record) {
         final ByteBuffer rec = record.duplicate();
         final int keySize = rec.getInt();
         return rec.position(Integer.BYTES + keySize + Long.BYTES * 2)
@@ -139,43 +559,354 @@ final class SSTable {
                 .asReadOnlyBuffer();
     }
 
-    private long getTimeStamp(final ByteBuffer record) {
+    private static long getFixedTimeStamp(final ByteBuffer record) {
         final ByteBuffer rec = record.duplicate();
         rec.position(Integer.BYTES + rec.getInt());
         return rec.getLong();
     }
 
-    private long getTimeToLive(final ByteBuffer record) {
+    private static long getFixedKind(final ByteBuffer record) {
+        final ByteBuffer rec = record.duplicate();
+        return rec.getLong(Integer.BYTES + rec.getInt() + Long.BYTES) >>> KIND_SHIFT;
+    }
+
+    private static long getFixedTimeToLive(final ByteBuffer record) {
         return record.getLong(record.limit() - Long.BYTES);
     }
 
-    private long getPosition(final ByteBuffer key) {
-        long left = 0;
-        long right = recordsAmount - 1;
-        while (left <= right) {
-            final long mid = left + (right - left) / 2;
-            final int compare = getKey(getRecord(mid)).compareTo(key);
-            if (compare > 0) {
-                right = mid - 1;
-            } else if (compare < 0) {
-                left = mid + 1;
-            } else {
-                return mid;
+    /**
+     * Returns generation of table stored in the file with given name.
+     *
+     * @param fileName name of data file
+     * @return generation or -1 if file is not named after generation
+     */
+    static long parseGeneration(final String fileName) {
+        if (!fileName.endsWith(VALID_FILE_EXTENSTION)) {
+            return -1;
+        }
+        final String name = fileName.substring(0, fileName.length() - VALID_FILE_EXTENSTION.length());
+        return !name.isEmpty() && name.length() < 19 && name.chars().allMatch(Character::isDigit)
+                ? Long.parseLong(name) : -1;
+    }
+
+    static boolean isTempFile(final String fileName) {
+        return fileName.endsWith(TEMP_FILE_EXTENSTION);
+    }
+
+    static Path tempFile(final File ssTablesDir, final long generation) {
+        return ssTablesDir.toPath().resolve(Paths.get(generation + TEMP_FILE_EXTENSTION));
+    }
+
+    /**
+     * Creates temporary file which is removed as trash if storage is closed before it is.
+     *
+     * @param ssTablesDir data files directory
+     * @param prefix prefix of file name
+     * @return path of new empty file
+     * @throws IOException if file can't be created
+     */
+    static Path createTempFile(final File ssTablesDir, final String prefix) throws IOException {
+        return Files.createTempFile(ssTablesDir.toPath(), prefix, TEMP_FILE_EXTENSTION);
+    }
+
+    static String fileName(final long generation) {
+        return generation + VALID_FILE_EXTENSTION;
+    }
+
+    long getGeneration() {
+        return generation;
+    }
+
+    int getLevel() {
+        return level;
+    }
+
+    long getSequence() {
+        return sequence;
+    }
+
+    TableMeta getMeta() {
+        return meta;
+    }
+
+    long getRecordsAmount() throws IOException {
+        return summary().recordsAmount;
+    }
+
+    /**
+     * Returns keys evenly spaced over the range of this table, which may serve
+     * as split points of the key space.
+     *
+     * @param from the first key of range
+     * @param to the key following range or null if range is not bounded
+     * @param count maximum amount of keys
+     * @return ascending list of keys
+     */
+    List<ByteBuffer> sampleKeys(final ByteBuffer from, @Nullable final ByteBuffer to,
+                                final int count) throws IOException {
+        final Content c = content();
+        try {
+            final long start = c.getPosition(from);
+            final long amount = (to == null ? c.recordsAmount : c.getPosition(to, start)) - start;
+            final List<ByteBuffer> keys = new ArrayList<>(count);
+            for (int i = 1; i <= count && amount > 0; i++) {
+                // Keys outlive the mapping
+                keys.add(copyOf(c.getKey(c.getRecord(start + amount * i / (count + 1)))));
             }
+            return keys;
+        } finally {
+            c.release();
         }
-        return left;
     }
 
-    private Item getItem(final long pos) {
-        final ByteBuffer rec = getRecord(pos);
-        final ByteBuffer key = getKey(rec);
-        final long timeStamp = getTimeStamp(rec);
-        final boolean isRemoved = timeStamp < 0;
-        final long timeToLive = getTimeToLive(rec);
-        if (isRemoved) {
-            return Item.removed(key, Math.abs(timeStamp), timeToLive);
-        } else {
-            return Item.ofTTL(key, getValue(rec), Math.abs(timeStamp), timeToLive);
+    /**
+     * Returns how much of each value log file the table references.
+     *
+     * @return bytes of referenced records by file id
+     */
+    Map<Long, Long> getValueLogRefs() throws IOException {
+        return summary().valueLogRefs;
+    }
+
+    /**
+     * Returns future which completes when nobody references the table anymore.
+     *
+     * @return future
+     */
+    CompletableFuture<Void> whenReleased() {
+        return released;
+    }
+
+    /**
+     * Marks the table corrupted, the first time the cache listener is told about it.
+     */
+    private void markCorrupted() {
+        if (corrupted.compareAndSet(false, true)) {
+            contentCache.corruptionListener.accept(this);
+        }
+    }
+
+    /**
+     * Checks whether some read of the table found it corrupted.
+     *
+     * @return true if table must not be used
+     */
+    boolean isCorrupted() {
+        return corrupted.get();
+    }
+
+    /**
+     * Verifies checksums of blocks which were not read yet.
+     *
+     * @param rateLimiter limiter of verified bytes per second
+     * @return false if table is corrupted
+     */
+    boolean scrub(final RateLimiter rateLimiter) {
+        if (corrupted.get()) {
+            return false;
+        }
+        final Content c;
+        try {
+            c = content();
+        } catch (IOException e) {
+            logger.error("Can't read file: {}", tableFile.getName(), e);
+            return !corrupted.get();
+        }
+        try {
+            if (c.checksums != null && !c.checksums.verifyAll(c.data, rateLimiter)) {
+                markCorrupted();
+            }
+        } finally {
+            c.release();
+        }
+        return !corrupted.get();
+    }
+
+    /**
+     * Checks whether every block of the table is verified by reads or scrubbing.
+     *
+     * @return true if there is nothing to scrub
+     */
+    boolean isVerified() {
+        final Content c = contentCache.contents.getIfPresent(this);
+        return corrupted.get() || c != null && (c.checksums == null || c.checksums.isVerified());
+    }
+
+    /**
+     * Renames the file, so it is neither read nor removed, but kept for investigation.
+     * Mapped records stay valid for readers which are still using the table.
+     *
+     * @throws IOException if file can't be renamed
+     */
+    void quarantine() throws IOException {
+        Files.move(tableFile.toPath(), tableFile.toPath().resolveSibling(
+                generation + CORRUPTED_FILE_EXTENSTION), StandardCopyOption.ATOMIC_MOVE);
+        quarantined = true;
+    }
+
+    boolean isQuarantined() {
+        return quarantined;
+    }
+
+    /**
+     * Prevents file from removal until {@link #release()} is called.
+     *
+     * @return false if the table is already released by everyone
+     */
+    boolean acquire() {
+        while (true) {
+            final int count = references.get();
+            if (count == 0) {
+                return false;
+            }
+            if (references.compareAndSet(count, count + 1)) {
+                return true;
+            }
+        }
+    }
+
+    /**
+     * Drops the reference to the table, the file is removed when nobody references it.
+     * Records which are already read stay valid since the mapping outlives the file.
+     */
+    void release() {
+        if (references.decrementAndGet() != 0) {
+            return;
+        }
+        // Readers which still use the mapping keep it alive
+        contentCache.contents.invalidate(this);
+        if (!quarantined) {
+            try {
+                Files.delete(tableFile.toPath());
+            } catch (IOException e) {
+                logger.error("Can't remove old file: {}", tableFile.getName(), e);
+            }
+        }
+        released.complete(null);
+    }
+
+    /**
+     * Checks whether the table may contain keys with the prefix using bounds of keys
+     * and the prefix filter if it was written by the same extractor.
+     *
+     * @param prefix prefix of keys
+     * @param prefixExtractor extractor of prefixes or null if prefix filters are not used
+     * @return false if table definitely has no keys with the prefix
+     */
+    boolean mayContainPrefix(final ByteBuffer prefix,
+                             @Nullable final PrefixExtractor prefixExtractor) throws IOException {
+        if (meta.isEmpty() || meta.getLastKey().compareTo(prefix) < 0) {
+            return false;
+        }
+        final ByteBuffer firstKey = meta.getFirstKey();
+        // Keys with the prefix are not less than the prefix itself
+        if (firstKey.compareTo(prefix) > 0 && !Item.startsWith(firstKey, prefix)) {
+            return false;
+        }
+        final ByteBuffer extracted = prefixExtractor == null ? null : prefixExtractor.extract(prefix);
+        if (extracted == null) {
+            return true;
+        }
+        final PrefixFilter filter = summary().prefixFilter;
+        return filter == null || !filter.extractorName.equals(prefixExtractor.getName())
+                || filter.bloomFilter.mightContain(extracted);
+    }
+
+    /**
+     * Returns range tombstones of the table.
+     *
+     * @return tombstones in any order
+     */
+    List<RangeTombstone> getRangeTombstones() throws IOException {
+        return summary().rangeTombstones;
+    }
+
+    /**
+     * Counts records of the range using positions of its bounds in the index.
+     *
+     * @param from the first key of range
+     * @param to the key following range or null if range is not bounded
+     * @return amount of records including dead ones
+     */
+    long estimateCount(final ByteBuffer from, @Nullable final ByteBuffer to) throws IOException {
+        if (!overlaps(from, to)) {
+            return 0;
+        }
+        final Content c = content();
+        try {
+            final long start = c.getPosition(from);
+            return Math.max(0, (to == null ? c.recordsAmount : c.getPosition(to, start)) - start);
+        } finally {
+            c.release();
+        }
+    }
+
+    /**
+     * Measures records of the range using offsets of its bounds in the index.
+     *
+     * @param from the first key of range
+     * @param to the key following range or null if range is not bounded
+     * @return size of records in bytes including dead ones
+     */
+    long estimateSize(final ByteBuffer from, @Nullable final ByteBuffer to) throws IOException {
+        if (!overlaps(from, to)) {
+            return 0;
+        }
+        final Content c = content();
+        try {
+            final long start = c.getPosition(from);
+            final long end = to == null ? c.recordsAmount : c.getPosition(to, start);
+            return end <= start ? 0 : c.getOffset(end) - c.getOffset(start);
+        } finally {
+            c.release();
+        }
+    }
+
+    private boolean overlaps(final ByteBuffer from, @Nullable final ByteBuffer to) {
+        return !meta.isEmpty() && meta.getLastKey().compareTo(from) >= 0
+                && (to == null || meta.getFirstKey().compareTo(to) < 0);
+    }
+
+    /**
+     * Looks up keys in one pass over the table, every search starts
+     * where the previous one stopped. Keys are found by hash index if the table has it.
+     *
+     * @param keys ascending keys
+     * @param sequence greatest timestamp of visible records
+     * @param newest found items by positions of their keys, replaced only by newer ones
+     */
+    void getAll(final List<ByteBuffer> keys, final long sequence, final Item[] newest) throws IOException {
+        if (meta.isEmpty() || keys.isEmpty() || keys.get(0).compareTo(meta.getLastKey()) > 0
+                || keys.get(keys.size() - 1).compareTo(meta.getFirstKey()) < 0) {
+            return;
+        }
+        final Content c = content();
+        try {
+            long position = 0;
+            for (int i = 0; i < keys.size() && position < c.recordsAmount; i++) {
+                if (c.hashIndex != null) {
+                    final long found = c.find(keys.get(i));
+                    if (found < 0) {
+                        continue;
+                    }
+                    position = found;
+                } else {
+                    position = c.getPosition(keys.get(i), position);
+                    if (position == c.recordsAmount) {
+                        break;
+                    }
+                }
+                final ByteBuffer record = c.getRecord(position);
+                if (!c.getKey(record).equals(keys.get(i))) {
+                    continue;
+                }
+                final long timeStamp = c.getTimeStamp(record);
+                if (timeStamp <= sequence && (newest[i] == null || newest[i].getTimeStamp() < timeStamp)) {
+                    newest[i] = c.getItem(position);
+                }
+            }
+        } finally {
+            c.release();
         }
     }
 
@@ -190,17 +921,26 @@ final class SSTable {
 
     /**
      * Returns an iterator over the elements in this table.
+     * The file is kept mapped until the iterator is exhausted or closed.
      *
      * @param from the key from which to start the iteration.
      * @return iterator
      */
-    Iterator<Item> iterator(final ByteBuffer from) {
-        return new Iterator<>() {
-            long pos = getPosition(from);
+    CloseableIterator<Item> iterator(final ByteBuffer from) throws IOException {
+        final Content c = content();
+        final long start;
+        try {
+            start = c.getPosition(from);
+        } catch (RuntimeException e) {
+            c.release();
+            throw e;
+        }
+        final Iterator<Item> items = new Iterator<>() {
+            long pos = start;
 
             @Override
             public boolean hasNext() {
-                return pos < recordsAmount;
+                return pos < c.recordsAmount;
             }
 
             @Override
@@ -208,10 +948,778 @@ final class SSTable {
                 if (!hasNext()) {
                     throw new NoSuchElementException("No more elements");
                 }
-                final Item item = getItem(pos);
+                final Item item = c.getItem(pos);
                 pos++;
                 return item;
             }
         };
+        return new ClosingIterator<>(items, c::release);
+    }
+
+    /**
+     * Returns an iterator which reads records through {@link ReadAheadReader} instead of the mapping,
+     * so long scans over data missing in page cache don't fault on every page.
+     * Index is still read through the mapping. File is closed when the iterator is exhausted or closed.
+     *
+     * @param from the key from which to start the iteration
+     * @param to the key at which to stop the iteration or null to iterate till the end
+     * @return iterator
+     */
+    CloseableIterator<Item> scanIterator(final ByteBuffer from, @Nullable final ByteBuffer to) throws IOException {
+        if (!overlaps(from, to)) {
+            return CloseableIterator.of(Collections.emptyIterator());
+        }
+        final Content c = content();
+        final long start;
+        final long end;
+        final ReadAheadReader reader;
+        try {
+            start = c.getPosition(from);
+            end = to == null ? c.recordsAmount : c.getPosition(to, start);
+            if (start >= end) {
+                c.release();
+                return CloseableIterator.of(Collections.emptyIterator());
+            }
+            reader = new ReadAheadReader(tableFile, c.getOffset(start), c.getOffset(end), c.data.limit(), c.checksums);
+        } catch (IOException | RuntimeException e) {
+            c.release();
+            throw e;
+        }
+        final Iterator<Item> items = new Iterator<>() {
+            long pos = start;
+
+            @Override
+            public boolean hasNext() {
+                return pos < end;
+            }
+
+            @Override
+            public Item next() {
+                if (!hasNext()) {
+                    throw new NoSuchElementException("No more elements");
+                }
+                final long offset = c.getOffset(pos);
+                final ByteBuffer record;
+                try {
+                    record = reader.read(offset, (int) (c.getOffset(pos + 1) - offset));
+                } catch (UncheckedIOException e) {
+                    markCorrupted();
+                    throw e;
+                } catch (IOException e) {
+                    throw new UncheckedIOException(e);
+                }
+                pos++;
+                return c.getItem(record);
+            }
+        };
+        // Index is still read through the mapping
+        return new ClosingIterator<>(items, () -> {
+            try {
+                reader.close();
+            } catch (IOException e) {
+                logger.error("Can't close file: {}", tableFile.getName(), e);
+            } finally {
+                c.release();
+            }
+        });
+    }
+
+    /**
+     * Writes records and range tombstones of the range to the channel as a complete table preceded by its size.
+     * Records of compact table are transferred by the file system without passing through memory,
+     * only the index and the footer are built anew. Records are copied starting from the beginning
+     * of the block containing the first of them, so checksums of whole blocks are taken from the table,
+     * and skipped bytes are never referenced. Meta isn't written, it is collected when table is imported.
+     * Hash index is rebuilt from hashes kept by the index of the table.
+     * Other tables and tables referencing value log are rewritten with values read from the log.
+     *
+     * @param from the first key of range
+     * @param to the key following range or null if range is not bounded
+     * @param target blocking channel which table is written to
+     * @param prefixExtractor extractor of prefixes put into prefix filter of rewritten table or null
+     * @return false if nothing is written since table has nothing in the range
+     * @throws IOException if file can't be read or channel can't be written
+     */
+    boolean exportTo(final ByteBuffer from, @Nullable final ByteBuffer to, final WritableByteChannel target,
+                     @Nullable final PrefixExtractor prefixExtractor) throws IOException {
+        if (!overlaps(from, to)) {
+            return false;
+        }
+        final Content c = content();
+        try {
+            return exportTo(c, from, to, target, prefixExtractor);
+        } finally {
+            c.release();
+        }
+    }
+
+    private boolean exportTo(final Content c, final ByteBuffer from, @Nullable final ByteBuffer to,
+                             final WritableByteChannel target,
+                             @Nullable final PrefixExtractor prefixExtractor) throws IOException {
+        final long start = c.getPosition(from);
+        final long end = Math.max(start, to == null ? c.recordsAmount : c.getPosition(to, start));
+        final List<RangeTombstone> rangeTombstones = clip(c.summary.rangeTombstones, from, to);
+        if (start == end && rangeTombstones.isEmpty()) {
+            return false;
+        }
+        if (!c.compact || c.checksums == null || !c.summary.valueLogRefs.isEmpty()) {
+            rewriteTo(c, start, end, rangeTombstones, target, prefixExtractor);
+            return true;
+        }
+        final int blockSize = c.checksums.getBlockSize();
+        final long startOffset = c.getOffset(start);
+        final long endOffset = c.getOffset(end);
+        final long copyStart = startOffset - startOffset % blockSize;
+        final long tailStart = Math.max(copyStart, endOffset - endOffset % blockSize);
+        final ByteBuffer index = ByteBuffer.allocate((int) (end - start + 1) * Integer.BYTES + Long.BYTES);
+        for (long i = start; i <= end; i++) {
+            index.putInt((int) (c.getOffset(i) - copyStart));
+        }
+        index.putLong(end - start).flip();
+        // The last block is followed by the new index, so its bytes are verified and summed again
+        try {
+            c.checksums.verify(c.data, tailStart, endOffset, c.fileName);
+        } catch (UncheckedIOException e) {
+            markCorrupted();
+            throw e.getCause();
+        }
+        final BlockChecksums.Builder checksums = new BlockChecksums.Builder(blockSize);
+        for (long block = copyStart / blockSize; block < tailStart / blockSize; block++) {
+            checksums.add(c.checksums.getChecksum((int) block));
+        }
+        checksums.update(c.data.duplicate().position((int) tailStart).limit((int) endOffset));
+        checksums.update(index);
+        final Map<Byte, ByteBuffer> sections = new LinkedHashMap<>();
+        sections.put(BASE_TIMESTAMP_SECTION, ByteBuffer.allocate(Long.BYTES).putLong(0, c.baseTimeStamp));
+        if (!rangeTombstones.isEmpty()) {
+            sections.put(RANGE_TOMBSTONES_SECTION, serialize(rangeTombstones));
+        }
+        final ByteBuffer prefixFilterSection = c.sections.get(PREFIX_FILTER_SECTION);
+        if (prefixFilterSection != null) {
+            // Filter of the whole table only has more false positives
+            sections.put(PREFIX_FILTER_SECTION, prefixFilterSection.duplicate());
+        }
+        if (c.hashIndex != null) {
+            // Hashes are taken from the index, so keys are not read
+            sections.put(HASH_INDEX_SECTION, serializeHashIndex(c.getKeyHashes(start, end)));
+        }
+        sections.put(CHECKSUMS_SECTION, checksums.build());
+        final ByteBuffer footer = footer(sections);
+        final long size = endOffset - copyStart + index.remaining() + footer.remaining();
+        writeFully(target, ByteBuffer.allocate(Long.BYTES).putLong(0, size));
+        try (FileChannel fileChannel = FileChannel.open(tableFile.toPath(), StandardOpenOption.READ)) {
+            transferFully(fileChannel, copyStart, endOffset - copyStart, target);
+        }
+        writeFully(target, index);
+        writeFully(target, footer);
+        return true;
+    }
+
+    private void rewriteTo(final Content c, final long start, final long end,
+                           final List<RangeTombstone> rangeTombstones, final WritableByteChannel target,
+                           @Nullable final PrefixExtractor prefixExtractor) throws IOException {
+        final Path tempFile = createTempFile(tableFile.getParentFile(), "export-");
+        try {
+            try (Writer writer = new Writer(tempFile, prefixExtractor, c.hashIndex != null,
+                    System.currentTimeMillis())) {
+                for (long i = start; i < end; i++) {
+                    final Item item = c.getItem(i);
+                    writer.add(item.isSeparated()
+                            ? Item.ofTTL(item.getKey(), item.getValue(), item.getTimeStamp(), item.getTimeToLive())
+                            : item);
+                }
+                writer.finish(rangeTombstones);
+            }
+            try (FileChannel fileChannel = FileChannel.open(tempFile, StandardOpenOption.READ)) {
+                writeFully(target, ByteBuffer.allocate(Long.BYTES).putLong(0, fileChannel.size()));
+                transferFully(fileChannel, 0, fileChannel.size(), target);
+            }
+        } finally {
+            Files.delete(tempFile);
+        }
+    }
+
+    /**
+     * Cuts range tombstones by the range, so they don't remove anything outside of it.
+     */
+    private static List<RangeTombstone> clip(final List<RangeTombstone> rangeTombstones,
+                                             final ByteBuffer from, @Nullable final ByteBuffer to) {
+        final List<RangeTombstone> clipped = new ArrayList<>();
+        for (final RangeTombstone t : rangeTombstones) {
+            final ByteBuffer clippedFrom = t.getFrom().compareTo(from) < 0 ? from : t.getFrom();
+            final ByteBuffer clippedTo = to != null && t.getTo().compareTo(to) > 0 ? to : t.getTo();
+            if (clippedFrom.compareTo(clippedTo) < 0) {
+                clipped.add(new RangeTombstone(clippedFrom.duplicate(), clippedTo.duplicate(), t.getTimeStamp()));
+            }
+        }
+        return clipped;
+    }
+
+    /**
+     * Splits table written by {@link SSTableWriter} into several ones, e.g. by shards of a storage,
+     * which are ingested instead of it. The table is verified entirely before it is split.
+     * Records keep their order, removals and time to live, since parts get timestamps when they are ingested.
+     *
+     * @param file table to split, it is not changed
+     * @param parts files of parts, existing ones are overwritten
+     * @param prefixExtractor extractor of prefixes put into prefix filters of parts or null to write no filters
+     * @param partOf index of part which record with the key goes to
+     * @return amounts of records of parts
+     * @throws IOException if table is corrupted or it can't be ingested, or parts can't be written
+     */
+    static long[] split(final Path file, final List<Path> parts, @Nullable final PrefixExtractor prefixExtractor,
+                        final ToIntFunction<ByteBuffer> partOf) throws IOException {
+        final String fileName = file.getFileName().toString();
+        final Content c;
+        try {
+            // Any sequence makes the file checked as an ingested table
+            c = new Content(file.toFile(), () -> { }, 1, null, true);
+        } catch (IllegalArgumentException e) {
+            throw new IOException("File corrupted: " + fileName, e);
+        }
+        final long[] amounts = new long[parts.size()];
+        final List<Writer> writers = new ArrayList<>(parts.size());
+        try {
+            if (c.checksums != null && !c.checksums.verifyAll(c.data, RateLimiter.create(Double.MAX_VALUE))) {
+                throw new IOException("File corrupted: " + fileName);
+            }
+            for (final Path part : parts) {
+                writers.add(new Writer(part, prefixExtractor, false, 0));
+            }
+            for (long i = 0; i < c.recordsAmount; i++) {
+                final Item item = c.getItem(i);
+                final int part = partOf.applyAsInt(item.getKey());
+                // Nothing is expired at zero, as the writer of the table sees it
+                writers.get(part).add(item.isRemoved(0)
+                        ? Item.removed(item.getKey(), 0, item.getTimeToLive())
+                        : Item.ofTTL(item.getKey(), item.getValue(), 0, item.getTimeToLive()));
+                amounts[part]++;
+            }
+            for (final Writer writer : writers) {
+                writer.finish(Collections.emptyList());
+            }
+        } finally {
+            for (final Writer writer : writers) {
+                writer.close();
+            }
+            c.release();
+        }
+        return amounts;
+    }
+
+    private static void writeFully(final WritableByteChannel target, final ByteBuffer buffer) throws IOException {
+        while (buffer.hasRemaining()) {
+            target.write(buffer);
+        }
+    }
+
+    private static void transferFully(final FileChannel fileChannel, final long position, final long count,
+                                      final WritableByteChannel target) throws IOException {
+        long transferred = 0;
+        while (transferred < count) {
+            transferred += fileChannel.transferTo(position + transferred, count - transferred, target);
+        }
+    }
+
+    private static ByteBuffer copyOf(final ByteBuffer buffer) {
+        final ByteBuffer copy = ByteBuffer.allocate(buffer.remaining());
+        copy.put(buffer.duplicate()).flip();
+        return copy.asReadOnlyBuffer();
+    }
+
+    /**
+     * Unmaps the file at once instead of waiting for the garbage collector,
+     * the buffer and all its slices must not be accessed anymore.
+     */
+    private static void unmap(final MappedByteBuffer buffer) {
+        if (invokeCleaner == null) {
+            return;
+        }
+        try {
+            invokeCleaner.invokeExact(buffer);
+        } catch (Throwable e) {
+            logger.error("Can't unmap file", e);
+        }
+    }
+
+    @Nullable
+    private static MethodHandle findCleaner() {
+        try {
+            final Class<?> unsafeClass = Class.forName("sun.misc.Unsafe");
+            final Field theUnsafe = unsafeClass.getDeclaredField("theUnsafe");
+            theUnsafe.setAccessible(true);
+            return MethodHandles.lookup()
+                    .findVirtual(unsafeClass, "invokeCleaner", MethodType.methodType(void.class, ByteBuffer.class))
+                    .bindTo(theUnsafe.get(null))
+                    .asType(MethodType.methodType(void.class, MappedByteBuffer.class));
+        } catch (ReflectiveOperationException | RuntimeException e) {
+            logger.warn("Files are unmapped by garbage collector only", e);
+            return null;
+        }
+    }
+
+    /**
+     * Feeds remaining bytes of buffer into Bloom filter.
+     */
+    private enum KeyFunnel implements Funnel<ByteBuffer> {
+        INSTANCE;
+
+        @Override
+        public void funnel(final ByteBuffer from, final PrimitiveSink into) {
+            into.putBytes(from.duplicate());
+        }
+    }
+
+    /**
+     * Bloom filter of key prefixes.
+     */
+    private static final class PrefixFilter {
+        private final String extractorName;
+        private final BloomFilter<ByteBuffer> bloomFilter;
+
+        PrefixFilter(final ByteBuffer section) throws IOException {
+            final byte[] bytes = new byte[section.remaining()];
+            section.duplicate().get(bytes);
+            try (DataInputStream in = new DataInputStream(new ByteArrayInputStream(bytes))) {
+                extractorName = in.readUTF();
+                bloomFilter = BloomFilter.readFrom(in, KeyFunnel.INSTANCE);
+            }
+        }
+    }
+
+    /**
+     * Mapped files of recently used tables. Their amount may be limited, so the storage
+     * with many tables exhausts neither address space nor the limit of mappings per process.
+     * Then records are copied out of the mappings, and the file of evicted table is unmapped
+     * as soon as no reader uses it. Otherwise files are mapped until their tables are released,
+     * records are read without copying and mappings are left to the garbage collector.
+     */
+    static final class ContentCache {
+        private final Cache<SSTable, Content> contents;
+        private final boolean detached;
+        private final Consumer<SSTable> corruptionListener;
+
+        /**
+         * Creates cache evicting least recently used files.
+         *
+         * @param capacity maximum amount of mapped files or 0 if it is not limited
+         * @param corruptionListener told once about every table which reads found corrupted,
+         *                           it is called by the reading thread
+         */
+        ContentCache(final int capacity, final Consumer<SSTable> corruptionListener) {
+            final CacheBuilder<Object, Object> builder = CacheBuilder.newBuilder();
+            contents = (capacity > 0 ? builder.maximumSize(capacity) : builder)
+                    .<SSTable, Content>removalListener(n -> n.getValue().release())
+                    .build();
+            detached = capacity > 0;
+            this.corruptionListener = corruptionListener;
+        }
+
+        /**
+         * Evicts all the files, e.g. when the storage is closed.
+         */
+        void clear() {
+            contents.invalidateAll();
+        }
+    }
+
+    /**
+     * Small parts of content which are needed without reading records.
+     */
+    private static final class Summary {
+        private final long recordsAmount;
+        private final PrefixFilter prefixFilter;
+        private final List<RangeTombstone> rangeTombstones;
+        private final Map<Long, Long> valueLogRefs;
+
+        Summary(final long recordsAmount, @Nullable final PrefixFilter prefixFilter,
+                final List<RangeTombstone> rangeTombstones, final Map<Long, Long> valueLogRefs) {
+            this.recordsAmount = recordsAmount;
+            this.prefixFilter = prefixFilter;
+            this.rangeTombstones = rangeTombstones;
+            this.valueLogRefs = valueLogRefs;
+        }
+    }
+
+    /**
+     * Mapped file of the table. It is referenced by the cache and by every reader,
+     * the file is unmapped when they all release it if the content is detached.
+     */
+    private static final class Content {
+        private final String fileName;
+        private final MappedByteBuffer mapping;
+        private final boolean detached;
+        private final AtomicInteger references = new AtomicInteger(1);
+        private final ByteBuffer data;
+        private final BlockChecksums checksums;
+        private final Runnable onCorrupted;
+        private final ValueLog valueLog;
+        private final ByteBuffer records;
+        // Offsets are longs in fixed format and ints in compact one
+        private final LongBuffer longOffsets;
+        private final IntBuffer intOffsets;
+        private final boolean compact;
+        private final long baseTimeStamp;
+        private final long recordsAmount;
+        private final Map<Byte, ByteBuffer> sections;
+        private final Summary summary;
+        // Pairs of key hash and record number + 1 or null if table has no hash index
+        private final IntBuffer hashIndex;
+
+        /**
+         * Maps the file checking its footer and index.
+         *
+         * @param tableFile file with data
+         * @param onCorrupted action run when corrupted records are read
+         * @param sequence timestamp of every record of ingested table or 0 if records keep their own ones
+         * @param valueLog log which separated values are read from
+         * @param detached whether records are copied out of the mapping, so it is unmapped on release
+         * @throws IllegalArgumentException if file corrupted
+         */
+        Content(final File tableFile, final Runnable onCorrupted, final long sequence,
+                final ValueLog valueLog, final boolean detached) throws IOException {
+            this.fileName = tableFile.getName();
+            this.onCorrupted = onCorrupted;
+            this.valueLog = valueLog;
+            this.detached = detached;
+            try (FileChannel fileChannel = (FileChannel) Files.newByteChannel(
+                    tableFile.toPath(), StandardOpenOption.READ)) {
+                Preconditions.checkArgument(fileChannel.size() >= Long.BYTES);
+                mapping = fileChannel.map(FileChannel.MapMode.READ_ONLY, 0, fileChannel.size());
+                final ByteBuffer mappedByteBuffer = mapping.duplicate().order(ByteOrder.BIG_ENDIAN);
+                Preconditions.checkArgument(mappedByteBuffer.limit() < Integer.MAX_VALUE);
+                int indexEnd = mappedByteBuffer.limit();
+                int version = UNCHECKED_FORMAT_VERSION;
+                if (mappedByteBuffer.getLong(indexEnd - Long.BYTES) == MAGIC) {
+                    Preconditions.checkArgument(indexEnd >= UNCHECKED_FOOTER_TAIL_SIZE + Long.BYTES);
+                    version = mappedByteBuffer.getInt(indexEnd - Long.BYTES - Integer.BYTES);
+                    Preconditions.checkArgument(version >= UNCHECKED_FORMAT_VERSION && version <= FORMAT_VERSION);
+                    final int tailSize = version == UNCHECKED_FORMAT_VERSION
+                            ? UNCHECKED_FOOTER_TAIL_SIZE : FOOTER_TAIL_SIZE;
+                    Preconditions.checkArgument(indexEnd >= tailSize + Long.BYTES);
+                    final int sectionsSize = mappedByteBuffer.getInt(indexEnd - UNCHECKED_FOOTER_TAIL_SIZE);
+                    Preconditions.checkArgument(sectionsSize >= 0
+                            && sectionsSize <= indexEnd - tailSize - Long.BYTES);
+                    indexEnd -= tailSize + sectionsSize;
+                    final ByteBuffer sectionsBuffer = mappedByteBuffer.duplicate()
+                            .position(indexEnd)
+                            .limit(indexEnd + sectionsSize)
+                            .slice();
+                    if (version != UNCHECKED_FORMAT_VERSION) {
+                        final CRC32C crc = new CRC32C();
+                        crc.update(sectionsBuffer.duplicate());
+                        Preconditions.checkArgument((int) crc.getValue()
+                                == mappedByteBuffer.getInt(indexEnd + sectionsSize));
+                    }
+                    sections = readSections(sectionsBuffer);
+                } else {
+                    sections = Collections.emptyMap();
+                }
+                compact = version == FORMAT_VERSION;
+                final int offsetSize = compact ? Integer.BYTES : Long.BYTES;
+                recordsAmount = mappedByteBuffer.getLong(indexEnd - Long.BYTES);
+                Preconditions.checkArgument(recordsAmount >= 0 && indexEnd
+                        > recordsAmount * (offsetSize + (compact ? MIN_COMPACT_RECORD_SIZE : MIN_FIXED_RECORD_SIZE)));
+                final int recordsEnd = (int) (indexEnd - Long.BYTES - offsetSize * (recordsAmount + 1));
+                final ByteBuffer offsetsBuffer = mappedByteBuffer.duplicate()
+                        .position(recordsEnd)
+                        .limit(indexEnd - Long.BYTES)
+                        .slice();
+                longOffsets = compact ? null : offsetsBuffer.asLongBuffer();
+                intOffsets = compact ? offsetsBuffer.asIntBuffer() : null;
+                records = mappedByteBuffer.duplicate()
+                        .limit(recordsEnd)
+                        .slice()
+                        .asReadOnlyBuffer();
+                data = mappedByteBuffer.duplicate().limit(indexEnd).slice().asReadOnlyBuffer();
+                final ByteBuffer checksumsSection = sections.get(CHECKSUMS_SECTION);
+                checksums = checksumsSection == null
+                        ? null : BlockChecksums.readFrom(checksumsSection.duplicate(), indexEnd);
+                if (checksums != null) {
+                    // Index is used by every lookup, so it is verified at once
+                    try {
+                        checksums.verify(data, recordsEnd, indexEnd, fileName);
+                    } catch (UncheckedIOException e) {
+                        throw new IllegalArgumentException(e);
+                    }
+                }
+                final ByteBuffer prefixFilterSection = sections.get(PREFIX_FILTER_SECTION);
+                final PrefixFilter prefixFilter = prefixFilterSection == null
+                        ? null : new PrefixFilter(prefixFilterSection);
+                final ByteBuffer rangeTombstonesSection = sections.get(RANGE_TOMBSTONES_SECTION);
+                final List<RangeTombstone> rangeTombstones = rangeTombstonesSection == null
+                        ? Collections.emptyList() : readRangeTombstones(copyOf(rangeTombstonesSection));
+                final ByteBuffer baseTimeStampSection = sections.get(BASE_TIMESTAMP_SECTION);
+                Preconditions.checkArgument(baseTimeStampSection == null
+                        || baseTimeStampSection.remaining() == Long.BYTES);
+                final long writtenTimeStamp = baseTimeStampSection == null ? 0 : baseTimeStampSection.getLong(0);
+                if (sequence > 0) {
+                    // Ingested records are written with zero timestamps, which are shifted by the sequence
+                    Preconditions.checkArgument(compact && writtenTimeStamp == 0
+                            && !sections.containsKey(RANGE_TOMBSTONES_SECTION)
+                            && !sections.containsKey(VALUE_LOG_SECTION));
+                    baseTimeStamp = sequence;
+                } else {
+                    baseTimeStamp = writtenTimeStamp;
+                }
+                final ByteBuffer valueLogSection = sections.get(VALUE_LOG_SECTION);
+                final Map<Long, Long> valueLogRefs = valueLogSection == null
+                        ? Collections.emptyMap() : readValueLogRefs(valueLogSection.duplicate());
+                summary = new Summary(recordsAmount, prefixFilter, rangeTombstones, valueLogRefs);
+                final ByteBuffer hashIndexSection = sections.get(HASH_INDEX_SECTION);
+                hashIndex = hashIndexSection == null ? null : readHashIndex(hashIndexSection.duplicate());
+            }
+        }
+
+        /**
+         * Prevents the file from being unmapped until {@link #release()} is called.
+         *
+         * @return false if the content is already released by everyone
+         */
+        boolean acquire() {
+            while (true) {
+                final int count = references.get();
+                if (count == 0) {
+                    return false;
+                }
+                if (references.compareAndSet(count, count + 1)) {
+                    return true;
+                }
+            }
+        }
+
+        /**
+         * Drops the reference to the content, detached content is unmapped when nobody references it.
+         */
+        void release() {
+            if (references.decrementAndGet() == 0 && detached) {
+                unmap(mapping);
+            }
+        }
+
+        private static IntBuffer readHashIndex(final ByteBuffer section) {
+            Preconditions.checkArgument(section.remaining() >= Integer.BYTES);
+            final int slots = section.getInt();
+            Preconditions.checkArgument(slots > 0 && Integer.bitCount(slots) == 1
+                    && section.remaining() == slots * Integer.BYTES * 2L);
+            return section.slice().asIntBuffer();
+        }
+
+        private static List<RangeTombstone> readRangeTombstones(final ByteBuffer section) {
+            final int amount = section.getInt();
+            Preconditions.checkArgument(amount >= 0);
+            final List<RangeTombstone> tombstones = new ArrayList<>(amount);
+            for (int i = 0; i < amount; i++) {
+                tombstones.add(RangeTombstone.readFrom(section));
+            }
+            return Collections.unmodifiableList(tombstones);
+        }
+
+        private static Map<Long, Long> readValueLogRefs(final ByteBuffer section) {
+            final int amount = section.getInt();
+            Preconditions.checkArgument(amount >= 0 && section.remaining() == amount * Long.BYTES * 2);
+            final Map<Long, Long> refs = new HashMap<>();
+            for (int i = 0; i < amount; i++) {
+                refs.put(section.getLong(), section.getLong());
+            }
+            return Collections.unmodifiableMap(refs);
+        }
+
+        /**
+         * Restores meta of tables written before it was stored in the footer
+         * or by an external writer, checking the order of records.
+         *
+         * @param ingested whether every record must have the sequence of the table as its timestamp
+         * @throws IllegalArgumentException if records are not ascending
+         */
+        private TableMeta collectMeta(final boolean ingested) {
+            final TableMeta.Builder builder = new TableMeta.Builder();
+            ByteBuffer previousKey = null;
+            for (long i = 0; i < recordsAmount; i++) {
+                final Item item = getItem(i);
+                Preconditions.checkArgument(previousKey == null || previousKey.compareTo(item.getKey()) < 0);
+                Preconditions.checkArgument(!ingested || item.getTimeStamp() == baseTimeStamp);
+                previousKey = item.getKey();
+                builder.add(item, item.isRemoved(0), getOffset(i + 1) - getOffset(i));
+            }
+            summary.rangeTombstones.forEach(builder::add);
+            return builder.build();
+        }
+
+        /**
+         * Returns record verifying its blocks if they are read for the first time.
+         *
+         * @throws UncheckedIOException if record is corrupted
+         */
+        private ByteBuffer getRecord(final long index) {
+            final long offset = getOffset(index);
+            final long end = getOffset(index + 1);
+            if (checksums != null) {
+                try {
+                    checksums.verify(data, offset, end, fileName);
+                } catch (UncheckedIOException e) {
+                    onCorrupted.run();
+                    throw e;
+                }
+            }
+            return records.duplicate()
+                    .position((int) offset)
+                    .limit((int) end)
+                    .slice()
+                    .asReadOnlyBuffer();
+        }
+
+        private long getPosition(final ByteBuffer key) {
+            return getPosition(key, 0);
+        }
+
+        /**
+         * Finds record by its key using hash index, records with other keys of the same hash
+         * are read too, but they are rare.
+         *
+         * @param key key to search
+         * @return position of record or -1 if table has no such key
+         */
+        private long find(final ByteBuffer key) {
+            final int hash = hash(key);
+            final int mask = hashIndex.limit() / 2 - 1;
+            int slot = hash & mask;
+            // Index always has empty slots, the bound only protects from broken one
+            for (int probe = 0; probe <= mask; probe++) {
+                final long position = hashIndex.get(slot * 2 + 1) - 1L;
+                if (position < 0) {
+                    return -1;
+                }
+                if (hashIndex.get(slot * 2) == hash && position < recordsAmount
+                        && getKey(getRecord(position)).equals(key)) {
+                    return position;
+                }
+                slot = (slot + 1) & mask;
+            }
+            return -1;
+        }
+
+        /**
+         * Collects hashes of keys of the records from the hash index.
+         *
+         * @param start position of the first record
+         * @param end position following the last record
+         * @return hashes by positions relative to the start
+         */
+        private List<Integer> getKeyHashes(final long start, final long end) {
+            final Integer[] hashes = new Integer[(int) (end - start)];
+            int found = 0;
+            for (int slot = 0; slot < hashIndex.limit() / 2; slot++) {
+                final long position = hashIndex.get(slot * 2 + 1) - 1L;
+                if (position >= start && position < end) {
+                    hashes[(int) (position - start)] = hashIndex.get(slot * 2);
+                    found++;
+                }
+            }
+            Preconditions.checkState(found == hashes.length, "Hash index is broken: %s", fileName);
+            return Arrays.asList(hashes);
+        }
+
+        /**
+         * Finds position of the first record which key is not less than the given one.
+         *
+         * @param key key to search
+         * @param from position of the search start, all the preceding keys must be less
+         * @return position from left to records amount
+         */
+        private long getPosition(final ByteBuffer key, final long from) {
+            long left = from;
+            long right = recordsAmount - 1;
+            while (left <= right) {
+                final long mid = left + (right - left) / 2;
+                final int compare = getKey(getRecord(mid)).compareTo(key);
+                if (compare > 0) {
+                    right = mid - 1;
+                } else if (compare < 0) {
+                    left = mid + 1;
+                } else {
+                    return mid;
+                }
+            }
+            return left;
+        }
+
+        private Item getItem(final long pos) {
+            // Items of detached content outlive the mapping
+            return getItem(detached ? copyOf(getRecord(pos)) : getRecord(pos));
+        }
+
+        private Item getItem(final ByteBuffer rec) {
+            if (compact) {
+                return getCompactItem(rec);
+            }
+            final ByteBuffer key = getFixedKey(rec);
+            final long timeStamp = getFixedTimeStamp(rec);
+            final boolean isRemoved = timeStamp < 0;
+            final long timeToLive = getFixedTimeToLive(rec);
+            if (isRemoved) {
+                return Item.removed(key, Math.abs(timeStamp), timeToLive);
+            }
+            return getItem(key, timeStamp, getFixedKind(rec), getFixedValue(rec), timeToLive);
+        }
+
+        private Item getCompactItem(final ByteBuffer record) {
+            final ByteBuffer rec = record.duplicate();
+            final int flags = rec.get();
+            final ByteBuffer key = getCompactKey(rec);
+            final long timeStamp = baseTimeStamp + unZigZag(getVarLong(rec));
+            ByteBuffer value = null;
+            if ((flags & REMOVED_FLAG) == 0) {
+                final int valueSize = (int) getVarLong(rec);
+                value = rec.slice().limit(valueSize).asReadOnlyBuffer();
+                rec.position(rec.position() + valueSize);
+            }
+            final long timeToLive = (flags & TTL_FLAG) == 0 ? Item.NO_TTL : getVarLong(rec);
+            if (value == null) {
+                return Item.removed(key, timeStamp, timeToLive);
+            }
+            return getItem(key, timeStamp, flags >>> FLAGS_KIND_SHIFT, value, timeToLive);
+        }
+
+        private Item getItem(final ByteBuffer key, final long timeStamp, final long kind,
+                             final ByteBuffer value, final long timeToLive) {
+            if (kind == OPERAND_KIND) {
+                return Item.operand(key, value, timeStamp);
+            } else if (kind == POINTER_KIND) {
+                return Item.separated(key, value, timeStamp, timeToLive, valueLog);
+            } else {
+                return Item.ofTTL(key, value, timeStamp, timeToLive);
+            }
+        }
+
+        /**
+         * Reads key of compact record advancing position of buffer past it.
+         */
+        private static ByteBuffer getCompactKey(final ByteBuffer rec) {
+            final int keySize = (int) getVarLong(rec);
+            final ByteBuffer key = rec.slice().limit(keySize).asReadOnlyBuffer();
+            rec.position(rec.position() + keySize);
+            return key;
+        }
+
+        private ByteBuffer getKey(final ByteBuffer record) {
+            return compact ? getCompactKey(record.duplicate().position(Byte.BYTES)) : getFixedKey(record);
+        }
+
+        /**
+         * Returns timestamp of record whether it is removed or not.
+         */
+        private long getTimeStamp(final ByteBuffer record) {
+            if (compact) {
+                final ByteBuffer rec = record.duplicate().position(Byte.BYTES);
+                getCompactKey(rec);
+                return baseTimeStamp + unZigZag(getVarLong(rec));
+            }
+            return Math.abs(getFixedTimeStamp(record));
+        }
+
+        private long getOffset(final long index) {
+            return compact ? intOffsets.get((int) index) : longOffsets.get((int) index);
+        }
     }
 }
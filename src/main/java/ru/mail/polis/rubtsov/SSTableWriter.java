@@ -0,0 +1,97 @@
+package ru.mail.polis.rubtsov;
+
+import com.google.common.base.Preconditions;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.file.Path;
+import java.util.Collections;
+
+/**
+ * Builds SSTable from records sorted by their keys, e.g. exported from another storage,
+ * which is then added to the storage by {@link MyDAO#ingest(Path...)} or {@link ShardedDAO#ingest(Path...)}.
+ * Records get timestamps when the table is ingested, time to live is counted from that moment.
+ */
+public final class SSTableWriter implements Closeable {
+    private final SSTable.Writer writer;
+    private ByteBuffer lastKey;
+    private boolean closed;
+
+    /**
+     * Creates table without prefix filter.
+     *
+     * @param path path of new file, an existing one is overwritten
+     * @throws IOException if file can't be created
+     */
+    public SSTableWriter(@NotNull final Path path) throws IOException {
+        this(path, null);
+    }
+
+    /**
+     * Creates table, its prefix filter is used if storage has the extractor of the same name.
+     *
+     * @param path path of new file, an existing one is overwritten
+     * @param prefixExtractor extractor of prefixes put into prefix filter or null to write no filter
+     * @throws IOException if file can't be created
+     */
+    public SSTableWriter(@NotNull final Path path, @Nullable final PrefixExtractor prefixExtractor) throws IOException {
+        // No record is expired while the table is written
+        this.writer = new SSTable.Writer(path, prefixExtractor, false, 0);
+    }
+
+    /**
+     * Appends value by given key.
+     *
+     * @throws IllegalArgumentException if key doesn't follow the previous one
+     */
+    public void upsert(@NotNull final ByteBuffer key, @NotNull final ByteBuffer value) throws IOException {
+        add(Item.ofTTL(key, value, 0, Item.NO_TTL));
+    }
+
+    /**
+     * Appends value by given key with time-to-live in millis.
+     *
+     * @throws IllegalArgumentException if key doesn't follow the previous one
+     */
+    public void upsert(@NotNull final ByteBuffer key, @NotNull final ByteBuffer value,
+                       final long timeToLive) throws IOException {
+        Preconditions.checkArgument(timeToLive > 0, "Time to live must be positive");
+        add(Item.ofTTL(key, value, 0, timeToLive));
+    }
+
+    /**
+     * Appends removal of value by given key, it hides the value kept by storage.
+     *
+     * @throws IllegalArgumentException if key doesn't follow the previous one
+     */
+    public void remove(@NotNull final ByteBuffer key) throws IOException {
+        add(Item.removed(key, 0, Item.NO_TTL));
+    }
+
+    private void add(final Item item) throws IOException {
+        Preconditions.checkState(!closed, "Writer is closed");
+        final ByteBuffer key = item.getKey();
+        Preconditions.checkArgument(lastKey == null || lastKey.compareTo(key) < 0, "Keys must be ascending");
+        writer.add(item);
+        lastKey = ByteBuffer.allocate(key.remaining()).put(key.duplicate()).flip();
+    }
+
+    /**
+     * Writes index and footer, the table can't be ingested until it is closed.
+     */
+    @Override
+    public void close() throws IOException {
+        if (closed) {
+            return;
+        }
+        closed = true;
+        try {
+            writer.finish(Collections.emptyList());
+        } finally {
+            writer.close();
+        }
+    }
+}
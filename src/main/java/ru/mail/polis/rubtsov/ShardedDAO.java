@@ -0,0 +1,449 @@
+package ru.mail.polis.rubtsov;
+
+import com.google.common.base.Preconditions;
+import com.google.common.collect.Iterators;
+import com.google.common.hash.HashFunction;
+import com.google.common.hash.Hashing;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+import ru.mail.polis.CloseableIterator;
+import ru.mail.polis.DAO;
+import ru.mail.polis.Record;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.channels.WritableByteChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.SortedMap;
+import java.util.Spliterator;
+import java.util.Spliterators;
+import java.util.TreeMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.stream.Stream;
+import java.util.stream.StreamSupport;
+
+/**
+ * {@link DAO} which splits keys by hash between several independent {@link MyDAO}s,
+ * so writes to different shards don't contend for the same RAM-table, flush and compaction.
+ * Each shard is stored in its own subdirectory, amount of shards can't be changed later.
+ */
+public final class ShardedDAO implements DAO {
+    private static final String SHARD_DIR_PREFIX = "shard-";
+    private static final HashFunction HASH = Hashing.murmur3_32();
+
+    private final File dataFolder;
+    private final PrefixExtractor prefixExtractor;
+    private final List<MyDAO> shards;
+    // Shards share threads of background work, executors given by options are not shut down
+    private final ExecutorService compactionExecutor;
+    private final ScheduledExecutorService scrubExecutor;
+
+    /**
+     * Constructs a new storage.
+     *
+     * @param dataFolder the folder which shards will be contained.
+     * @param heapSizeInBytes JVM max heap size, it is shared by all the shards
+     * @param shardsAmount amount of shards
+     * @throws IllegalArgumentException if storage already has different amount of shards
+     */
+    public ShardedDAO(final File dataFolder, final long heapSizeInBytes, final int shardsAmount) throws IOException {
+        this(dataFolder, heapSizeInBytes, shardsAmount, new Options());
+    }
+
+    /**
+     * Constructs a new storage.
+     *
+     * @param dataFolder the folder which shards will be contained.
+     * @param heapSizeInBytes JVM max heap size, it is shared by all the shards
+     * @param shardsAmount amount of shards
+     * @param options tunable parameters of every shard
+     * @throws IllegalArgumentException if storage already has different amount of shards
+     */
+    public ShardedDAO(final File dataFolder, final long heapSizeInBytes, final int shardsAmount,
+                      @NotNull final Options options) throws IOException {
+        Preconditions.checkArgument(shardsAmount > 0, "Amount of shards must be positive");
+        final long existingShards = countShards(dataFolder);
+        Preconditions.checkArgument(existingShards == 0 || existingShards == shardsAmount,
+                "Storage has %s shards", existingShards);
+        final Options shardOptions;
+        if (options.getCompactionExecutor() == null) {
+            compactionExecutor = MyDAO.newCompactionExecutor();
+            scrubExecutor = MyDAO.newScrubExecutor();
+            shardOptions = options.copy().setBackgroundExecutors(compactionExecutor, scrubExecutor);
+        } else {
+            compactionExecutor = null;
+            scrubExecutor = null;
+            shardOptions = options;
+        }
+        final List<MyDAO> opened = new ArrayList<>(shardsAmount);
+        try {
+            for (int i = 0; i < shardsAmount; i++) {
+                final Path shardDir = Files.createDirectories(dataFolder.toPath().resolve(SHARD_DIR_PREFIX + i));
+                opened.add(new MyDAO(shardDir.toFile(), heapSizeInBytes / shardsAmount, shardOptions));
+            }
+        } catch (IOException | RuntimeException e) {
+            try {
+                closeAll(opened, e);
+            } finally {
+                shutdownExecutors();
+            }
+            throw e;
+        }
+        this.dataFolder = dataFolder;
+        this.prefixExtractor = options.getPrefixExtractor();
+        this.shards = Collections.unmodifiableList(opened);
+    }
+
+    private static long countShards(final File dataFolder) throws IOException {
+        try (Stream<Path> files = Files.list(dataFolder.toPath())) {
+            return files.filter(Files::isDirectory)
+                    .filter(p -> p.getFileName().toString().startsWith(SHARD_DIR_PREFIX))
+                    .count();
+        }
+    }
+
+    private MyDAO shard(final ByteBuffer key) {
+        return shards.get(shardIndex(key));
+    }
+
+    private int shardIndex(final ByteBuffer key) {
+        return Math.floorMod(HASH.hashBytes(key.duplicate()).asInt(), shards.size());
+    }
+
+    private File shardFolder(final int shard) {
+        return new File(dataFolder, SHARD_DIR_PREFIX + shard);
+    }
+
+    /**
+     * Merges iterators of all the shards, their keys never intersect.
+     * Iterators of shards are closed together with the merged one.
+     */
+    private static CloseableIterator<Record> merge(final List<CloseableIterator<Record>> iterators) {
+        return new ClosingIterator<>(Iterators.mergeSorted(iterators, Comparator.naturalOrder()),
+                () -> iterators.forEach(CloseableIterator::close));
+    }
+
+    @NotNull
+    @Override
+    public CloseableIterator<Record> iterator(@NotNull final ByteBuffer from) throws IOException {
+        final List<CloseableIterator<Record>> iterators = new ArrayList<>(shards.size());
+        try {
+            for (final MyDAO shard : shards) {
+                iterators.add(shard.iterator(from));
+            }
+        } catch (IOException | RuntimeException e) {
+            iterators.forEach(CloseableIterator::close);
+            throw e;
+        }
+        return merge(iterators);
+    }
+
+    @NotNull
+    @Override
+    public CloseableIterator<Record> range(@NotNull final ByteBuffer from,
+                                           @Nullable final ByteBuffer to) throws IOException {
+        final List<CloseableIterator<Record>> iterators = new ArrayList<>(shards.size());
+        try {
+            for (final MyDAO shard : shards) {
+                iterators.add(shard.range(from, to));
+            }
+        } catch (IOException | RuntimeException e) {
+            iterators.forEach(CloseableIterator::close);
+            throw e;
+        }
+        return merge(iterators);
+    }
+
+    @NotNull
+    @Override
+    public CloseableIterator<Record> scan(@NotNull final ByteBuffer from,
+                                          @Nullable final ByteBuffer to) throws IOException {
+        final List<CloseableIterator<Record>> iterators = new ArrayList<>(shards.size());
+        try {
+            for (final MyDAO shard : shards) {
+                iterators.add(shard.scan(from, to));
+            }
+        } catch (IOException | RuntimeException e) {
+            iterators.forEach(CloseableIterator::close);
+            throw e;
+        }
+        return merge(iterators);
+    }
+
+    @NotNull
+    @Override
+    public CloseableIterator<Record> prefix(@NotNull final ByteBuffer prefix) throws IOException {
+        final List<CloseableIterator<Record>> iterators = new ArrayList<>(shards.size());
+        try {
+            for (final MyDAO shard : shards) {
+                iterators.add(shard.prefix(prefix));
+            }
+        } catch (IOException | RuntimeException e) {
+            iterators.forEach(CloseableIterator::close);
+            throw e;
+        }
+        return merge(iterators);
+    }
+
+    /**
+     * Merges streams of all the shards, every one keeps its snapshot until the merged stream is closed.
+     * Keys of shards interleave, so unlike streams of shards the merged one is not split.
+     */
+    @NotNull
+    @Override
+    public Stream<Record> stream(@NotNull final ByteBuffer from, @Nullable final ByteBuffer to) throws IOException {
+        final List<Stream<Record>> streams = new ArrayList<>(shards.size());
+        try {
+            for (final MyDAO shard : shards) {
+                streams.add(shard.stream(from, to));
+            }
+        } catch (IOException | RuntimeException e) {
+            streams.forEach(Stream::close);
+            throw e;
+        }
+        final List<Iterator<Record>> iterators = new ArrayList<>(streams.size());
+        streams.forEach(s -> iterators.add(s.iterator()));
+        final Spliterator<Record> spliterator = Spliterators.spliteratorUnknownSize(
+                Iterators.mergeSorted(iterators, Comparator.naturalOrder()),
+                Spliterator.ORDERED | Spliterator.SORTED | Spliterator.DISTINCT | Spliterator.NONNULL);
+        Stream<Record> merged = StreamSupport.stream(spliterator, false);
+        for (final Stream<Record> stream : streams) {
+            merged = merged.onClose(stream::close);
+        }
+        return merged;
+    }
+
+    @NotNull
+    @Override
+    public ByteBuffer get(@NotNull final ByteBuffer key) throws IOException {
+        return shard(key).get(key);
+    }
+
+    @NotNull
+    @Override
+    public SortedMap<ByteBuffer, ByteBuffer> getAll(@NotNull final Collection<ByteBuffer> keys) throws IOException {
+        final Map<MyDAO, List<ByteBuffer>> keysByShard = new HashMap<>();
+        for (final ByteBuffer key : keys) {
+            keysByShard.computeIfAbsent(shard(key), s -> new ArrayList<>()).add(key);
+        }
+        final SortedMap<ByteBuffer, ByteBuffer> result = new TreeMap<>();
+        for (final Map.Entry<MyDAO, List<ByteBuffer>> shardKeys : keysByShard.entrySet()) {
+            result.putAll(shardKeys.getKey().getAll(shardKeys.getValue()));
+        }
+        return result;
+    }
+
+    @Override
+    public long estimateCount(@NotNull final ByteBuffer from, @Nullable final ByteBuffer to) throws IOException {
+        long count = 0;
+        for (final MyDAO shard : shards) {
+            count += shard.estimateCount(from, to);
+        }
+        return count;
+    }
+
+    @Override
+    public long estimateSize(@NotNull final ByteBuffer from, @Nullable final ByteBuffer to) throws IOException {
+        long size = 0;
+        for (final MyDAO shard : shards) {
+            size += shard.estimateSize(from, to);
+        }
+        return size;
+    }
+
+    @Override
+    public void upsert(@NotNull final ByteBuffer key, @NotNull final ByteBuffer value) throws IOException {
+        shard(key).upsert(key, value);
+    }
+
+    @Override
+    public void upsert(@NotNull final ByteBuffer key,
+                       @NotNull final ByteBuffer value, final long timeToLive) throws IOException {
+        shard(key).upsert(key, value, timeToLive);
+    }
+
+    /**
+     * Writes merge operand to the shard of the key.
+     *
+     * @param key key of record
+     * @param operand operand of merge operator
+     * @throws IllegalStateException if merge operator is not set
+     */
+    public void merge(@NotNull final ByteBuffer key, @NotNull final ByteBuffer operand) throws IOException {
+        shard(key).merge(key, operand);
+    }
+
+    @Override
+    public void remove(@NotNull final ByteBuffer key) throws IOException {
+        shard(key).remove(key);
+    }
+
+    /**
+     * Removes the range from every shard, since its keys are spread over all of them.
+     */
+    @Override
+    public void removeRange(@NotNull final ByteBuffer from, @NotNull final ByteBuffer to) throws IOException {
+        for (final MyDAO shard : shards) {
+            shard.removeRange(from, to);
+        }
+    }
+
+    /**
+     * Splits every file by shards into temporary files next to tables of the shards,
+     * then ingests the parts shard by shard. Every shard ingests its parts atomically,
+     * but shards may see ingested records at different moments.
+     *
+     * @param files tables written by {@link SSTableWriter}
+     * @throws IOException if a file is corrupted, then nothing is ingested,
+     *                     or if a shard fails to ingest its parts, then the shards before it keep theirs
+     */
+    @Override
+    public void ingest(@NotNull final Path... files) throws IOException {
+        final List<List<Path>> parts = new ArrayList<>(shards.size());
+        for (int i = 0; i < shards.size(); i++) {
+            parts.add(new ArrayList<>(files.length));
+        }
+        final List<Path> tempFiles = new ArrayList<>();
+        try {
+            for (final Path file : files) {
+                final List<Path> split = new ArrayList<>(shards.size());
+                for (int i = 0; i < shards.size(); i++) {
+                    final Path part = SSTable.createTempFile(shardFolder(i), "ingest-");
+                    tempFiles.add(part);
+                    split.add(part);
+                }
+                final long[] amounts = SSTable.split(file, split, prefixExtractor, this::shardIndex);
+                for (int i = 0; i < shards.size(); i++) {
+                    if (amounts[i] > 0) {
+                        parts.get(i).add(split.get(i));
+                    }
+                }
+            }
+            for (int i = 0; i < shards.size(); i++) {
+                if (!parts.get(i).isEmpty()) {
+                    shards.get(i).ingest(parts.get(i).toArray(new Path[0]));
+                }
+            }
+        } finally {
+            for (final Path tempFile : tempFiles) {
+                Files.deleteIfExists(tempFile);
+            }
+        }
+    }
+
+    /**
+     * Writes amount of shards, then tables of the range of every shard as {@link MyDAO} exports them.
+     *
+     * @param from the first key of range
+     * @param to the key following range or null if range is not bounded
+     * @param target blocking channel, e.g. file or socket
+     * @throws IOException if tables can't be read or channel can't be written
+     */
+    @Override
+    public void exportTables(@NotNull final ByteBuffer from, @Nullable final ByteBuffer to,
+                             @NotNull final WritableByteChannel target) throws IOException {
+        final ByteBuffer header = ByteBuffer.allocate(Long.BYTES).putLong(0, shards.size());
+        while (header.hasRemaining()) {
+            target.write(header);
+        }
+        for (final MyDAO shard : shards) {
+            shard.exportTables(from, to, target);
+        }
+    }
+
+    /**
+     * Hands tables of every shard written by {@link #exportTables(ByteBuffer, ByteBuffer, WritableByteChannel)}
+     * to the same shard of this storage, since keys are split between shards by their hashes.
+     * Every shard imports its tables atomically, but shards may see imported records at different moments.
+     *
+     * @param source blocking channel, e.g. file or socket
+     * @throws IOException if stream is malformed or it has different amount of shards, then nothing is imported,
+     *                     or if a shard fails to import its tables, then the shards before it keep theirs
+     */
+    @Override
+    public void importTables(@NotNull final ReadableByteChannel source) throws IOException {
+        final ByteBuffer header = ByteBuffer.allocate(Long.BYTES);
+        while (header.hasRemaining()) {
+            if (source.read(header) < 0) {
+                throw new IOException("Stream of tables is cut");
+            }
+        }
+        final long exportedShards = header.getLong(0);
+        if (exportedShards != shards.size()) {
+            throw new IOException("Stream has " + exportedShards + " shards");
+        }
+        for (final MyDAO shard : shards) {
+            shard.importTables(source);
+        }
+    }
+
+    @Override
+    public void compact() throws IOException {
+        for (final MyDAO shard : shards) {
+            shard.compact();
+        }
+    }
+
+    /**
+     * Saves checkpoints of shards into subdirectories one by one,
+     * so every shard is consistent, but shards may be taken at different moments.
+     */
+    @Override
+    public void checkpoint(@NotNull final Path target) throws IOException {
+        Files.createDirectory(target);
+        for (int i = 0; i < shards.size(); i++) {
+            shards.get(i).checkpoint(target.resolve(SHARD_DIR_PREFIX + i));
+        }
+    }
+
+    @Override
+    public void close() throws IOException {
+        try {
+            closeAll(shards, null);
+        } finally {
+            shutdownExecutors();
+        }
+    }
+
+    private void shutdownExecutors() {
+        if (compactionExecutor != null) {
+            compactionExecutor.shutdown();
+            scrubExecutor.shutdown();
+        }
+    }
+
+    /**
+     * Closes every shard even if some of them fail.
+     */
+    private static void closeAll(final List<MyDAO> shards, final Exception cause) throws IOException {
+        IOException failure = null;
+        for (final MyDAO shard : shards) {
+            try {
+                shard.close();
+            } catch (IOException e) {
+                if (cause != null) {
+                    cause.addSuppressed(e);
+                } else if (failure == null) {
+                    failure = e;
+                } else {
+                    failure.addSuppressed(e);
+                }
+            }
+        }
+        if (failure != null) {
+            throw failure;
+        }
+    }
+}
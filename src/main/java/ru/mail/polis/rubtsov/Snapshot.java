@@ -0,0 +1,236 @@
+package ru.mail.polis.rubtsov;
+
+import com.google.common.base.Preconditions;
+import com.google.common.collect.Iterators;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+import ru.mail.polis.CloseableIterator;
+import ru.mail.polis.Iters;
+import ru.mail.polis.Record;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.List;
+import java.util.NoSuchElementException;
+import java.util.SortedMap;
+import java.util.TreeMap;
+import java.util.TreeSet;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.stream.Stream;
+import java.util.stream.StreamSupport;
+
+/**
+ * Point-in-time view of the storage. Writes made after the snapshot was taken are not visible
+ * through it, and files it reads are kept on disk until it is closed.
+ */
+public final class Snapshot implements Closeable {
+    private final TableSet tables;
+    private final long sequence;
+    private final PrefixExtractor prefixExtractor;
+    private static final int STREAM_PARTS = Runtime.getRuntime().availableProcessors() * 4;
+    private static final int SAMPLES_PER_STREAM_PART = 2;
+
+    private final AtomicBoolean closed = new AtomicBoolean();
+
+    /**
+     * Creates a new view of the acquired tables.
+     *
+     * @param tables tables of storage, they are released on close
+     * @param sequence greatest timestamp of visible records
+     * @param prefixExtractor extractor of prefixes kept in prefix filters of tables
+     */
+    Snapshot(final TableSet tables, final long sequence, @Nullable final PrefixExtractor prefixExtractor) {
+        this.tables = tables;
+        this.sequence = sequence;
+        this.prefixExtractor = prefixExtractor;
+    }
+
+    /**
+     * Provides iterator over records starting at "from" key (inclusive) in ascending order.
+     * Iterator reads tables and value log files of the snapshot, so it must be used before the snapshot is closed.
+     *
+     * @param from the key from which to start the iteration
+     * @return iterator
+     * @throws IllegalStateException if snapshot is closed
+     */
+    @NotNull
+    public CloseableIterator<Record> iterator(@NotNull final ByteBuffer from) throws IOException {
+        Preconditions.checkState(!closed.get(), "Snapshot is closed");
+        final CloseableIterator<Item> itemIterator = tables.itemIterator(from, sequence);
+        final Iterator<Record> records = Iterators.transform(itemIterator, i -> Record.of(i.getKey(), i.getValue()));
+        return new ClosingIterator<>(records, itemIterator::close);
+    }
+
+    /**
+     * Provides iterator over records starting at "from" key (inclusive)
+     * until "to" key (exclusive) in ascending order.
+     *
+     * @param from the key from which to start the iteration
+     * @param to the key at which to stop the iteration or null to iterate till the end
+     * @return iterator
+     * @throws IllegalStateException if snapshot is closed
+     */
+    @NotNull
+    public CloseableIterator<Record> range(@NotNull final ByteBuffer from,
+                                           @Nullable final ByteBuffer to) throws IOException {
+        if (to == null) {
+            return iterator(from);
+        }
+        if (from.compareTo(to) > 0) {
+            return CloseableIterator.of(Iters.empty());
+        }
+        final CloseableIterator<Record> records = iterator(from);
+        return new ClosingIterator<>(Iters.until(records, Record.of(to, Item.TOMBSTONE)), records::close);
+    }
+
+    /**
+     * Provides iterator over records starting at "from" key (inclusive)
+     * until "to" key (exclusive) in ascending order. Tables are read sequentially by large chunks
+     * with read-ahead instead of through the mapping, which suits long scans over data not cached in memory.
+     * Files stay open until the iterator is exhausted or closed, it must be used before the snapshot is closed.
+     *
+     * @param from the key from which to start the iteration
+     * @param to the key at which to stop the iteration or null to iterate till the end
+     * @return iterator
+     * @throws IllegalStateException if snapshot is closed
+     */
+    @NotNull
+    public CloseableIterator<Record> scan(@NotNull final ByteBuffer from,
+                                          @Nullable final ByteBuffer to) throws IOException {
+        Preconditions.checkState(!closed.get(), "Snapshot is closed");
+        if (to != null && from.compareTo(to) > 0) {
+            return CloseableIterator.of(Iters.empty());
+        }
+        final CloseableIterator<Item> itemIterator = tables.scanIterator(from, to, sequence);
+        final Iterator<Record> records = Iterators.transform(itemIterator, i -> Record.of(i.getKey(), i.getValue()));
+        return new ClosingIterator<>(records, itemIterator::close);
+    }
+
+    /**
+     * Provides iterator over records which keys start with the prefix in ascending order.
+     * Tables which can't contain the prefix are not read. Iterator must be used before the snapshot is closed.
+     *
+     * @param prefix prefix of keys
+     * @return iterator
+     * @throws IllegalStateException if snapshot is closed
+     */
+    @NotNull
+    public CloseableIterator<Record> prefix(@NotNull final ByteBuffer prefix) throws IOException {
+        Preconditions.checkState(!closed.get(), "Snapshot is closed");
+        final CloseableIterator<Item> itemIterator = tables.prefixIterator(prefix, sequence, prefixExtractor);
+        final Iterator<Record> records = Iterators.transform(itemIterator, i -> Record.of(i.getKey(), i.getValue()));
+        return new ClosingIterator<>(records, itemIterator::close);
+    }
+
+    /**
+     * Provides sequential stream over records from "from" key (inclusive) until "to" key (exclusive)
+     * in ascending order. Stream splits the range at keys sampled from indexes of SSTables,
+     * so parallel stream processes disjoint sub-ranges. Stream reads tables of the snapshot,
+     * so it must be consumed before the snapshot is closed, and it should be closed after use.
+     *
+     * @param from the key from which to start the iteration
+     * @param to the key at which to stop the iteration or null to iterate till the end
+     * @return stream
+     * @throws IllegalStateException if snapshot is closed
+     */
+    @NotNull
+    public Stream<Record> stream(@NotNull final ByteBuffer from, @Nullable final ByteBuffer to) throws IOException {
+        Preconditions.checkState(!closed.get(), "Snapshot is closed");
+        if (to != null && from.compareTo(to) > 0) {
+            return Stream.empty();
+        }
+        final List<ByteBuffer> splitKeys = TableSet.splitKeys(tables.getSSTables(), from, to,
+                STREAM_PARTS, SAMPLES_PER_STREAM_PART);
+        final RangeSpliterator spliterator = new RangeSpliterator(tables, sequence, from, to, splitKeys);
+        return StreamSupport.stream(spliterator, false).onClose(spliterator::close);
+    }
+
+    /**
+     * Obtains value corresponding to given key. The key is looked up in each table separately,
+     * by hash index if the table has it, so no tables are merged.
+     *
+     * @param key key of record
+     * @return value
+     * @throws NoSuchElementException if no such record
+     * @throws IllegalStateException if snapshot is closed
+     */
+    @NotNull
+    public ByteBuffer get(@NotNull final ByteBuffer key) throws IOException, NoSuchElementException {
+        Preconditions.checkState(!closed.get(), "Snapshot is closed");
+        final Item item = tables.getAll(Collections.singletonList(key), sequence)[0];
+        if (item == null || item.isRemoved()) {
+            throw new NoSuchElementException("Not found");
+        }
+        return item.getValue().asReadOnlyBuffer();
+    }
+
+    /**
+     * Obtains values corresponding to given keys in one pass over each table.
+     *
+     * @param keys keys of records
+     * @return values of existing records ordered by their keys
+     * @throws IllegalStateException if snapshot is closed
+     */
+    @NotNull
+    public SortedMap<ByteBuffer, ByteBuffer> getAll(@NotNull final Collection<ByteBuffer> keys) throws IOException {
+        Preconditions.checkState(!closed.get(), "Snapshot is closed");
+        final List<ByteBuffer> sortedKeys = new ArrayList<>(new TreeSet<>(keys));
+        final Item[] items = tables.getAll(sortedKeys, sequence);
+        final SortedMap<ByteBuffer, ByteBuffer> result = new TreeMap<>();
+        for (int i = 0; i < items.length; i++) {
+            if (items[i] != null && !items[i].isRemoved()) {
+                result.put(sortedKeys.get(i), items[i].getValue().asReadOnlyBuffer());
+            }
+        }
+        return result;
+    }
+
+    /**
+     * Estimates amount of records from "from" key (inclusive) until "to" key (exclusive)
+     * without reading them. Overwritten and removed records are counted as well.
+     *
+     * @param from the first key of range
+     * @param to the key following range or null if range is not bounded
+     * @return amount of records
+     * @throws IllegalStateException if snapshot is closed
+     */
+    public long estimateCount(@NotNull final ByteBuffer from, @Nullable final ByteBuffer to) throws IOException {
+        Preconditions.checkState(!closed.get(), "Snapshot is closed");
+        return tables.estimateCount(from, to);
+    }
+
+    /**
+     * Estimates size of records from "from" key (inclusive) until "to" key (exclusive)
+     * without reading them. Overwritten and removed records are counted as well.
+     *
+     * @param from the first key of range
+     * @param to the key following range or null if range is not bounded
+     * @return size of records in bytes
+     * @throws IllegalStateException if snapshot is closed
+     */
+    public long estimateSize(@NotNull final ByteBuffer from, @Nullable final ByteBuffer to) throws IOException {
+        Preconditions.checkState(!closed.get(), "Snapshot is closed");
+        return tables.estimateSize(from, to);
+    }
+
+    /**
+     * Returns sequence number of the snapshot, records written later have greater ones.
+     *
+     * @return sequence number
+     */
+    public long getSequence() {
+        return sequence;
+    }
+
+    @Override
+    public void close() {
+        if (closed.compareAndSet(false, true)) {
+            tables.release();
+        }
+    }
+}
@@ -0,0 +1,195 @@
+package ru.mail.polis.rubtsov;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Summary of SSTable contents which allows to make decisions
+ * about the whole table without reading its records.
+ */
+final class TableMeta {
+    private static final long NEVER = Long.MAX_VALUE;
+    private static final long ALREADY = Long.MIN_VALUE;
+
+    private final ByteBuffer firstKey;
+    private final ByteBuffer lastKey;
+    private final long minTimeStamp;
+    private final long maxTimeStamp;
+    private final long maxExpiry;
+    private final long minTTLExpiry;
+    private final long maxTTLExpiry;
+    private final long ttlBytes;
+    private final long sizeInBytes;
+
+    private TableMeta(final Builder builder) {
+        this.firstKey = builder.firstKey;
+        this.lastKey = builder.lastKey;
+        this.minTimeStamp = builder.minTimeStamp;
+        this.maxTimeStamp = builder.maxTimeStamp;
+        this.maxExpiry = builder.maxExpiry;
+        this.minTTLExpiry = builder.minTTLExpiry;
+        this.maxTTLExpiry = builder.maxTTLExpiry;
+        this.ttlBytes = builder.ttlBytes;
+        this.sizeInBytes = builder.sizeInBytes;
+    }
+
+    /**
+     * Checks whether every record of the table is dead at the given moment.
+     *
+     * @param now current time in millis
+     * @return true if table contains only tombstones and expired values
+     */
+    boolean isExpired(final long now) {
+        return maxExpiry <= now;
+    }
+
+    /**
+     * Estimates share of table bytes occupied by expired records assuming
+     * that expiry moments are evenly spread between the first and the last one.
+     *
+     * @param now current time in millis
+     * @return ratio from 0 to 1
+     */
+    double expiredRatio(final long now) {
+        if (ttlBytes == 0 || sizeInBytes == 0 || now < minTTLExpiry) {
+            return 0;
+        }
+        final double expiredShare = now >= maxTTLExpiry
+                ? 1 : (double) (now - minTTLExpiry) / (maxTTLExpiry - minTTLExpiry);
+        return expiredShare * ttlBytes / sizeInBytes;
+    }
+
+    ByteBuffer getFirstKey() {
+        return firstKey.asReadOnlyBuffer();
+    }
+
+    ByteBuffer getLastKey() {
+        return lastKey.asReadOnlyBuffer();
+    }
+
+    long getMinTimeStamp() {
+        return minTimeStamp;
+    }
+
+    long getMaxTimeStamp() {
+        return maxTimeStamp;
+    }
+
+    boolean isEmpty() {
+        return sizeInBytes == 0;
+    }
+
+    boolean overlaps(final TableMeta other) {
+        return !isEmpty() && !other.isEmpty()
+                && firstKey.compareTo(other.lastKey) <= 0
+                && other.firstKey.compareTo(lastKey) <= 0;
+    }
+
+    int getSerializedSize() {
+        return Integer.BYTES * 2 + firstKey.remaining() + lastKey.remaining() + Long.BYTES * 7;
+    }
+
+    void writeTo(final ByteBuffer buffer) {
+        buffer.putInt(firstKey.remaining()).put(firstKey.duplicate());
+        buffer.putInt(lastKey.remaining()).put(lastKey.duplicate());
+        buffer.putLong(minTimeStamp)
+                .putLong(maxTimeStamp)
+                .putLong(maxExpiry)
+                .putLong(minTTLExpiry)
+                .putLong(maxTTLExpiry)
+                .putLong(ttlBytes)
+                .putLong(sizeInBytes);
+    }
+
+    static TableMeta readFrom(final ByteBuffer buffer) {
+        final Builder builder = new Builder();
+        builder.firstKey = readKey(buffer);
+        builder.lastKey = readKey(buffer);
+        builder.minTimeStamp = buffer.getLong();
+        builder.maxTimeStamp = buffer.getLong();
+        builder.maxExpiry = buffer.getLong();
+        builder.minTTLExpiry = buffer.getLong();
+        builder.maxTTLExpiry = buffer.getLong();
+        builder.ttlBytes = buffer.getLong();
+        builder.sizeInBytes = buffer.getLong();
+        return builder.build();
+    }
+
+    private static ByteBuffer readKey(final ByteBuffer buffer) {
+        final ByteBuffer key = ByteBuffer.allocate(buffer.getInt());
+        buffer.get(key.array());
+        return key;
+    }
+
+    /**
+     * Collects meta of a table while its items are written one by one in ascending order.
+     */
+    static final class Builder {
+        private ByteBuffer firstKey = Item.TOMBSTONE;
+        private ByteBuffer lastKey = Item.TOMBSTONE;
+        private long minTimeStamp = Long.MAX_VALUE;
+        private long maxTimeStamp = Long.MIN_VALUE;
+        private long maxExpiry = ALREADY;
+        private long minTTLExpiry = Long.MAX_VALUE;
+        private long maxTTLExpiry = Long.MIN_VALUE;
+        private long ttlBytes;
+        private long sizeInBytes;
+
+        /**
+         * Accounts item written to the table.
+         *
+         * @param item item which is written
+         * @param removed whether item is written as a tombstone
+         * @param itemSize size of item in bytes
+         */
+        void add(final Item item, final boolean removed, final long itemSize) {
+            if (sizeInBytes == 0) {
+                firstKey = copyOf(item.getKey());
+            }
+            lastKey = item.getKey();
+            minTimeStamp = Math.min(minTimeStamp, item.getTimeStamp());
+            maxTimeStamp = Math.max(maxTimeStamp, item.getTimeStamp());
+            sizeInBytes += itemSize;
+            if (removed) {
+                return;
+            }
+            if (item.hasTTL()) {
+                final long expiry = item.getExpiry();
+                maxExpiry = Math.max(maxExpiry, expiry);
+                minTTLExpiry = Math.min(minTTLExpiry, expiry);
+                maxTTLExpiry = Math.max(maxTTLExpiry, expiry);
+                ttlBytes += itemSize;
+            } else {
+                maxExpiry = NEVER;
+            }
+        }
+
+        /**
+         * Accounts range tombstone written after all the items. Like other tombstones it is dead,
+         * and it widens bounds of keys to the removed range.
+         *
+         * @param tombstone range tombstone which is written
+         */
+        void add(final RangeTombstone tombstone) {
+            if (sizeInBytes == 0 || tombstone.getFrom().compareTo(firstKey) < 0) {
+                firstKey = copyOf(tombstone.getFrom());
+            }
+            if (sizeInBytes == 0 || tombstone.getTo().compareTo(lastKey) > 0) {
+                lastKey = tombstone.getTo();
+            }
+            minTimeStamp = Math.min(minTimeStamp, tombstone.getTimeStamp());
+            maxTimeStamp = Math.max(maxTimeStamp, tombstone.getTimeStamp());
+            sizeInBytes += tombstone.getSizeInBytes();
+        }
+
+        TableMeta build() {
+            lastKey = copyOf(lastKey);
+            return new TableMeta(this);
+        }
+
+        private static ByteBuffer copyOf(final ByteBuffer key) {
+            final ByteBuffer copy = ByteBuffer.allocate(key.remaining());
+            copy.put(key.duplicate()).flip();
+            return copy;
+        }
+    }
+}
@@ -0,0 +1,436 @@
+package ru.mail.polis.rubtsov;
+
+import com.google.common.collect.AbstractIterator;
+import com.google.common.collect.Iterators;
+import com.google.common.collect.PeekingIterator;
+import org.jetbrains.annotations.Nullable;
+import ru.mail.polis.CloseableIterator;
+import ru.mail.polis.Iters;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.List;
+import java.util.PriorityQueue;
+import java.util.SortedSet;
+import java.util.TreeSet;
+import java.util.function.Predicate;
+
+/**
+ * Immutable set of tables which the storage consists of at some moment.
+ * Storage changes are published by replacing the whole set.
+ */
+final class TableSet {
+    private final List<MemTable> memTables;
+    private final List<SSTable> ssTables;
+    private final MergeOperator mergeOperator;
+
+    /**
+     * Creates a new set of tables.
+     *
+     * @param memTables RAM-tables, the current one is the first and the rest are being flushed
+     * @param ssTables disk tables in any order
+     * @param mergeOperator operator combining merge operands or null if the storage has none
+     */
+    TableSet(final List<MemTable> memTables, final Collection<SSTable> ssTables,
+             @Nullable final MergeOperator mergeOperator) {
+        this.mergeOperator = mergeOperator;
+        this.memTables = Collections.unmodifiableList(new ArrayList<>(memTables));
+        final List<SSTable> sorted = new ArrayList<>(ssTables);
+        sorted.sort(Comparator.comparingLong(SSTable::getGeneration).reversed());
+        this.ssTables = Collections.unmodifiableList(sorted);
+    }
+
+    /**
+     * Returns table which accepts writes.
+     *
+     * @return current RAM-table
+     */
+    MemTable getMemTable() {
+        return memTables.get(0);
+    }
+
+    /**
+     * Returns RAM-tables which are waiting to be flushed from the oldest one.
+     *
+     * @return frozen RAM-tables
+     */
+    List<MemTable> getFrozenMemTables() {
+        final List<MemTable> frozen = new ArrayList<>(memTables.subList(1, memTables.size()));
+        Collections.reverse(frozen);
+        return frozen;
+    }
+
+    /**
+     * Returns disk tables from the newest to the oldest one.
+     *
+     * @return SSTables
+     */
+    List<SSTable> getSSTables() {
+        return ssTables;
+    }
+
+    /**
+     * Makes current RAM-table read-only, following writes go to the given one.
+     *
+     * @param memTable new current RAM-table
+     * @return new set of tables
+     */
+    TableSet freeze(final MemTable memTable) {
+        final List<MemTable> newMemTables = new ArrayList<>(memTables.size() + 1);
+        newMemTables.add(memTable);
+        newMemTables.addAll(memTables);
+        return new TableSet(newMemTables, ssTables, mergeOperator);
+    }
+
+    /**
+     * Replaces frozen RAM-table with the table it was flushed to.
+     *
+     * @param memTable flushed RAM-table
+     * @param flushed new SSTable or null if it can't be opened
+     * @return new set of tables
+     */
+    TableSet flushed(final MemTable memTable, @Nullable final SSTable flushed) {
+        final List<MemTable> newMemTables = new ArrayList<>(memTables);
+        newMemTables.remove(memTable);
+        final List<SSTable> newSSTables = new ArrayList<>(ssTables);
+        if (flushed != null) {
+            newSSTables.add(flushed);
+        }
+        return new TableSet(newMemTables, newSSTables, mergeOperator);
+    }
+
+    /**
+     * Replaces some disk tables with the other ones.
+     *
+     * @param removed tables which are removed
+     * @param added tables which are added
+     * @return new set of tables
+     */
+    TableSet replace(final Collection<SSTable> removed, final Collection<SSTable> added) {
+        final List<SSTable> newSSTables = new ArrayList<>(ssTables);
+        newSSTables.removeAll(removed);
+        newSSTables.addAll(added);
+        return new TableSet(memTables, newSSTables, mergeOperator);
+    }
+
+    /**
+     * Prevents files of disk tables from removal until {@link #release()} is called.
+     *
+     * @return false if some of tables is already removed from storage
+     */
+    boolean acquire() {
+        for (int i = 0; i < ssTables.size(); i++) {
+            if (!ssTables.get(i).acquire()) {
+                ssTables.subList(0, i).forEach(SSTable::release);
+                return false;
+            }
+        }
+        return true;
+    }
+
+    void release() {
+        ssTables.forEach(SSTable::release);
+    }
+
+    /**
+     * Returns iterator over live data as it was at the moment of given sequence number.
+     * Disk tables are kept mapped until the iterator is exhausted or closed.
+     *
+     * @param from the key from which to start the iteration
+     * @param sequence greatest timestamp of visible records
+     * @return iterator
+     * @throws IOException if some table can't be read
+     */
+    CloseableIterator<Item> itemIterator(final ByteBuffer from, final long sequence) throws IOException {
+        final Collection<Iterator<Item>> iterators = new ArrayList<>(memTables.size() + ssTables.size());
+        for (final MemTable m : memTables) {
+            iterators.add(m.iterator(from));
+        }
+        final List<CloseableIterator<Item>> tableIterators = new ArrayList<>(ssTables.size());
+        try {
+            for (final SSTable s : ssTables) {
+                tableIterators.add(s.iterator(from));
+            }
+            iterators.addAll(tableIterators);
+            return mergeClosing(iterators, tableIterators, sequence);
+        } catch (IOException | RuntimeException e) {
+            tableIterators.forEach(CloseableIterator::close);
+            throw e;
+        }
+    }
+
+    /**
+     * Returns iterator over live data of the range as it was at the moment of given sequence number.
+     * Disk tables are read by large chunks with read-ahead instead of the mapping,
+     * their files are closed when the iterator is exhausted or closed.
+     *
+     * @param from the first key of range
+     * @param to the key following range or null if range is not bounded
+     * @param sequence greatest timestamp of visible records
+     * @return iterator
+     * @throws IOException if some table can't be read
+     */
+    CloseableIterator<Item> scanIterator(final ByteBuffer from, @Nullable final ByteBuffer to,
+                                         final long sequence) throws IOException {
+        final Collection<Iterator<Item>> iterators = new ArrayList<>(memTables.size() + ssTables.size());
+        for (final MemTable m : memTables) {
+            iterators.add(to == null ? m.iterator(from)
+                    : Iters.takeWhile(m.iterator(from), i -> i.getKey().compareTo(to) < 0));
+        }
+        final List<CloseableIterator<Item>> scans = new ArrayList<>(ssTables.size());
+        try {
+            for (final SSTable s : ssTables) {
+                scans.add(s.scanIterator(from, to));
+            }
+            iterators.addAll(scans);
+            return mergeClosing(iterators, scans, sequence);
+        } catch (IOException | RuntimeException e) {
+            scans.forEach(CloseableIterator::close);
+            throw e;
+        }
+    }
+
+    /**
+     * Returns iterator over live data with keys starting with the prefix
+     * as it was at the moment of given sequence number.
+     *
+     * @param prefix prefix of keys
+     * @param sequence greatest timestamp of visible records
+     * @param prefixExtractor extractor of prefixes kept in prefix filters of tables
+     * @return iterator
+     * @throws IOException if some table can't be read
+     */
+    CloseableIterator<Item> prefixIterator(final ByteBuffer prefix, final long sequence,
+                                           @Nullable final PrefixExtractor prefixExtractor) throws IOException {
+        final Predicate<Item> hasPrefix = i -> Item.startsWith(i.getKey(), prefix);
+        final Collection<Iterator<Item>> iterators = new ArrayList<>(memTables.size() + ssTables.size());
+        for (final MemTable m : memTables) {
+            iterators.add(Iters.takeWhile(m.iterator(prefix), hasPrefix));
+        }
+        final List<CloseableIterator<Item>> tableIterators = new ArrayList<>(ssTables.size());
+        try {
+            for (final SSTable s : ssTables) {
+                if (s.mayContainPrefix(prefix, prefixExtractor)) {
+                    final CloseableIterator<Item> tableIterator = s.iterator(prefix);
+                    tableIterators.add(tableIterator);
+                    iterators.add(Iters.takeWhile(tableIterator, hasPrefix));
+                }
+            }
+            return mergeClosing(iterators, tableIterators, sequence);
+        } catch (IOException | RuntimeException e) {
+            tableIterators.forEach(CloseableIterator::close);
+            throw e;
+        }
+    }
+
+    /**
+     * Merges iterators of all the tables, iterators of disk tables are closed together with the merged one.
+     */
+    private CloseableIterator<Item> mergeClosing(final Collection<Iterator<Item>> iterators,
+                                                 final List<CloseableIterator<Item>> tableIterators,
+                                                 final long sequence) throws IOException {
+        final Iterator<Item> merged = merge(iterators, sequence, rangeTombstones(sequence), mergeOperator);
+        return new ClosingIterator<>(merged, () -> tableIterators.forEach(CloseableIterator::close));
+    }
+
+    /**
+     * Looks up the newest versions of keys as they were at the moment of given sequence number.
+     *
+     * @param keys ascending distinct keys
+     * @param sequence greatest timestamp of visible records
+     * @return found items, including dead ones, by positions of their keys, merge operands are applied
+     * @throws IOException if some table can't be read
+     */
+    Item[] getAll(final List<ByteBuffer> keys, final long sequence) throws IOException {
+        final Item[] newest = new Item[keys.size()];
+        for (final MemTable m : memTables) {
+            for (int i = 0; i < newest.length; i++) {
+                final Item item = m.get(keys.get(i), sequence);
+                if (item != null && (newest[i] == null || newest[i].getTimeStamp() < item.getTimeStamp())) {
+                    newest[i] = item;
+                }
+            }
+        }
+        for (final SSTable s : ssTables) {
+            s.getAll(keys, sequence, newest);
+        }
+        final RangeTombstones rangeTombstones = rangeTombstones(sequence);
+        for (int i = 0; i < newest.length; i++) {
+            if (newest[i] != null && rangeTombstones.covers(newest[i])) {
+                newest[i] = null;
+            } else if (newest[i] != null && newest[i].isOperand()) {
+                // Operands need the older versions too
+                try (CloseableIterator<Item> merged = itemIterator(keys.get(i), sequence)) {
+                    final Item item = merged.hasNext() ? merged.next() : null;
+                    newest[i] = item == null || !item.getKey().equals(keys.get(i)) ? null : item;
+                }
+            }
+        }
+        return newest;
+    }
+
+    /**
+     * Collects range tombstones of all the tables visible at the moment of given sequence number.
+     *
+     * @param sequence greatest timestamp of visible tombstones
+     * @return tombstones
+     * @throws IOException if some table can't be read
+     */
+    RangeTombstones rangeTombstones(final long sequence) throws IOException {
+        final List<RangeTombstone> tombstones = new ArrayList<>();
+        for (final MemTable m : memTables) {
+            tombstones.addAll(m.getRangeTombstones());
+        }
+        tombstones.addAll(rangeTombstones(ssTables));
+        return RangeTombstones.of(tombstones, sequence);
+    }
+
+    /**
+     * Collects range tombstones of disk tables.
+     *
+     * @param ssTables tables
+     * @return tombstones in any order
+     * @throws IOException if some table can't be read
+     */
+    static List<RangeTombstone> rangeTombstones(final Collection<SSTable> ssTables) throws IOException {
+        final List<RangeTombstone> tombstones = new ArrayList<>();
+        for (final SSTable s : ssTables) {
+            tombstones.addAll(s.getRangeTombstones());
+        }
+        return tombstones;
+    }
+
+    /**
+     * Estimates amount of records in the range by positions of its bounds in tables indexes.
+     * Every version of data is counted, RAM-tables are counted entirely if they overlap the range.
+     *
+     * @param from the first key of range
+     * @param to the key following range or null if range is not bounded
+     * @return amount of records
+     * @throws IOException if some table can't be read
+     */
+    long estimateCount(final ByteBuffer from, @Nullable final ByteBuffer to) throws IOException {
+        long count = 0;
+        for (final MemTable m : memTables) {
+            count += m.overlaps(from, to) ? m.getCount() : 0;
+        }
+        for (final SSTable s : ssTables) {
+            count += s.estimateCount(from, to);
+        }
+        return count;
+    }
+
+    /**
+     * Estimates size of records in the range by offsets of its bounds in tables indexes.
+     * Every version of data is counted, RAM-tables are counted entirely if they overlap the range.
+     *
+     * @param from the first key of range
+     * @param to the key following range or null if range is not bounded
+     * @return size of records in bytes
+     * @throws IOException if some table can't be read
+     */
+    long estimateSize(final ByteBuffer from, @Nullable final ByteBuffer to) throws IOException {
+        long size = 0;
+        for (final MemTable m : memTables) {
+            size += m.overlaps(from, to) ? m.getSizeInBytes() : 0;
+        }
+        for (final SSTable s : ssTables) {
+            size += s.estimateSize(from, to);
+        }
+        return size;
+    }
+
+    /**
+     * Picks keys which split the range into parts of similar size judging by the indexes of SSTables.
+     *
+     * @param ssTables tables containing the data
+     * @param from the first key of range
+     * @param to the key following range or null if range is not bounded
+     * @param parts desired amount of parts
+     * @param samplesPerPart amount of keys sampled from each table per part
+     * @return ascending distinct keys inside the range, there may be less of them than needed
+     * @throws IOException if some table can't be read
+     */
+    static List<ByteBuffer> splitKeys(final List<SSTable> ssTables, final ByteBuffer from,
+                                      @Nullable final ByteBuffer to, final int parts,
+                                      final int samplesPerPart) throws IOException {
+        if (parts <= 1) {
+            return Collections.emptyList();
+        }
+        final SortedSet<ByteBuffer> samples = new TreeSet<>();
+        for (final SSTable s : ssTables) {
+            samples.addAll(s.sampleKeys(from, to, parts * samplesPerPart));
+        }
+        // The first part must not be empty
+        samples.remove(from);
+        if (samples.isEmpty()) {
+            return Collections.emptyList();
+        }
+        final List<ByteBuffer> sortedSamples = new ArrayList<>(samples);
+        final List<ByteBuffer> bounds = new ArrayList<>(parts - 1);
+        for (int i = 1; i < parts; i++) {
+            final ByteBuffer bound = sortedSamples.get(sortedSamples.size() * i / parts);
+            if (bounds.isEmpty() || bounds.get(bounds.size() - 1).compareTo(bound) < 0) {
+                bounds.add(bound);
+            }
+        }
+        return bounds;
+    }
+
+    /**
+     * Merges data of several tables leaving only the newest live version of each key.
+     * Tables must include the oldest data, since merge operands are applied to what is found below them.
+     * Versions are ordered by timestamps, versions of equal timestamps by tables, so the newer table wins.
+     *
+     * @param iterators iterators over tables, RAM-tables first and then disk tables from the newest generation
+     * @param sequence greatest timestamp of visible records
+     * @param rangeTombstones range tombstones of the tables
+     * @param mergeOperator operator combining merge operands or null if the storage has none
+     * @return iterator
+     */
+    static Iterator<Item> merge(final Collection<Iterator<Item>> iterators, final long sequence,
+                                final RangeTombstones rangeTombstones,
+                                @Nullable final MergeOperator mergeOperator) {
+        final Iterator<Item> mergedIter = mergeSorted(iterators);
+        final Iterator<Item> visibleIter = rangeTombstones.filter(sequence == Long.MAX_VALUE
+                ? mergedIter : Iterators.filter(mergedIter, i -> i.getTimeStamp() <= sequence));
+        final Iterator<Item> collapsedIter = new ResolvingIterator(visibleIter, mergeOperator, true);
+        return Iterators.filter(collapsedIter, i -> !i.isRemoved());
+    }
+
+    /**
+     * Merges sorted iterators, equal items come in the order of iterators unlike
+     * {@link Iterators#mergeSorted(Iterable, Comparator)} which leaves it undefined.
+     */
+    private static Iterator<Item> mergeSorted(final Collection<Iterator<Item>> iterators) {
+        final List<PeekingIterator<Item>> sources = new ArrayList<>(iterators.size());
+        iterators.forEach(i -> sources.add(Iterators.peekingIterator(i)));
+        final Comparator<Integer> order = Comparator.<Integer, Item>comparing(i -> sources.get(i).peek(),
+                Item.COMPARATOR).thenComparingInt(i -> i);
+        final PriorityQueue<Integer> queue = new PriorityQueue<>(Math.max(1, sources.size()), order);
+        for (int i = 0; i < sources.size(); i++) {
+            if (sources.get(i).hasNext()) {
+                queue.add(i);
+            }
+        }
+        return new AbstractIterator<Item>() {
+            @Override
+            protected Item computeNext() {
+                final Integer source = queue.poll();
+                if (source == null) {
+                    return endOfData();
+                }
+                final Item item = sources.get(source).next();
+                if (sources.get(source).hasNext()) {
+                    queue.add(source);
+                }
+                return item;
+            }
+        };
+    }
+}
@@ -1,11 +1,13 @@
 package ru.mail.polis.rubtsov;
 
+import java.util.concurrent.atomic.AtomicLong;
+
 /**
  * Simple nano time to avoid collisions.
+ * Returned values strictly grow, so they serve as sequence numbers of writes.
  */
 final class TimeUtils {
-    private static long millis;
-    private static int additionalTime;
+    private static final AtomicLong lastTime = new AtomicLong();
 
     private TimeUtils() {
     }
@@ -15,11 +17,15 @@ final class TimeUtils {
      * @return current time in nanos
      */
     static long getCurrentTime() {
-        final long systemCurrentTime = System.currentTimeMillis();
-        if (millis != systemCurrentTime) {
-            millis = systemCurrentTime;
-            additionalTime = 0;
-        }
-        return millis * 1_000_000 + additionalTime++;
+        final long systemCurrentTime = System.currentTimeMillis() * 1_000_000;
+        return lastTime.accumulateAndGet(systemCurrentTime, (last, now) -> Math.max(last + 1, now));
+    }
+
+    /**
+     * Makes the following times greater than the given one, e.g. timestamp of imported record.
+     * @param time time in nanos
+     */
+    static void advance(final long time) {
+        lastTime.accumulateAndGet(time, Math::max);
     }
 }
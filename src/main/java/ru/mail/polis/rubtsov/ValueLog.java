@@ -0,0 +1,237 @@
+package ru.mail.polis.rubtsov;
+
+import com.google.common.collect.Iterators;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+import java.util.zip.CRC32C;
+
+/**
+ * Append-only files keeping large values apart from SSTables, which store only pointers to them,
+ * so compaction rewrites keys and pointers instead of values.
+ * Record format: [key size][key][value size][value][checksum].
+ * Pointer format: [file id][offset of record][size of record].
+ */
+final class ValueLog implements Closeable {
+    static final String FILE_EXTENSION = ".vlog";
+    static final int POINTER_SIZE = Long.BYTES * 2 + Integer.BYTES;
+    private static final long MAX_FILE_SIZE = 64L * 1024 * 1024;
+
+    private final File dir;
+    private final ConcurrentMap<Long, FileChannel> channels = new ConcurrentHashMap<>();
+    private long nextFileId;
+    private long currentFileId = -1;
+    private FileChannel writer;
+    private long currentSize;
+    private static final Logger logger = LoggerFactory.getLogger(ValueLog.class);
+
+    /**
+     * Opens value log files of the directory, they are appended to new files only.
+     *
+     * @param dir data files directory
+     */
+    ValueLog(final File dir) throws IOException {
+        this.dir = dir;
+        long maxFileId = 0;
+        for (final long fileId : listFiles()) {
+            maxFileId = Math.max(maxFileId, fileId);
+        }
+        nextFileId = maxFileId + 1;
+    }
+
+    private Set<Long> listFiles() throws IOException {
+        try (Stream<Path> files = Files.list(dir.toPath())) {
+            return files.map(p -> p.getFileName().toString())
+                    .filter(n -> n.endsWith(FILE_EXTENSION))
+                    .map(n -> n.substring(0, n.length() - FILE_EXTENSION.length()))
+                    .filter(n -> !n.isEmpty() && n.length() < 19 && n.chars().allMatch(Character::isDigit))
+                    .map(Long::parseLong)
+                    .collect(Collectors.toSet());
+        }
+    }
+
+    File file(final long fileId) {
+        return new File(dir, fileId + FILE_EXTENSION);
+    }
+
+    private FileChannel channel(final long fileId) throws IOException {
+        try {
+            return channels.computeIfAbsent(fileId, id -> {
+                try {
+                    return FileChannel.open(file(id).toPath(), StandardOpenOption.READ);
+                } catch (IOException e) {
+                    throw new UncheckedIOException(e);
+                }
+            });
+        } catch (UncheckedIOException e) {
+            throw e.getCause();
+        }
+    }
+
+    /**
+     * Appends record to the current file starting a new one when it is full.
+     *
+     * @param key key of record
+     * @param value value of record
+     * @return pointer to the record
+     * @throws IOException if file can't be written
+     */
+    synchronized ByteBuffer append(final ByteBuffer key, final ByteBuffer value) throws IOException {
+        if (writer == null || currentSize >= MAX_FILE_SIZE) {
+            if (writer != null) {
+                writer.close();
+            }
+            currentFileId = nextFileId++;
+            writer = FileChannel.open(file(currentFileId).toPath(),
+                    StandardOpenOption.WRITE, StandardOpenOption.CREATE);
+            // File of a crashed session may already exist
+            currentSize = writer.size();
+        }
+        final int size = Integer.BYTES * 3 + key.remaining() + value.remaining();
+        final ByteBuffer record = ByteBuffer.allocate(size);
+        record.putInt(key.remaining()).put(key.duplicate())
+                .putInt(value.remaining()).put(value.duplicate());
+        final CRC32C crc = new CRC32C();
+        crc.update(record.duplicate().flip());
+        record.putInt((int) crc.getValue()).flip();
+        long position = currentSize;
+        while (record.hasRemaining()) {
+            position += writer.write(record, position);
+        }
+        final ByteBuffer pointer = ByteBuffer.allocate(POINTER_SIZE)
+                .putLong(currentFileId)
+                .putLong(currentSize)
+                .putInt(size)
+                .flip();
+        currentSize += size;
+        return pointer;
+    }
+
+    /**
+     * Reads value by its pointer verifying the record.
+     *
+     * @param pointer pointer returned by {@link #append(ByteBuffer, ByteBuffer)}
+     * @return value
+     * @throws IOException if file can't be read or record is corrupted
+     */
+    ByteBuffer read(final ByteBuffer pointer) throws IOException {
+        final long fileId = fileId(pointer);
+        final long offset = pointer.getLong(pointer.position() + Long.BYTES);
+        final ByteBuffer record = ByteBuffer.allocate(recordSize(pointer));
+        final FileChannel channel = channel(fileId);
+        while (record.hasRemaining()) {
+            if (channel.read(record, offset + record.position()) < 0) {
+                throw new IOException("Record is cut in value log " + fileId);
+            }
+        }
+        record.flip();
+        final CRC32C crc = new CRC32C();
+        crc.update(record.duplicate().limit(record.limit() - Integer.BYTES));
+        if ((int) crc.getValue() != record.getInt(record.limit() - Integer.BYTES)) {
+            throw new IOException("Checksum mismatch in value log " + fileId + " at " + offset);
+        }
+        record.position(Integer.BYTES + record.getInt(0));
+        final int valueSize = record.getInt();
+        return record.limit(record.position() + valueSize).slice().asReadOnlyBuffer();
+    }
+
+    static long fileId(final ByteBuffer pointer) {
+        return pointer.getLong(pointer.position());
+    }
+
+    static int recordSize(final ByteBuffer pointer) {
+        return pointer.getInt(pointer.position() + Long.BYTES * 2);
+    }
+
+    /**
+     * Moves large values to the log and values from the given files to the current one.
+     *
+     * @param items items which are written to a new table
+     * @param threshold least size of moved values or 0 if new values are not moved
+     * @param relocatedFiles files which values are rewritten
+     * @return items with pointers instead of moved values
+     */
+    Iterator<Item> separate(final Iterator<Item> items, final int threshold, final Set<Long> relocatedFiles) {
+        return Iterators.transform(items, i -> {
+            if (i.isRemoved() || i.isOperand()) {
+                return i;
+            }
+            final boolean separated = i.isSeparated();
+            if (separated && !relocatedFiles.contains(fileId(i.getStoredValue()))
+                    || !separated && (threshold == 0 || i.getValue().remaining() < threshold)) {
+                return i;
+            }
+            try {
+                final ByteBuffer pointer = append(i.getKey(), i.getValue());
+                return Item.separated(i.getKey(), pointer, i.getTimeStamp(), i.getTimeToLive(), this);
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+        });
+    }
+
+    /**
+     * Returns sizes of files which are not appended to anymore.
+     *
+     * @return size by file id
+     * @throws IOException if files can't be listed
+     */
+    synchronized Map<Long, Long> getSealedFileSizes() throws IOException {
+        final Map<Long, Long> sizes = new HashMap<>();
+        for (final long fileId : listFiles()) {
+            if (fileId != currentFileId) {
+                sizes.put(fileId, file(fileId).length());
+            }
+        }
+        return sizes;
+    }
+
+    /**
+     * Removes files, they must not be referenced by any table.
+     *
+     * @param fileIds ids of files
+     */
+    void delete(final Collection<Long> fileIds) {
+        for (final long fileId : fileIds) {
+            final FileChannel channel = channels.remove(fileId);
+            try {
+                if (channel != null) {
+                    channel.close();
+                }
+                Files.delete(file(fileId).toPath());
+            } catch (IOException e) {
+                logger.error("Can't remove value log: {}", file(fileId).getName(), e);
+            }
+        }
+    }
+
+    @Override
+    public synchronized void close() throws IOException {
+        if (writer != null) {
+            writer.close();
+            writer = null;
+        }
+        for (final FileChannel channel : channels.values()) {
+            channel.close();
+        }
+        channels.clear();
+    }
+}
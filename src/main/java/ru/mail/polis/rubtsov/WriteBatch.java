@@ -0,0 +1,103 @@
+package ru.mail.polis.rubtsov;
+
+import org.jetbrains.annotations.NotNull;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.function.Consumer;
+
+/**
+ * Group of changes which {@link MyDAO#write(WriteBatch)} applies at once,
+ * so any snapshot sees either all of them or none.
+ */
+public final class WriteBatch {
+    private final List<Consumer<MemTable>> changes = new ArrayList<>();
+    private boolean hasOperands;
+
+    /**
+     * Adds insertion or update of value by given key.
+     *
+     * @param key key of record
+     * @param value new value
+     * @return this batch
+     */
+    public WriteBatch upsert(@NotNull final ByteBuffer key, @NotNull final ByteBuffer value) {
+        return upsert(key, value, Item.NO_TTL);
+    }
+
+    /**
+     * Adds insertion or update of value by given key with time-to-live in millis.
+     *
+     * @param key key of record
+     * @param value new value
+     * @param timeToLive time-to-live in millis
+     * @return this batch
+     */
+    public WriteBatch upsert(@NotNull final ByteBuffer key, @NotNull final ByteBuffer value,
+                             final long timeToLive) {
+        final ByteBuffer keyCopy = key.duplicate();
+        final ByteBuffer valueCopy = value.duplicate();
+        changes.add(m -> m.upsert(keyCopy, valueCopy, timeToLive));
+        return this;
+    }
+
+    /**
+     * Adds removal of value by given key.
+     *
+     * @param key key of record
+     * @return this batch
+     */
+    public WriteBatch remove(@NotNull final ByteBuffer key) {
+        final ByteBuffer keyCopy = key.duplicate();
+        changes.add(m -> m.remove(keyCopy));
+        return this;
+    }
+
+    /**
+     * Adds removal of keys from "from" (inclusive) until "to" (exclusive).
+     *
+     * @param from the first removed key
+     * @param to the key following removed ones
+     * @return this batch
+     */
+    public WriteBatch removeRange(@NotNull final ByteBuffer from, @NotNull final ByteBuffer to) {
+        if (from.compareTo(to) < 0) {
+            final ByteBuffer fromCopy = from.duplicate();
+            final ByteBuffer toCopy = to.duplicate();
+            changes.add(m -> m.removeRange(fromCopy, toCopy));
+        }
+        return this;
+    }
+
+    /**
+     * Adds merge operand which is applied to the value by given key.
+     *
+     * @param key key of record
+     * @param operand operand of the storage {@link MergeOperator}
+     * @return this batch
+     */
+    public WriteBatch merge(@NotNull final ByteBuffer key, @NotNull final ByteBuffer operand) {
+        final ByteBuffer keyCopy = key.duplicate();
+        final ByteBuffer operandCopy = operand.duplicate();
+        changes.add(m -> m.merge(keyCopy, operandCopy));
+        hasOperands = true;
+        return this;
+    }
+
+    public boolean isEmpty() {
+        return changes.isEmpty();
+    }
+
+    public int size() {
+        return changes.size();
+    }
+
+    boolean hasOperands() {
+        return hasOperands;
+    }
+
+    void applyTo(final MemTable memTable) {
+        changes.forEach(c -> c.accept(memTable));
+    }
+}
@@ -0,0 +1,158 @@
+package ru.mail.polis;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+import ru.mail.polis.rubtsov.AsyncDAO;
+import ru.mail.polis.rubtsov.MyDAO;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.NoSuchElementException;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Flow;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/**
+ * Checks asynchronous facade of storage.
+ *
+ * @author Nikolai Rubtsov
+ */
+class AsyncDAOTest extends TestBase {
+    @Test
+    void writesInOrder(@TempDir File data) throws Exception {
+        final ByteBuffer key = randomKey();
+        final List<CompletableFuture<Void>> writes = new ArrayList<>();
+        ByteBuffer value = null;
+
+        try (AsyncDAO dao = new AsyncDAO(new MyDAO(data, DAOFactory.MAX_HEAP))) {
+            for (int i = 0; i < 1000; i++) {
+                value = randomValue();
+                writes.add(dao.upsertAsync(key, value));
+            }
+            CompletableFuture.allOf(writes.toArray(new CompletableFuture<?>[0])).get();
+            assertEquals(value, dao.getAsync(key).get());
+
+            dao.removeAsync(key).get();
+            final ExecutionException e = assertThrows(ExecutionException.class, () -> dao.getAsync(key).get());
+            assertTrue(e.getCause() instanceof NoSuchElementException);
+        }
+    }
+
+    @Test
+    void range(@TempDir File data) throws Exception {
+        final ByteBuffer from = join(ByteBuffer.wrap(new byte[]{1}), randomKey());
+        final ByteBuffer to = join(ByteBuffer.wrap(new byte[]{2}), randomKey());
+        final ByteBuffer value = randomValue();
+
+        try (AsyncDAO dao = new AsyncDAO(new MyDAO(data, DAOFactory.MAX_HEAP))) {
+            dao.upsertAsync(from, value);
+            dao.upsertAsync(to, value).get();
+            try (CloseableIterator<Record> iterator = dao.rangeAsync(from, to).get()) {
+                assertTrue(iterator.hasNext());
+                assertEquals(Record.of(from, value), iterator.next());
+                assertFalse(iterator.hasNext());
+            }
+        }
+    }
+
+    @Test
+    void publisherFollowsDemand(@TempDir File data) throws Exception {
+        final int count = 1000;
+        final ByteBuffer value = randomValue();
+
+        try (AsyncDAO dao = new AsyncDAO(new MyDAO(data, DAOFactory.MAX_HEAP))) {
+            for (int i = 0; i < count; i++) {
+                dao.upsertAsync(randomKey(), value);
+            }
+            dao.upsertAsync(randomKey(), value).get();
+
+            final BlockingQueue<Object> signals = new LinkedBlockingQueue<>();
+            final Flow.Subscription subscription = subscribe(dao.rangePublisher(ByteBuffer.allocate(0), null), signals);
+            ByteBuffer previous = null;
+            for (int i = 0; i <= count; i++) {
+                subscription.request(1);
+                final Record record = (Record) signals.poll(10, TimeUnit.SECONDS);
+                if (previous != null) {
+                    assertTrue(previous.compareTo(record.getKey()) < 0);
+                }
+                previous = record.getKey();
+                assertEquals(value, record.getValue());
+                // Nothing more than requested
+                assertFalse(signals.peek() instanceof Record);
+            }
+            assertEquals(Boolean.TRUE, signals.poll(10, TimeUnit.SECONDS));
+        }
+    }
+
+    @Test
+    void publisherStopsOnCancel(@TempDir File data) throws Exception {
+        try (AsyncDAO dao = new AsyncDAO(new MyDAO(data, DAOFactory.MAX_HEAP))) {
+            dao.upsertAsync(randomKey(), randomValue());
+            dao.upsertAsync(randomKey(), randomValue()).get();
+
+            final BlockingQueue<Object> signals = new LinkedBlockingQueue<>();
+            final Flow.Subscription subscription = subscribe(dao.rangePublisher(ByteBuffer.allocate(0), null), signals);
+            subscription.request(1);
+            assertTrue(signals.poll(10, TimeUnit.SECONDS) instanceof Record);
+            subscription.cancel();
+            subscription.request(1);
+            assertNull(signals.poll(100, TimeUnit.MILLISECONDS));
+        }
+    }
+
+    /**
+     * Collects records, completion as TRUE and errors into the queue.
+     */
+    private static Flow.Subscription subscribe(final Flow.Publisher<Record> publisher,
+                                               final BlockingQueue<Object> signals) throws InterruptedException {
+        final BlockingQueue<Flow.Subscription> subscriptions = new LinkedBlockingQueue<>();
+        publisher.subscribe(new Flow.Subscriber<>() {
+            @Override
+            public void onSubscribe(final Flow.Subscription subscription) {
+                subscriptions.add(subscription);
+            }
+
+            @Override
+            public void onNext(final Record item) {
+                signals.add(item);
+            }
+
+            @Override
+            public void onError(final Throwable throwable) {
+                signals.add(throwable);
+            }
+
+            @Override
+            public void onComplete() {
+                signals.add(Boolean.TRUE);
+            }
+        });
+        return subscriptions.take();
+    }
+
+    @Test
+    void closeWaitsForWrites(@TempDir File data) throws IOException {
+        final ByteBuffer key = randomKey();
+        final ByteBuffer value = randomValue();
+
+        try (AsyncDAO dao = new AsyncDAO(new MyDAO(data, DAOFactory.MAX_HEAP))) {
+            dao.upsertAsync(key, value);
+        }
+
+        try (DAO dao = new MyDAO(data, DAOFactory.MAX_HEAP)) {
+            assertEquals(value, dao.get(key));
+        }
+    }
+}
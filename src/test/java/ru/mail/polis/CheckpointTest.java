@@ -0,0 +1,89 @@
+package ru.mail.polis;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+import ru.mail.polis.rubtsov.Options;
+import ru.mail.polis.rubtsov.ShardedDAO;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.file.FileAlreadyExistsException;
+import java.nio.file.Path;
+import java.util.HashMap;
+import java.util.Map;
+
+import static org.junit.jupiter.api.Assertions.assertThrows;
+
+/**
+ * Checks checkpoints made by hard links.
+ *
+ * @author Nikolai Rubtsov
+ */
+class CheckpointTest extends TestBase {
+    private static final int RECORDS = 1000;
+
+    private static final Options OPTIONS = new Options().setValueLogThreshold(1024);
+
+    private static ByteBuffer mixedValue(final int i) {
+        // Every other value is moved to value log
+        return randomBuffer(i % 2 == 0 ? 2048 : 16);
+    }
+
+    @Test
+    void checkpointIsNotChangedByStorage(@TempDir File data, @TempDir File backups) throws IOException {
+        final Map<ByteBuffer, ByteBuffer> expected = new HashMap<>();
+        final Path checkpoint = backups.toPath().resolve("checkpoint");
+        try (DAO dao = open(data, OPTIONS)) {
+            for (int i = 0; i < RECORDS; i++) {
+                final ByteBuffer key = randomKey();
+                final ByteBuffer value = mixedValue(i);
+                dao.upsert(key, value);
+                expected.put(key, value);
+                if (i == RECORDS / 2) {
+                    dao.compact();
+                }
+            }
+            dao.checkpoint(checkpoint);
+            assertThrows(FileAlreadyExistsException.class, () -> dao.checkpoint(checkpoint));
+
+            // Files shared with the checkpoint are replaced and removed
+            final Map<ByteBuffer, ByteBuffer> changed = new HashMap<>(expected);
+            for (final ByteBuffer key : expected.keySet()) {
+                dao.remove(key);
+                changed.remove(key);
+            }
+            for (int i = 0; i < RECORDS; i++) {
+                final ByteBuffer key = randomKey();
+                final ByteBuffer value = mixedValue(i);
+                dao.upsert(key, value);
+                changed.put(key, value);
+            }
+            dao.compact();
+            assertContents(changed, dao);
+        }
+
+        try (DAO dao = open(checkpoint.toFile(), OPTIONS)) {
+            assertContents(expected, dao);
+        }
+    }
+
+    @Test
+    void shardedCheckpoint(@TempDir File data, @TempDir File backups) throws IOException {
+        final Map<ByteBuffer, ByteBuffer> expected = new HashMap<>();
+        final Path checkpoint = backups.toPath().resolve("checkpoint");
+        try (DAO dao = new ShardedDAO(data, DAOFactory.MAX_HEAP, 3)) {
+            for (int i = 0; i < RECORDS; i++) {
+                final ByteBuffer key = randomKey();
+                final ByteBuffer value = randomValue();
+                dao.upsert(key, value);
+                expected.put(key, value);
+            }
+            dao.checkpoint(checkpoint);
+            dao.upsert(randomKey(), randomValue());
+        }
+        try (DAO dao = new ShardedDAO(checkpoint.toFile(), DAOFactory.MAX_HEAP, 3)) {
+            assertContents(expected, dao);
+        }
+    }
+}
@@ -0,0 +1,118 @@
+package ru.mail.polis;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+import ru.mail.polis.rubtsov.MyDAO;
+import ru.mail.polis.rubtsov.Options;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.util.Iterator;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/**
+ * Checks detection of corrupted tables by checksums.
+ *
+ * @author Nikolai Rubtsov
+ */
+class ChecksumTest extends TestBase {
+    private static final int RECORDS = 10_000;
+    private static final long SCRUB_RATE = 16L * 1024 * 1024;
+
+    private static MyDAO scrubbed(final File data) throws IOException {
+        return new MyDAO(data, DAOFactory.MAX_HEAP, new Options().setScrubRate(SCRUB_RATE));
+    }
+
+    private static File fill(final File data) throws IOException {
+        try (DAO dao = new MyDAO(data, DAOFactory.MAX_HEAP)) {
+            for (int i = 0; i < RECORDS; i++) {
+                dao.upsert(randomKey(), randomValue());
+            }
+            dao.compact();
+        }
+        final File[] tables = data.listFiles((dir, name) -> name.endsWith(".dat"));
+        assertEquals(1, tables.length);
+        return tables[0];
+    }
+
+    private static void flipByte(final File file, final long position) throws IOException {
+        try (RandomAccessFile raf = new RandomAccessFile(file, "rw")) {
+            raf.seek(position);
+            final int b = raf.read();
+            raf.seek(position);
+            raf.write(b ^ 0xFF);
+        }
+    }
+
+    @Test
+    void intactTable(@TempDir File data) throws IOException {
+        fill(data);
+        try (MyDAO dao = scrubbed(data)) {
+            assertEquals(0, dao.scrub());
+            final Iterator<Record> records = dao.iterator(ByteBuffer.allocate(0));
+            int count = 0;
+            while (records.hasNext()) {
+                records.next();
+                count++;
+            }
+            assertEquals(RECORDS, count);
+        }
+    }
+
+    @Test
+    void corruptedRecord(@TempDir File data) throws Exception {
+        final File table = fill(data);
+        flipByte(table, table.length() / 4);
+
+        // Table found corrupted by a read is quarantined without scrubbing
+        try (DAO dao = new MyDAO(data, DAOFactory.MAX_HEAP)) {
+            final Iterator<Record> records = dao.iterator(ByteBuffer.allocate(0));
+            assertThrows(UncheckedIOException.class, () -> {
+                while (records.hasNext()) {
+                    records.next();
+                }
+            });
+
+            awaitQuarantine(table);
+            assertFalse(dao.iterator(ByteBuffer.allocate(0)).hasNext());
+        }
+        assertTrue(new File(data, table.getName().replace(".dat", ".corrupted")).exists());
+
+        // Quarantined table is not opened again
+        try (DAO dao = new MyDAO(data, DAOFactory.MAX_HEAP)) {
+            assertFalse(dao.iterator(ByteBuffer.allocate(0)).hasNext());
+        }
+    }
+
+    @Test
+    void corruptedTableIsScrubbed(@TempDir File data) throws IOException {
+        final File table = fill(data);
+        flipByte(table, table.length() / 4);
+
+        try (MyDAO dao = scrubbed(data)) {
+            assertEquals(1, dao.scrub());
+            assertFalse(dao.iterator(ByteBuffer.allocate(0)).hasNext());
+        }
+        assertFalse(table.exists());
+    }
+
+    @Test
+    void corruptedFooter(@TempDir File data) throws Exception {
+        final File table = fill(data);
+        // Inside the last section, before the footer tail
+        flipByte(table, table.length() - 30);
+
+        try (DAO dao = new MyDAO(data, DAOFactory.MAX_HEAP)) {
+            assertThrows(IOException.class, () -> dao.iterator(ByteBuffer.allocate(0)));
+            awaitQuarantine(table);
+            assertFalse(dao.iterator(ByteBuffer.allocate(0)).hasNext());
+        }
+    }
+}
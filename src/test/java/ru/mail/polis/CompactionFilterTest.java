@@ -0,0 +1,64 @@
+package ru.mail.polis;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+import ru.mail.polis.rubtsov.MyDAO;
+import ru.mail.polis.rubtsov.Options;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.NoSuchElementException;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+
+/**
+ * Checks that compaction filter drops and rewrites records
+ * only when compaction happens.
+ *
+ * @author Nikolai Rubtsov
+ */
+class CompactionFilterTest extends TestBase {
+    private static final ByteBuffer DROP = ByteBuffer.wrap(new byte[]{0});
+    private static final ByteBuffer REPLACE = ByteBuffer.wrap(new byte[]{1});
+    private static final ByteBuffer REPLACEMENT = ByteBuffer.wrap(new byte[]{2});
+
+    private static final Options OPTIONS = new Options().setCompactionFilter((key, value) -> {
+        if (value.equals(DROP)) {
+            return null;
+        }
+        return value.equals(REPLACE) ? REPLACEMENT : value;
+    });
+
+    @Test
+    void dropAndReplace(@TempDir File data) throws IOException {
+        final ByteBuffer dropped = randomKey();
+        final ByteBuffer replaced = randomKey();
+        final ByteBuffer kept = randomKey();
+        final ByteBuffer value = randomValue();
+
+        try (DAO dao = new MyDAO(data, DAOFactory.MAX_HEAP, OPTIONS)) {
+            dao.upsert(dropped, DROP);
+            dao.upsert(replaced, REPLACE);
+            dao.upsert(kept, value);
+        }
+
+        // Nothing changes before compaction
+        try (DAO dao = new MyDAO(data, DAOFactory.MAX_HEAP, OPTIONS)) {
+            assertEquals(DROP, dao.get(dropped));
+            assertEquals(REPLACE, dao.get(replaced));
+            dao.compact();
+            assertThrows(NoSuchElementException.class, () -> dao.get(dropped));
+            assertEquals(REPLACEMENT, dao.get(replaced));
+            assertEquals(value, dao.get(kept));
+        }
+
+        // Dropped record doesn't come back
+        try (DAO dao = new MyDAO(data, DAOFactory.MAX_HEAP, OPTIONS)) {
+            assertThrows(NoSuchElementException.class, () -> dao.get(dropped));
+            assertEquals(REPLACEMENT, dao.get(replaced));
+            assertEquals(value, dao.get(kept));
+        }
+    }
+}
@@ -0,0 +1,106 @@
+package ru.mail.polis;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+import ru.mail.polis.rubtsov.MyDAO;
+import ru.mail.polis.rubtsov.Options;
+import ru.mail.polis.rubtsov.PlacementPolicy;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/**
+ * Checks storage which spreads tables over several folders.
+ *
+ * @author Nikolai Rubtsov
+ */
+class DataFoldersTest extends TestBase {
+    private static final int TABLES = 6;
+    private static final int RECORDS = 500;
+
+    private static File folder(final File parent, final String name) {
+        final File folder = new File(parent, name);
+        assertTrue(folder.mkdir());
+        return folder;
+    }
+
+    private static int tablesIn(final File folder) {
+        return folder.list((dir, name) -> name.endsWith(".dat")).length;
+    }
+
+    private static void write(final File data, final Options options,
+                              final Map<ByteBuffer, ByteBuffer> expected) throws IOException {
+        // Every session leaves its own table
+        for (int table = 0; table < TABLES; table++) {
+            try (DAO dao = open(data, options)) {
+                for (int i = 0; i < RECORDS; i++) {
+                    final ByteBuffer key = randomKey();
+                    final ByteBuffer value = randomValue();
+                    dao.upsert(key, value);
+                    expected.put(key, value);
+                }
+            }
+        }
+    }
+
+    @Test
+    void roundRobin(@TempDir File root) throws IOException {
+        final File data = folder(root, "data");
+        final List<File> extra = Arrays.asList(folder(root, "first"), folder(root, "second"));
+        final Options options = new Options().setExtraFolders(extra);
+        final Map<ByteBuffer, ByteBuffer> expected = new TreeMap<>();
+        write(data, options, expected);
+        assertEquals(TABLES / 3, tablesIn(data));
+        assertEquals(TABLES / 3, tablesIn(extra.get(0)));
+        assertEquals(TABLES / 3, tablesIn(extra.get(1)));
+
+        try (DAO dao = open(data, options)) {
+            assertContents(expected, dao);
+            dao.compact();
+            assertContents(expected, dao);
+        }
+        try (DAO dao = open(data, options)) {
+            assertContents(expected, dao);
+        }
+        // Tables of the extra folders are not lost silently
+        assertThrows(IOException.class, () -> new MyDAO(data, DAOFactory.MAX_HEAP).close());
+    }
+
+    @Test
+    void byLevel(@TempDir File root) throws IOException {
+        final File data = folder(root, "data");
+        final List<File> extra = Arrays.asList(folder(root, "first"), folder(root, "second"));
+        final Options options = new Options()
+                .setExtraFolders(extra)
+                .setPlacementPolicy(PlacementPolicy.BY_LEVEL);
+        final Map<ByteBuffer, ByteBuffer> expected = new TreeMap<>();
+        write(data, options, expected);
+        assertEquals(TABLES, tablesIn(data));
+
+        final Path checkpoint = root.toPath().resolve("checkpoint");
+        try (DAO dao = open(data, options)) {
+            dao.compact();
+            assertEquals(0, tablesIn(data));
+            assertTrue(tablesIn(extra.get(0)) + tablesIn(extra.get(1)) > 0);
+            assertContents(expected, dao);
+            dao.checkpoint(checkpoint);
+        }
+        try (DAO dao = open(data, options)) {
+            assertContents(expected, dao);
+        }
+        // Checkpoint gathers tables of all the folders
+        try (DAO dao = new MyDAO(checkpoint.toFile(), DAOFactory.MAX_HEAP)) {
+            assertContents(expected, dao);
+        }
+    }
+}
@@ -0,0 +1,51 @@
+package ru.mail.polis;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/**
+ * Checks estimation of ranges.
+ *
+ * @author Nikolai Rubtsov
+ */
+class EstimateTest extends TestBase {
+    private static final int RECORDS = 1000;
+    private static final int VALUE_LENGTH = 1024;
+
+    @Test
+    void flushedRanges(@TempDir File data) throws IOException {
+        final List<ByteBuffer> keys = new ArrayList<>();
+        final ByteBuffer from = ByteBuffer.allocate(0);
+
+        try (DAO dao = DAOFactory.create(data)) {
+            for (int i = 0; i < RECORDS; i++) {
+                final ByteBuffer key = randomKey();
+                dao.upsert(key, randomValue());
+                keys.add(key);
+            }
+            assertEquals(RECORDS, dao.estimateCount(from, null));
+        }
+        keys.sort(ByteBuffer::compareTo);
+
+        try (DAO dao = DAOFactory.create(data)) {
+            assertEquals(RECORDS, dao.estimateCount(from, null));
+            final ByteBuffer middle = keys.get(RECORDS / 2);
+            assertEquals(RECORDS / 2, dao.estimateCount(from, middle));
+            assertEquals(RECORDS / 2, dao.estimateCount(middle, null));
+            assertEquals(0, dao.estimateCount(middle, from));
+
+            final long size = dao.estimateSize(from, middle);
+            assertTrue(size >= RECORDS / 2 * (KEY_LENGTH + VALUE_LENGTH));
+            assertTrue(size < RECORDS / 2 * (KEY_LENGTH + VALUE_LENGTH) * 2);
+        }
+    }
+}
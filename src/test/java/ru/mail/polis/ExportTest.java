@@ -0,0 +1,217 @@
+package ru.mail.polis;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+import ru.mail.polis.rubtsov.MyDAO;
+import ru.mail.polis.rubtsov.Options;
+import ru.mail.polis.rubtsov.ShardedDAO;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.Pipe;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.SortedMap;
+import java.util.TreeMap;
+import java.util.concurrent.CompletableFuture;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+
+/**
+ * Checks export of key ranges of tables and their import into another storage.
+ *
+ * @author Nikolai Rubtsov
+ */
+class ExportTest extends TestBase {
+    private static final int RECORDS = 3000;
+    private static final int SHARDS = 3;
+
+    private static File dir(final File parent, final String name) throws IOException {
+        final File dir = new File(parent, name);
+        if (!dir.mkdir()) {
+            throw new IOException("Can't create " + dir);
+        }
+        return dir;
+    }
+
+    @Test
+    void rangeIsMoved(@TempDir File data) throws Exception {
+        // Storages don't share the folder
+        final File source = dir(data, "source");
+        final File target = dir(data, "target");
+        final List<ByteBuffer> keys = new ArrayList<>();
+        for (int i = 0; i < RECORDS * 3; i++) {
+            keys.add(randomKey());
+        }
+        keys.sort(ByteBuffer::compareTo);
+        final ByteBuffer from = keys.get(RECORDS);
+        final ByteBuffer to = keys.get(RECORDS * 2);
+
+        // Older values of target are replaced in the range only
+        final Map<ByteBuffer, ByteBuffer> expected = new TreeMap<>();
+        try (DAO dao = new MyDAO(target, DAOFactory.MAX_HEAP)) {
+            for (final ByteBuffer key : keys) {
+                final ByteBuffer value = randomValue();
+                dao.upsert(key, value);
+                expected.put(key, value);
+            }
+        }
+
+        // Values of the first table are kept in value log, so it is rewritten by export
+        final Map<ByteBuffer, ByteBuffer> exported = new TreeMap<>();
+        for (int table = 0; table < 3; table++) {
+            try (DAO dao = new MyDAO(source, DAOFactory.MAX_HEAP,
+                    new Options().setValueLogThreshold(table == 0 ? 512 : 0))) {
+                for (int i = table; i < keys.size(); i += 3) {
+                    final ByteBuffer value = randomValue();
+                    dao.upsert(keys.get(i), value);
+                    exported.put(keys.get(i), value);
+                }
+                if (table == 2) {
+                    // Range tombstone crosses the bound of exported range
+                    dao.removeRange(keys.get(RECORDS - 10), keys.get(RECORDS + 10));
+                    keys.subList(RECORDS - 10, RECORDS + 10).forEach(exported::remove);
+                    dao.remove(keys.get(RECORDS + 100));
+                    exported.remove(keys.get(RECORDS + 100));
+                }
+            }
+        }
+        expected.keySet().removeIf(k -> k.compareTo(from) >= 0 && k.compareTo(to) < 0);
+        exported.forEach((k, v) -> {
+            if (k.compareTo(from) >= 0 && k.compareTo(to) < 0) {
+                expected.put(k, v);
+            }
+        });
+
+        final Pipe pipe = Pipe.open();
+        try (DAO sourceDao = new MyDAO(source, DAOFactory.MAX_HEAP);
+             DAO targetDao = new MyDAO(target, DAOFactory.MAX_HEAP)) {
+            final CompletableFuture<Void> export = CompletableFuture.runAsync(() -> {
+                try (Pipe.SinkChannel sink = pipe.sink()) {
+                    sourceDao.exportTables(from, to, sink);
+                } catch (IOException e) {
+                    throw new UncheckedIOException(e);
+                }
+            });
+            try (Pipe.SourceChannel pipeSource = pipe.source()) {
+                targetDao.importTables(pipeSource);
+            }
+            export.get();
+            assertEquals(expected, contents(targetDao));
+            // Writes after import are newer
+            targetDao.upsert(from, ByteBuffer.allocate(1));
+            expected.put(from, ByteBuffer.allocate(1));
+            targetDao.compact();
+            assertEquals(expected, contents(targetDao));
+        }
+        try (DAO dao = new MyDAO(target, DAOFactory.MAX_HEAP)) {
+            assertEquals(expected, contents(dao));
+        }
+    }
+
+    @Test
+    void corruptedStream(@TempDir File data) throws IOException {
+        final File source = dir(data, "source");
+        final File target = dir(data, "target");
+        final File file = new File(data, "tables");
+        try (DAO dao = new MyDAO(source, DAOFactory.MAX_HEAP)) {
+            for (int i = 0; i < RECORDS; i++) {
+                dao.upsert(randomKey(), randomValue());
+            }
+            try (FileChannel channel = FileChannel.open(file.toPath(),
+                    StandardOpenOption.WRITE, StandardOpenOption.CREATE_NEW)) {
+                dao.exportTables(ByteBuffer.allocate(0), null, channel);
+            }
+        }
+        try (RandomAccessFile raf = new RandomAccessFile(file, "rw")) {
+            raf.seek(file.length() / 2);
+            final int b = raf.read();
+            raf.seek(file.length() / 2);
+            raf.write(b ^ 0xFF);
+        }
+        try (DAO dao = new MyDAO(target, DAOFactory.MAX_HEAP);
+             FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+            assertThrows(IOException.class, () -> dao.importTables(channel));
+            assertEquals(Map.of(), contents(dao));
+        }
+        assertEquals(0, target.list((dir, name) -> name.endsWith(".dat") || name.endsWith(".tmp")).length);
+    }
+
+    /**
+     * Moves the middle third of written keys from one storage to another through the file.
+     *
+     * @return records of moved range
+     */
+    private static Map<ByteBuffer, ByteBuffer> moveRange(final DAO source, final DAO target, final File file,
+                                                         final SortedMap<ByteBuffer, ByteBuffer> written)
+            throws IOException {
+        final List<ByteBuffer> keys = new ArrayList<>(written.keySet());
+        final ByteBuffer from = keys.get(keys.size() / 3);
+        final ByteBuffer to = keys.get(keys.size() * 2 / 3);
+        try (FileChannel channel = FileChannel.open(file.toPath(),
+                StandardOpenOption.WRITE, StandardOpenOption.CREATE_NEW)) {
+            source.exportTables(from, to, channel);
+        }
+        try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+            target.importTables(channel);
+        }
+        return written.subMap(from, to);
+    }
+
+    @Test
+    void shardsAreMoved(@TempDir File data) throws IOException {
+        final File source = dir(data, "source");
+        final File target = dir(data, "target");
+        final File file = new File(data, "tables");
+        final SortedMap<ByteBuffer, ByteBuffer> written = new TreeMap<>();
+        final Map<ByteBuffer, ByteBuffer> expected = new TreeMap<>();
+        try (DAO sourceDao = new ShardedDAO(source, DAOFactory.MAX_HEAP, SHARDS);
+             DAO targetDao = new ShardedDAO(target, DAOFactory.MAX_HEAP, SHARDS)) {
+            // Older values of target are replaced in the range only
+            for (int i = 0; i < RECORDS; i++) {
+                final ByteBuffer key = randomKey();
+                final ByteBuffer value = randomValue();
+                targetDao.upsert(key, value);
+                expected.put(key, value);
+                written.put(key, randomValue());
+            }
+            for (final Map.Entry<ByteBuffer, ByteBuffer> entry : written.entrySet()) {
+                sourceDao.upsert(entry.getKey(), entry.getValue());
+            }
+            expected.putAll(moveRange(sourceDao, targetDao, file, written));
+            assertEquals(expected, contents(targetDao));
+        }
+        // Keys of other shards are not imported into wrong ones
+        try (DAO dao = new ShardedDAO(dir(data, "other"), DAOFactory.MAX_HEAP, SHARDS + 1);
+             FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+            assertThrows(IOException.class, () -> dao.importTables(channel));
+            assertEquals(Map.of(), contents(dao));
+        }
+        try (DAO dao = new ShardedDAO(target, DAOFactory.MAX_HEAP, SHARDS)) {
+            assertEquals(expected, contents(dao));
+        }
+    }
+
+    @Test
+    void recordsAreMovedByDefault(@TempDir File data) throws IOException {
+        final SortedMap<ByteBuffer, ByteBuffer> written = new TreeMap<>();
+        try (DAO source = new RecordsOnly(new MyDAO(dir(data, "source"), DAOFactory.MAX_HEAP));
+             DAO target = new RecordsOnly(new MyDAO(dir(data, "target"), DAOFactory.MAX_HEAP))) {
+            for (int i = 0; i < RECORDS; i++) {
+                final ByteBuffer key = randomKey();
+                final ByteBuffer value = randomBuffer(1 + i % 100);
+                source.upsert(key, value);
+                written.put(key, value);
+            }
+            final File file = new File(data, "records");
+            assertEquals(moveRange(source, target, file, written), contents(target));
+        }
+    }
+}
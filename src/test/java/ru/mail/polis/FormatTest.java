@@ -0,0 +1,149 @@
+package ru.mail.polis;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+import ru.mail.polis.rubtsov.MyDAO;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.NoSuchElementException;
+import java.util.function.IntToLongFunction;
+import java.util.function.IntUnaryOperator;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/**
+ * Checks that tables of the fixed format stay readable and compact format is smaller.
+ *
+ * @author Nikolai Rubtsov
+ */
+class FormatTest extends TestBase {
+    private static final int RECORDS = 1000;
+    private static final long NO_TTL = -1;
+
+    /**
+     * Writes table of the fixed format without footer.
+     *
+     * @param timeStamp timestamps of records by their numbers, negative ones for removed records
+     * @param value values of records by their numbers
+     */
+    private static long writeFixedTable(final File file, final int records, final IntToLongFunction timeStamp,
+                                        final IntUnaryOperator value) throws IOException {
+        final List<Long> offsets = new ArrayList<>();
+        long offset = 0;
+        try (FileChannel channel = FileChannel.open(file.toPath(),
+                StandardOpenOption.WRITE, StandardOpenOption.CREATE_NEW)) {
+            for (int i = 0; i < records; i++) {
+                offsets.add(offset);
+                final ByteBuffer key = key(i);
+                final ByteBuffer record = ByteBuffer.allocate(Integer.BYTES + key.remaining() + Long.BYTES * 3
+                        + Integer.BYTES);
+                record.putInt(key.remaining()).put(key).putLong(timeStamp.applyAsLong(i));
+                if (timeStamp.applyAsLong(i) > 0) {
+                    record.putLong(Integer.BYTES).put(value(value.applyAsInt(i)));
+                }
+                record.putLong(NO_TTL).flip();
+                offset += record.remaining();
+                channel.write(record);
+            }
+            offsets.add(offset);
+            final ByteBuffer index = ByteBuffer.allocate(Long.BYTES * (offsets.size() + 1));
+            offsets.forEach(index::putLong);
+            index.putLong(records).flip();
+            channel.write(index);
+        }
+        return file.length();
+    }
+
+    /**
+     * Writes table of the fixed format without footer, every tenth record is removed.
+     */
+    private static long writeFixedTable(final File file) throws IOException {
+        return writeFixedTable(file, RECORDS, i -> i % 10 == 0 ? -(i + 1) : i + 1, i -> i);
+    }
+
+    private static void assertFixedTable(final DAO dao) throws IOException {
+        for (int i = 0; i < RECORDS; i++) {
+            if (i % 10 == 0) {
+                final ByteBuffer key = key(i);
+                assertThrows(NoSuchElementException.class, () -> dao.get(key));
+            } else {
+                assertEquals(value(i), dao.get(key(i)));
+            }
+        }
+        final List<Record> records = new ArrayList<>();
+        dao.range(key(0), null).forEachRemaining(records::add);
+        assertEquals(RECORDS - RECORDS / 10, records.size());
+    }
+
+    @Test
+    void fixedTableIsReadable(@TempDir File data) throws IOException {
+        final long fixedSize = writeFixedTable(new File(data, "1.dat"));
+        try (DAO dao = new MyDAO(data, DAOFactory.MAX_HEAP)) {
+            assertFixedTable(dao);
+            // Rewritten by the compact format, removed records are dropped
+            dao.compact();
+            assertFixedTable(dao);
+        }
+        final File[] tables = data.listFiles((dir, name) -> name.endsWith(".dat"));
+        assertEquals(1, tables.length);
+        assertTrue(tables[0].length() < fixedSize * 2 / 3);
+        try (DAO dao = new MyDAO(data, DAOFactory.MAX_HEAP)) {
+            assertFixedTable(dao);
+        }
+    }
+
+    @Test
+    void timeToLiveAndTombstones(@TempDir File data) throws IOException {
+        try (DAO dao = new MyDAO(data, DAOFactory.MAX_HEAP)) {
+            for (int i = 0; i < RECORDS; i++) {
+                dao.upsert(key(i), value(i), 1_000_000);
+            }
+            for (int i = 0; i < RECORDS; i += 10) {
+                dao.remove(key(i));
+            }
+        }
+        try (DAO dao = new MyDAO(data, DAOFactory.MAX_HEAP)) {
+            assertFixedTable(dao);
+        }
+    }
+
+    @Test
+    void equalTimeStampsResolvedByGeneration(@TempDir File data) throws IOException {
+        final int tables = 5;
+        final long tiedTime = RECORDS;
+        for (int t = 0; t < tables; t++) {
+            // The last record orders migrated tables, the rest are versions of equal timestamps
+            final long newest = tiedTime + 1 + t;
+            final int base = t * RECORDS;
+            writeFixedTable(new File(data, (t + 1) + ".dat"), RECORDS,
+                    i -> i == RECORDS - 1 ? newest : tiedTime, i -> base + i);
+        }
+        final int newestBase = (tables - 1) * RECORDS;
+        try (DAO dao = new MyDAO(data, DAOFactory.MAX_HEAP)) {
+            assertNewest(dao, newestBase);
+            dao.compact();
+            assertNewest(dao, newestBase);
+        }
+    }
+
+    private static void assertNewest(final DAO dao, final int base) throws IOException {
+        for (int i = 0; i < RECORDS; i++) {
+            assertEquals(value(base + i), dao.get(key(i)));
+        }
+        final Iterator<Record> records = dao.iterator(key(0));
+        for (int i = 0; i < RECORDS; i++) {
+            assertEquals(value(base + i), records.next().getValue());
+        }
+        assertFalse(records.hasNext());
+    }
+}
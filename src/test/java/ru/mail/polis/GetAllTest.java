@@ -0,0 +1,58 @@
+package ru.mail.polis;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+/**
+ * Checks lookup of several keys at once.
+ *
+ * @author Nikolai Rubtsov
+ */
+class GetAllTest extends TestBase {
+    @Test
+    void acrossTables(@TempDir File data) throws IOException {
+        final Map<ByteBuffer, ByteBuffer> expected = new TreeMap<>();
+        final List<ByteBuffer> keys = new ArrayList<>();
+
+        // Every session leaves its own table
+        for (int table = 0; table < 3; table++) {
+            try (DAO dao = DAOFactory.create(data)) {
+                for (int i = 0; i < 100; i++) {
+                    final ByteBuffer key = randomKey();
+                    final ByteBuffer value = randomValue();
+                    dao.upsert(key, value);
+                    expected.put(key, value);
+                    keys.add(key);
+                }
+                final ByteBuffer updated = keys.get(table * 50);
+                final ByteBuffer newValue = randomValue();
+                dao.upsert(updated, newValue);
+                expected.put(updated, newValue);
+                final ByteBuffer removed = keys.get(table * 50 + 1);
+                dao.remove(removed);
+                expected.remove(removed);
+            }
+        }
+
+        try (DAO dao = DAOFactory.create(data)) {
+            final ByteBuffer fresh = randomKey();
+            final ByteBuffer freshValue = randomValue();
+            dao.upsert(fresh, freshValue);
+            expected.put(fresh, freshValue);
+            keys.add(fresh);
+            keys.add(randomKey());
+
+            assertEquals(expected, dao.getAll(keys));
+        }
+    }
+}
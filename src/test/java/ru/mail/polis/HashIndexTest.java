@@ -0,0 +1,101 @@
+package ru.mail.polis;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+import ru.mail.polis.rubtsov.Options;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.TreeMap;
+
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/**
+ * Checks point lookups in tables with hash index.
+ *
+ * @author Nikolai Rubtsov
+ */
+class HashIndexTest extends TestBase {
+    private static final int TABLES = 4;
+    private static final int RECORDS = 2000;
+
+    private static void assertContents(final Map<ByteBuffer, ByteBuffer> expected,
+                                       final List<ByteBuffer> removed, final DAO dao) throws IOException {
+        assertContents(expected, dao);
+        for (final ByteBuffer key : removed) {
+            assertThrows(NoSuchElementException.class, () -> dao.get(key));
+        }
+        assertThrows(NoSuchElementException.class, () -> dao.get(randomKey()));
+    }
+
+    @Test
+    void lookupsByHashIndex(@TempDir File data) throws IOException {
+        final Map<ByteBuffer, ByteBuffer> expected = new TreeMap<>();
+        final List<ByteBuffer> removed = new ArrayList<>();
+        // Tables with and without index are read together
+        for (int table = 0; table < TABLES; table++) {
+            try (DAO dao = open(data, new Options().setHashIndex(table % 2 == 0))) {
+                for (final ByteBuffer key : new ArrayList<>(expected.keySet()).subList(0, expected.size() / 10)) {
+                    dao.remove(key);
+                    expected.remove(key);
+                    removed.add(key);
+                }
+                for (int i = 0; i < RECORDS; i++) {
+                    final ByteBuffer key = randomKey();
+                    final ByteBuffer value = randomBuffer(16);
+                    dao.upsert(key, value);
+                    expected.put(key, value);
+                }
+            }
+        }
+        try (DAO dao = open(data, new Options().setHashIndex(true))) {
+            assertContents(expected, removed, dao);
+            dao.compact();
+            assertContents(expected, removed, dao);
+        }
+        try (DAO dao = open(data, new Options().setHashIndex(false))) {
+            assertContents(expected, removed, dao);
+        }
+    }
+
+    @Test
+    void exportedTableKeepsHashIndex(@TempDir File data) throws IOException {
+        final File source = new File(data, "source");
+        final File target = new File(data, "target");
+        final File file = new File(data, "tables");
+        assertTrue(source.mkdir() && target.mkdir());
+        final List<ByteBuffer> keys = new ArrayList<>();
+        final Map<ByteBuffer, ByteBuffer> expected = new TreeMap<>();
+        try (DAO dao = open(source, new Options().setHashIndex(true))) {
+            for (int i = 0; i < RECORDS; i++) {
+                final ByteBuffer key = randomKey();
+                final ByteBuffer value = randomValue();
+                dao.upsert(key, value);
+                keys.add(key);
+            }
+            keys.sort(ByteBuffer::compareTo);
+            for (final ByteBuffer key : keys.subList(RECORDS / 4, RECORDS / 2)) {
+                expected.put(key, dao.get(key));
+            }
+            try (FileChannel channel = FileChannel.open(file.toPath(),
+                    StandardOpenOption.WRITE, StandardOpenOption.CREATE_NEW)) {
+                dao.exportTables(keys.get(RECORDS / 4), keys.get(RECORDS / 2), channel);
+            }
+        }
+        final List<ByteBuffer> missing = new ArrayList<>(keys.subList(0, RECORDS / 4));
+        missing.addAll(keys.subList(RECORDS / 2, RECORDS));
+        try (DAO dao = open(target, new Options().setHashIndex(false));
+             FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+            dao.importTables(channel);
+            assertContents(expected, missing, dao);
+        }
+    }
+}
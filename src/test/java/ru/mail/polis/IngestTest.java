@@ -0,0 +1,169 @@
+package ru.mail.polis;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+import ru.mail.polis.rubtsov.MyDAO;
+import ru.mail.polis.rubtsov.SSTableWriter;
+import ru.mail.polis.rubtsov.ShardedDAO;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Map;
+import java.util.TreeMap;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/**
+ * Checks tables built offline and ingested into the storage.
+ *
+ * @author Nikolai Rubtsov
+ */
+class IngestTest extends TestBase {
+    private static final int RECORDS = 1000;
+    private static final int SHARDS = 3;
+
+    private static void writeTables(final Path first, final Path second) throws IOException {
+        try (SSTableWriter writer = new SSTableWriter(first)) {
+            for (int i = 0; i < RECORDS; i += 2) {
+                writer.upsert(key(i), value(RECORDS + i));
+            }
+        }
+        // The later file wins over the earlier one
+        try (SSTableWriter writer = new SSTableWriter(second)) {
+            for (int i = 0; i < RECORDS; i += 4) {
+                if (i % 8 == 0) {
+                    writer.remove(key(i));
+                } else {
+                    writer.upsert(key(i), value(RECORDS * 2 + i), 1_000_000);
+                }
+            }
+        }
+    }
+
+    /**
+     * Applies records of tables written by {@link #writeTables(Path, Path)}.
+     */
+    private static void ingested(final Map<ByteBuffer, ByteBuffer> expected) {
+        for (int i = 0; i < RECORDS; i += 2) {
+            if (i % 8 == 0) {
+                expected.remove(key(i));
+            } else {
+                expected.put(key(i), value((i % 4 == 0 ? RECORDS * 2 : RECORDS) + i));
+            }
+        }
+    }
+
+    private static void corrupt(final Path file) throws IOException {
+        try (RandomAccessFile raf = new RandomAccessFile(file.toFile(), "rw")) {
+            raf.seek(raf.length() / 4);
+            final int b = raf.read();
+            raf.seek(raf.length() / 4);
+            raf.write(b ^ 0xFF);
+        }
+    }
+
+    @Test
+    void ingestedRecordsReplaceOlder(@TempDir File data, @TempDir File external) throws IOException {
+        final Map<ByteBuffer, ByteBuffer> expected = new TreeMap<>();
+        final Path first = new File(external, "first.sst").toPath();
+        final Path second = new File(external, "second.sst").toPath();
+        writeTables(first, second);
+
+        try (DAO dao = new MyDAO(data, DAOFactory.MAX_HEAP)) {
+            for (int i = 0; i < RECORDS; i++) {
+                dao.upsert(key(i), value(i));
+                expected.put(key(i), value(i));
+            }
+            dao.ingest(first, second);
+            ingested(expected);
+            assertContents(expected, dao);
+            // Writes after ingestion are newer
+            dao.upsert(key(2), value(2));
+            expected.put(key(2), value(2));
+            assertContents(expected, dao);
+        }
+        assertTrue(Files.exists(first));
+        Files.delete(first);
+        Files.delete(second);
+
+        try (DAO dao = new MyDAO(data, DAOFactory.MAX_HEAP)) {
+            assertContents(expected, dao);
+            dao.compact();
+            assertContents(expected, dao);
+        }
+        try (DAO dao = new MyDAO(data, DAOFactory.MAX_HEAP)) {
+            assertContents(expected, dao);
+        }
+    }
+
+    @Test
+    void corruptedFileIsRejected(@TempDir File data, @TempDir File external) throws IOException {
+        final Path good = new File(external, "good.sst").toPath();
+        final Path bad = new File(external, "bad.sst").toPath();
+        for (final Path path : new Path[]{good, bad}) {
+            try (SSTableWriter writer = new SSTableWriter(path)) {
+                for (int i = 0; i < RECORDS; i++) {
+                    writer.upsert(key(i), value(i));
+                }
+            }
+        }
+        corrupt(bad);
+
+        try (DAO dao = new MyDAO(data, DAOFactory.MAX_HEAP)) {
+            assertThrows(IOException.class, () -> dao.ingest(good, bad));
+            // Nothing is ingested
+            assertEquals(0, data.list((dir, name) -> name.endsWith(".dat") || name.endsWith(".tmp")).length);
+            assertThrows(IllegalArgumentException.class, () -> {
+                try (SSTableWriter writer = new SSTableWriter(new File(external, "unsorted.sst").toPath())) {
+                    writer.upsert(key(1), value(1));
+                    writer.upsert(key(0), value(0));
+                }
+            });
+            dao.ingest(good);
+            assertEquals(value(RECORDS - 1), dao.get(key(RECORDS - 1)));
+        }
+    }
+
+    @Test
+    void ingestionIntoShards(@TempDir File root) throws IOException {
+        final File data = new File(root, "data");
+        final File external = new File(root, "external");
+        assertTrue(data.mkdir() && external.mkdir());
+        final Path first = new File(external, "first.sst").toPath();
+        final Path second = new File(external, "second.sst").toPath();
+        final Path bad = new File(external, "bad.sst").toPath();
+        writeTables(first, second);
+        Files.copy(first, bad);
+        corrupt(bad);
+
+        final Map<ByteBuffer, ByteBuffer> expected = new TreeMap<>();
+        try (DAO dao = new ShardedDAO(data, DAOFactory.MAX_HEAP, SHARDS)) {
+            for (int i = 0; i < RECORDS; i++) {
+                dao.upsert(key(i), value(i));
+                expected.put(key(i), value(i));
+            }
+            assertThrows(IOException.class, () -> dao.ingest(second, bad));
+            assertContents(expected, dao);
+            dao.ingest(first, second);
+            ingested(expected);
+            assertContents(expected, dao);
+        }
+        // Files are split into parts, they are neither changed nor left in shards
+        assertTrue(Files.exists(first) && Files.exists(second));
+        for (int shard = 0; shard < SHARDS; shard++) {
+            assertEquals(0, new File(data, "shard-" + shard).list((dir, name) -> name.endsWith(".tmp")).length);
+        }
+
+        try (DAO dao = new ShardedDAO(data, DAOFactory.MAX_HEAP, SHARDS)) {
+            assertContents(expected, dao);
+            dao.compact();
+            assertContents(expected, dao);
+        }
+    }
+}
@@ -27,6 +27,18 @@ class ItersTest {
         assertEquals(6, Iterators.size(Iters.until(sixNumbers.iterator(), 100)));
     }
 
+    @Test
+    void takeWhile() {
+        assertFalse(Iters.takeWhile(Iters.empty(), x -> true).hasNext());
+
+        final ImmutableList<Integer> sixNumbers = ImmutableList.of(1, 2, 3, 4, 5, 6);
+
+        assertFalse(Iters.takeWhile(sixNumbers.iterator(), x -> x > 1).hasNext());
+
+        assertEquals(3, Iterators.size(Iters.takeWhile(sixNumbers.iterator(), x -> x < 4)));
+        assertEquals(6, Iterators.size(Iters.takeWhile(sixNumbers.iterator(), x -> true)));
+    }
+
     @Test
     void collapseEquals() {
         assertFalse(Iters.collapseEquals(Iters.empty()).hasNext());
@@ -0,0 +1,165 @@
+package ru.mail.polis;
+
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+import ru.mail.polis.rubtsov.MergeOperator;
+import ru.mail.polis.rubtsov.MyDAO;
+import ru.mail.polis.rubtsov.Options;
+import ru.mail.polis.rubtsov.WriteBatch;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+
+/**
+ * Checks blind updates combined by merge operator.
+ *
+ * @author Nikolai Rubtsov
+ */
+class MergeOperatorTest extends TestBase {
+    private static final MergeOperator COUNTER = new MergeOperator() {
+        @NotNull
+        @Override
+        public ByteBuffer fullMerge(@NotNull final ByteBuffer key, @Nullable final ByteBuffer existing,
+                                    @NotNull final List<ByteBuffer> operands) {
+            return counter((existing == null ? 0 : existing.getLong(existing.position())) + sum(operands));
+        }
+
+        @NotNull
+        @Override
+        public ByteBuffer partialMerge(@NotNull final ByteBuffer key, @NotNull final List<ByteBuffer> operands) {
+            return counter(sum(operands));
+        }
+    };
+    private static final Options OPTIONS = new Options().setMergeOperator(COUNTER);
+
+    private static long sum(final List<ByteBuffer> operands) {
+        long sum = 0;
+        for (final ByteBuffer operand : operands) {
+            sum += operand.getLong(operand.position());
+        }
+        return sum;
+    }
+
+    private static ByteBuffer counter(final long value) {
+        return ByteBuffer.allocate(Long.BYTES).putLong(0, value);
+    }
+
+    @Test
+    void increments(@TempDir File data) throws IOException {
+        final ByteBuffer key = randomKey();
+
+        try (MyDAO dao = new MyDAO(data, DAOFactory.MAX_HEAP, OPTIONS)) {
+            dao.merge(key, counter(1));
+            assertEquals(counter(1), dao.get(key));
+            dao.merge(key, counter(2));
+            dao.write(new WriteBatch().merge(key, counter(3)).merge(key, counter(4)));
+            assertEquals(counter(10), dao.get(key));
+        }
+    }
+
+    @Test
+    void operandsOverValues(@TempDir File data) throws IOException {
+        final ByteBuffer key = randomKey();
+
+        try (MyDAO dao = new MyDAO(data, DAOFactory.MAX_HEAP, OPTIONS)) {
+            dao.upsert(key, counter(100));
+            dao.merge(key, counter(1));
+            assertEquals(counter(101), dao.get(key));
+
+            dao.remove(key);
+            dao.merge(key, counter(1));
+            assertEquals(counter(1), dao.get(key));
+
+            dao.upsert(key, counter(5));
+            assertEquals(counter(5), dao.get(key));
+        }
+    }
+
+    @Test
+    void operandsAcrossTables(@TempDir File data) throws IOException {
+        final ByteBuffer key = randomKey();
+        final ByteBuffer other = randomKey();
+
+        try (MyDAO dao = new MyDAO(data, DAOFactory.MAX_HEAP, OPTIONS)) {
+            dao.upsert(key, counter(10));
+        }
+        // Operands without a value in the same table are combined on flush
+        for (int table = 0; table < 3; table++) {
+            try (MyDAO dao = new MyDAO(data, DAOFactory.MAX_HEAP, OPTIONS)) {
+                dao.merge(key, counter(1));
+                dao.merge(key, counter(2));
+                dao.merge(other, counter(1));
+            }
+        }
+
+        try (MyDAO dao = new MyDAO(data, DAOFactory.MAX_HEAP, OPTIONS)) {
+            assertEquals(counter(19), dao.get(key));
+            assertEquals(counter(3), dao.getAll(List.of(key, other)).get(other));
+            final Iterator<Record> records = dao.iterator(ByteBuffer.allocate(0));
+            final List<Record> expected = new ArrayList<>(List.of(
+                    Record.of(key, counter(19)), Record.of(other, counter(3))));
+            expected.sort(Record::compareTo);
+            assertEquals(expected.get(0), records.next());
+            assertEquals(expected.get(1), records.next());
+            assertFalse(records.hasNext());
+
+            dao.compact();
+            assertEquals(counter(19), dao.get(key));
+            dao.merge(key, counter(1));
+            assertEquals(counter(20), dao.get(key));
+        }
+
+        try (MyDAO dao = new MyDAO(data, DAOFactory.MAX_HEAP, OPTIONS)) {
+            assertEquals(counter(20), dao.get(key));
+            assertEquals(counter(3), dao.get(other));
+        }
+    }
+
+    @Test
+    void concurrentIncrements(@TempDir File data) throws Exception {
+        final ByteBuffer key = randomKey();
+        final int threads = 4;
+        final int increments = 10_000;
+
+        try (MyDAO dao = new MyDAO(data, DAOFactory.MAX_HEAP, OPTIONS)) {
+            final ExecutorService executor = Executors.newFixedThreadPool(threads);
+            try {
+                final List<Future<?>> writers = new ArrayList<>();
+                for (int t = 0; t < threads; t++) {
+                    writers.add(executor.submit(() -> {
+                        for (int i = 0; i < increments; i++) {
+                            dao.merge(key, counter(1));
+                        }
+                        return null;
+                    }));
+                }
+                for (final Future<?> writer : writers) {
+                    writer.get();
+                }
+            } finally {
+                executor.shutdown();
+            }
+            assertEquals(counter(threads * increments), dao.get(key));
+        }
+    }
+
+    @Test
+    void operatorRequired(@TempDir File data) throws IOException {
+        try (MyDAO dao = new MyDAO(data, DAOFactory.MAX_HEAP)) {
+            assertThrows(IllegalStateException.class, () -> dao.merge(randomKey(), counter(1)));
+        }
+    }
+}
@@ -0,0 +1,105 @@
+package ru.mail.polis;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+import ru.mail.polis.rubtsov.Options;
+
+import java.io.File;
+import java.io.IOException;
+import java.lang.management.BufferPoolMXBean;
+import java.lang.management.ManagementFactory;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/**
+ * Checks storage which keeps only a few tables mapped.
+ *
+ * @author Nikolai Rubtsov
+ */
+class OpenTablesTest extends TestBase {
+    private static final int TABLES = 12;
+    private static final int RECORDS = 300;
+    private static final int MAX_OPEN_TABLES = 2;
+
+    private static final Options OPTIONS = new Options().setMaxOpenTables(MAX_OPEN_TABLES);
+
+    private static long mappedFiles() {
+        return ManagementFactory.getPlatformMXBeans(BufferPoolMXBean.class).stream()
+                .filter(p -> p.getName().equals("mapped"))
+                .mapToLong(BufferPoolMXBean::getCount)
+                .sum();
+    }
+
+    @Test
+    void manyTables(@TempDir File data) throws IOException {
+        final Map<ByteBuffer, ByteBuffer> expected = new TreeMap<>();
+        // Every session leaves its own table
+        for (int table = 0; table < TABLES; table++) {
+            try (DAO dao = open(data, OPTIONS)) {
+                if (table % 3 == 0 && table > 0) {
+                    // Older tables are read again after eviction
+                    final ByteBuffer key = expected.keySet().iterator().next();
+                    dao.remove(key);
+                    expected.remove(key);
+                }
+                for (int i = 0; i < RECORDS; i++) {
+                    final ByteBuffer key = randomKey();
+                    final ByteBuffer value = randomValue();
+                    dao.upsert(key, value);
+                    expected.put(key, value);
+                }
+            }
+        }
+        assertEquals(TABLES, data.list((dir, name) -> name.endsWith(".dat")).length);
+
+        try (DAO dao = open(data, OPTIONS)) {
+            assertContents(expected, dao);
+            // Dead records are counted too
+            assertEquals(TABLES * RECORDS + TABLES / 3 - 1, dao.estimateCount(ByteBuffer.allocate(0), null));
+            assertContents(expected, dao);
+            dao.compact();
+            assertContents(expected, dao);
+        }
+        try (DAO dao = open(data, OPTIONS)) {
+            assertContents(expected, dao);
+        }
+    }
+
+    @Test
+    void evictedTablesAreUnmapped(@TempDir File data) throws IOException {
+        final Map<ByteBuffer, ByteBuffer> expected = new TreeMap<>();
+        for (int table = 0; table < TABLES; table++) {
+            try (DAO dao = open(data, OPTIONS)) {
+                for (int i = 0; i < RECORDS; i++) {
+                    final ByteBuffer key = randomKey();
+                    final ByteBuffer value = randomValue();
+                    dao.upsert(key, value);
+                    expected.put(key, value);
+                }
+            }
+        }
+
+        final long mapped = mappedFiles();
+        final List<Record> records = new ArrayList<>();
+        try (DAO dao = open(data, OPTIONS)) {
+            dao.iterator(ByteBuffer.allocate(0)).forEachRemaining(records::add);
+            for (final ByteBuffer key : expected.keySet()) {
+                dao.get(key);
+            }
+            // Only the cached tables stay mapped once nothing reads the rest
+            assertTrue(mappedFiles() - mapped <= MAX_OPEN_TABLES);
+        }
+        assertTrue(mappedFiles() <= mapped);
+
+        // Records outlive the mappings they were read from
+        final Map<ByteBuffer, ByteBuffer> found = new TreeMap<>();
+        records.forEach(r -> found.put(r.getKey(), r.getValue()));
+        assertEquals(expected, found);
+    }
+}
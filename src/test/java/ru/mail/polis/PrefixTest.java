@@ -0,0 +1,81 @@
+package ru.mail.polis;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+import ru.mail.polis.rubtsov.MyDAO;
+import ru.mail.polis.rubtsov.Options;
+import ru.mail.polis.rubtsov.PrefixExtractor;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/**
+ * Checks scans of keys with common prefix.
+ *
+ * @author Nikolai Rubtsov
+ */
+class PrefixTest extends TestBase {
+    private static final int PREFIX_LENGTH = 4;
+    private static final Options OPTIONS = new Options().setPrefixExtractor(PrefixExtractor.fixedLength(PREFIX_LENGTH));
+
+    @Test
+    void prefixes(@TempDir File data) throws IOException {
+        final ByteBuffer prefix = randomBuffer(PREFIX_LENGTH);
+        final List<Record> expected = new ArrayList<>();
+
+        // Tables with and without the prefix
+        for (int table = 0; table < 4; table++) {
+            try (DAO dao = new MyDAO(data, DAOFactory.MAX_HEAP, OPTIONS)) {
+                for (int i = 0; i < 100; i++) {
+                    dao.upsert(randomKey(), randomValue());
+                }
+                if (table % 2 == 0) {
+                    final ByteBuffer key = join(prefix, randomKey());
+                    final ByteBuffer value = randomValue();
+                    dao.upsert(key, value);
+                    expected.add(Record.of(key, value));
+                }
+            }
+        }
+        expected.sort(Record::compareTo);
+
+        try (DAO dao = new MyDAO(data, DAOFactory.MAX_HEAP, OPTIONS)) {
+            assertRecords(expected, dao.prefix(prefix));
+            // Longer and shorter prefixes
+            final Record first = expected.get(0);
+            final ByteBuffer longPrefix = first.getKey().limit(PREFIX_LENGTH + 2);
+            assertRecords(List.of(first), dao.prefix(longPrefix));
+            assertRecords(expected, dao.prefix(prefix.duplicate().limit(PREFIX_LENGTH - 1)), false);
+
+            dao.remove(first.getKey());
+            assertRecords(expected.subList(1, expected.size()), dao.prefix(prefix));
+        }
+    }
+
+    private static void assertRecords(final List<Record> expected, final Iterator<Record> actual) {
+        assertRecords(expected, actual, true);
+    }
+
+    /**
+     * Checks that expected records go in a row, possibly among others if the match is not exact.
+     */
+    private static void assertRecords(final List<Record> expected, final Iterator<Record> actual,
+                                      final boolean exact) {
+        final List<Record> records = new ArrayList<>();
+        actual.forEachRemaining(records::add);
+        if (exact) {
+            assertEquals(expected, records);
+        } else {
+            assertTrue(records.containsAll(expected));
+        }
+        assertFalse(actual.hasNext());
+    }
+}
@@ -0,0 +1,63 @@
+package ru.mail.polis;
+
+import org.jetbrains.annotations.NotNull;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.file.Path;
+import java.util.Iterator;
+
+/**
+ * Storage which provides only the required operations of {@link DAO} and the rest the default way.
+ *
+ * @author Nikolai Rubtsov
+ */
+final class RecordsOnly implements DAO {
+    private final DAO dao;
+
+    RecordsOnly(final DAO dao) {
+        this.dao = dao;
+    }
+
+    @NotNull
+    @Override
+    public Iterator<Record> iterator(@NotNull final ByteBuffer from) throws IOException {
+        return dao.iterator(from);
+    }
+
+    @Override
+    public void upsert(@NotNull final ByteBuffer key, @NotNull final ByteBuffer value) throws IOException {
+        dao.upsert(key, value);
+    }
+
+    @Override
+    public void upsert(@NotNull final ByteBuffer key, @NotNull final ByteBuffer value,
+                       final long timeToLive) throws IOException {
+        dao.upsert(key, value, timeToLive);
+    }
+
+    @Override
+    public void remove(@NotNull final ByteBuffer key) throws IOException {
+        dao.remove(key);
+    }
+
+    @Override
+    public void ingest(@NotNull final Path... files) throws IOException {
+        dao.ingest(files);
+    }
+
+    @Override
+    public void checkpoint(@NotNull final Path target) throws IOException {
+        dao.checkpoint(target);
+    }
+
+    @Override
+    public void compact() throws IOException {
+        dao.compact();
+    }
+
+    @Override
+    public void close() throws IOException {
+        dao.close();
+    }
+}
@@ -0,0 +1,127 @@
+package ru.mail.polis;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+import ru.mail.polis.rubtsov.MyDAO;
+import ru.mail.polis.rubtsov.Snapshot;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.NoSuchElementException;
+import java.util.SortedMap;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/**
+ * Checks removal of key ranges by range tombstones.
+ *
+ * @author Nikolai Rubtsov
+ */
+class RemoveRangeTest extends TestBase {
+    @Test
+    void inMemory(@TempDir File data) throws IOException {
+        try (DAO dao = new MyDAO(data, DAOFactory.MAX_HEAP)) {
+            final SortedMap<ByteBuffer, ByteBuffer> expected = fill(dao, 100);
+            dao.removeRange(key(10), key(20));
+            expected.subMap(key(10), key(20)).clear();
+            assertContents(expected, dao);
+            assertThrows(NoSuchElementException.class, () -> dao.get(key(10)));
+            assertEquals(expected.get(key(20)), dao.get(key(20)));
+            final SortedMap<ByteBuffer, ByteBuffer> found = dao.getAll(List.of(key(5), key(15), key(20)));
+            assertEquals(List.of(key(5), key(20)), new ArrayList<>(found.keySet()));
+
+            // Newer writes are not affected
+            final ByteBuffer value = randomValue();
+            dao.upsert(key(15), value);
+            expected.put(key(15), value);
+            assertContents(expected, dao);
+        }
+    }
+
+    @Test
+    void acrossTables(@TempDir File data) throws IOException {
+        final SortedMap<ByteBuffer, ByteBuffer> expected;
+        try (DAO dao = new MyDAO(data, DAOFactory.MAX_HEAP)) {
+            expected = fill(dao, 100);
+        }
+        // Table which contains nothing but the tombstone
+        try (DAO dao = new MyDAO(data, DAOFactory.MAX_HEAP)) {
+            dao.removeRange(key(30), key(60));
+            expected.subMap(key(30), key(60)).clear();
+        }
+        try (DAO dao = new MyDAO(data, DAOFactory.MAX_HEAP)) {
+            assertContents(expected, dao);
+            dao.removeRange(key(50), key(70));
+            expected.subMap(key(50), key(70)).clear();
+            assertContents(expected, dao);
+            final Iterator<Record> range = dao.range(key(25), key(75));
+            for (int i = 25; i < 30; i++) {
+                assertEquals(key(i), range.next().getKey());
+            }
+            for (int i = 70; i < 75; i++) {
+                assertEquals(key(i), range.next().getKey());
+            }
+            assertFalse(range.hasNext());
+        }
+        try (DAO dao = new MyDAO(data, DAOFactory.MAX_HEAP)) {
+            assertContents(expected, dao);
+        }
+    }
+
+    @Test
+    void compactionDropsTombstones(@TempDir File data) throws IOException {
+        final SortedMap<ByteBuffer, ByteBuffer> expected;
+        try (DAO dao = new MyDAO(data, DAOFactory.MAX_HEAP)) {
+            expected = fill(dao, 1000);
+        }
+        try (DAO dao = new MyDAO(data, DAOFactory.MAX_HEAP)) {
+            dao.removeRange(key(0), key(900));
+            expected.subMap(key(0), key(900)).clear();
+        }
+        final long sizeBefore = Files.directorySize(data);
+        try (DAO dao = new MyDAO(data, DAOFactory.MAX_HEAP)) {
+            dao.compact();
+            assertContents(expected, dao);
+        }
+        assertTrue(Files.directorySize(data) < sizeBefore);
+        try (DAO dao = new MyDAO(data, DAOFactory.MAX_HEAP)) {
+            assertContents(expected, dao);
+            // Nothing is hidden anymore
+            final ByteBuffer value = randomValue();
+            dao.upsert(key(1), value);
+            assertEquals(value, dao.get(key(1)));
+        }
+    }
+
+    @Test
+    void snapshotIsolation(@TempDir File data) throws IOException {
+        try (MyDAO dao = new MyDAO(data, DAOFactory.MAX_HEAP)) {
+            final SortedMap<ByteBuffer, ByteBuffer> expected = fill(dao, 10);
+            try (Snapshot snapshot = dao.snapshot()) {
+                dao.removeRange(key(0), key(10));
+                assertEquals(expected.get(key(5)), snapshot.get(key(5)));
+            }
+            assertFalse(dao.iterator(ByteBuffer.allocate(0)).hasNext());
+        }
+    }
+
+    @Test
+    void removedByBatchesByDefault(@TempDir File data) throws IOException {
+        try (DAO dao = new RecordsOnly(new MyDAO(data, DAOFactory.MAX_HEAP))) {
+            final SortedMap<ByteBuffer, ByteBuffer> expected = fill(dao, 7000);
+            // Ranges of several batches, the last one is either partial or full
+            dao.removeRange(key(100), key(4500));
+            expected.subMap(key(100), key(4500)).clear();
+            dao.removeRange(key(4600), key(4600 + 2048));
+            expected.subMap(key(4600), key(4600 + 2048)).clear();
+            assertContents(expected, dao);
+        }
+    }
+}
@@ -0,0 +1,158 @@
+package ru.mail.polis;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+import ru.mail.polis.rubtsov.MyDAO;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.io.UncheckedIOException;
+import java.lang.management.BufferPoolMXBean;
+import java.lang.management.ManagementFactory;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/**
+ * Checks scans reading tables with read-ahead.
+ *
+ * @author Nikolai Rubtsov
+ */
+class ScanTest extends TestBase {
+    private static final int SCANS = 50;
+
+    private static List<Record> collect(final Iterator<Record> iterator) {
+        final List<Record> records = new ArrayList<>();
+        iterator.forEachRemaining(records::add);
+        return records;
+    }
+
+    private static List<Record> fill(final File data) throws IOException {
+        final List<Record> records = new ArrayList<>();
+        // Every session leaves its own table, values span several chunks
+        for (int table = 0; table < 3; table++) {
+            try (DAO dao = DAOFactory.create(data)) {
+                for (int i = 0; i < 10_000; i++) {
+                    final ByteBuffer key = randomKey();
+                    final ByteBuffer value = randomValue();
+                    dao.upsert(key, value);
+                    records.add(Record.of(key, value));
+                }
+            }
+        }
+        records.sort(Record::compareTo);
+        return records;
+    }
+
+    private static long directMemory() {
+        return ManagementFactory.getPlatformMXBeans(BufferPoolMXBean.class).stream()
+                .filter(p -> p.getName().equals("direct"))
+                .mapToLong(BufferPoolMXBean::getTotalCapacity)
+                .sum();
+    }
+
+    private static int tables(final File data) {
+        return data.list((dir, name) -> name.endsWith(".dat")).length;
+    }
+
+    @Test
+    void sameAsRange(@TempDir File data) throws IOException {
+        final List<Record> records = fill(data);
+        final ByteBuffer from = records.get(1000).getKey();
+        final ByteBuffer to = records.get(records.size() - 1000).getKey();
+
+        try (DAO dao = DAOFactory.create(data)) {
+            final ByteBuffer removed = records.get(5000).getKey();
+            dao.remove(removed);
+            assertEquals(collect(dao.range(ByteBuffer.allocate(0), null)),
+                    collect(dao.scan(ByteBuffer.allocate(0), null)));
+            assertEquals(collect(dao.range(from, to)), collect(dao.scan(from, to)));
+            assertEquals(records.size() - 1, collect(dao.scan(ByteBuffer.allocate(0), null)).size());
+            assertEquals(List.of(), collect(dao.scan(to, from)));
+        }
+    }
+
+    @Test
+    void stoppedScan(@TempDir File data) throws IOException {
+        final List<Record> records = fill(data);
+
+        final int written = tables(data);
+        try (DAO dao = DAOFactory.create(data)) {
+            final CloseableIterator<Record> iterator;
+            try (CloseableIterator<Record> scan = dao.scan(ByteBuffer.allocate(0), null)) {
+                iterator = scan;
+                for (final Record record : records.subList(0, 100)) {
+                    assertEquals(record, scan.next());
+                }
+                // Replaced tables are kept until the scan is over
+                dao.upsert(randomKey(), randomValue());
+                dao.compact();
+                assertEquals(written + 1, tables(data));
+                for (final Record record : records.subList(100, 200)) {
+                    assertEquals(record, scan.next());
+                }
+            }
+            assertFalse(iterator.hasNext());
+            assertEquals(1, tables(data));
+        }
+    }
+
+    @Test
+    void manyOpenScans(@TempDir File data) throws IOException {
+        final List<Record> records = fill(data);
+        // Pooled buffers and temporary buffers of prefetching threads
+        final long limit = (16L + Runtime.getRuntime().availableProcessors() + 8) * 1024 * 1024;
+
+        final long before = directMemory();
+        try (DAO dao = DAOFactory.create(data)) {
+            // Every scan reads every table, so buffers of all the readers would take hundreds of megabytes
+            for (int round = 0; round < 2; round++) {
+                final List<CloseableIterator<Record>> scans = new ArrayList<>();
+                try {
+                    for (int i = 0; i < SCANS; i++) {
+                        scans.add(dao.scan(ByteBuffer.allocate(0), null));
+                    }
+                    for (final CloseableIterator<Record> scan : scans) {
+                        assertEquals(records.get(0), scan.next());
+                    }
+                    assertTrue(directMemory() - before <= limit);
+                } finally {
+                    scans.forEach(CloseableIterator::close);
+                }
+            }
+            assertEquals(records, collect(dao.scan(ByteBuffer.allocate(0), null)));
+        }
+        assertTrue(directMemory() - before <= limit);
+    }
+
+    @Test
+    void corruptedTable(@TempDir File data) throws Exception {
+        try (DAO dao = new MyDAO(data, DAOFactory.MAX_HEAP)) {
+            for (int i = 0; i < 10_000; i++) {
+                dao.upsert(randomKey(), randomValue());
+            }
+            dao.compact();
+        }
+        final File table = data.listFiles((dir, name) -> name.endsWith(".dat"))[0];
+        try (RandomAccessFile raf = new RandomAccessFile(table, "rw")) {
+            raf.seek(table.length() / 4);
+            final int b = raf.read();
+            raf.seek(table.length() / 4);
+            raf.write(b ^ 0xFF);
+        }
+
+        try (DAO dao = new MyDAO(data, DAOFactory.MAX_HEAP)) {
+            final Iterator<Record> records = dao.scan(ByteBuffer.allocate(0), null);
+            assertThrows(UncheckedIOException.class, () -> records.forEachRemaining(r -> { }));
+            awaitQuarantine(table);
+            assertFalse(dao.scan(ByteBuffer.allocate(0), null).hasNext());
+        }
+    }
+}
@@ -0,0 +1,108 @@
+package ru.mail.polis;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+import ru.mail.polis.rubtsov.Options;
+import ru.mail.polis.rubtsov.ShardedDAO;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.TreeMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/**
+ * Checks storage split into several shards.
+ *
+ * @author Nikolai Rubtsov
+ */
+class ShardedDAOTest extends TestBase {
+    private static final int SHARDS = 4;
+
+    private static long threads(final String prefix) {
+        return Thread.getAllStackTraces().keySet().stream()
+                .filter(t -> t.isAlive() && t.getName().startsWith(prefix))
+                .count();
+    }
+
+    @Test
+    void orderedAcrossShards(@TempDir File data) throws IOException {
+        final Map<ByteBuffer, ByteBuffer> expected = new TreeMap<>();
+
+        try (DAO dao = new ShardedDAO(data, DAOFactory.MAX_HEAP, SHARDS)) {
+            for (int i = 0; i < 100; i++) {
+                final ByteBuffer key = randomKey();
+                final ByteBuffer value = randomValue();
+                dao.upsert(key, value);
+                expected.put(key, value);
+            }
+            final ByteBuffer removed = expected.keySet().iterator().next();
+            dao.remove(removed);
+            expected.remove(removed);
+            assertThrows(NoSuchElementException.class, () -> dao.get(removed));
+        }
+
+        try (DAO dao = new ShardedDAO(data, DAOFactory.MAX_HEAP, SHARDS)) {
+            final Iterator<Record> iterator = dao.iterator(ByteBuffer.allocate(0));
+            for (final Map.Entry<ByteBuffer, ByteBuffer> entry : expected.entrySet()) {
+                assertTrue(iterator.hasNext());
+                assertEquals(Record.of(entry.getKey(), entry.getValue()), iterator.next());
+            }
+            assertFalse(iterator.hasNext());
+        }
+    }
+
+    @Test
+    void shardsAmountIsFixed(@TempDir File data) throws IOException {
+        try (DAO dao = new ShardedDAO(data, DAOFactory.MAX_HEAP, SHARDS)) {
+            dao.upsert(randomKey(), randomValue());
+        }
+        assertThrows(IllegalArgumentException.class, () -> new ShardedDAO(data, DAOFactory.MAX_HEAP, SHARDS + 1));
+    }
+
+    @Test
+    void shardsShareBackgroundThreads(@TempDir File data) throws IOException {
+        final int processors = Runtime.getRuntime().availableProcessors();
+        final long compactionThreads = threads("compaction-");
+        final long scrubThreads = threads("scrubber-");
+        // Every shard compacts with a thread of its own unless they share them
+        try (DAO dao = new ShardedDAO(data, DAOFactory.MAX_HEAP, processors + 1,
+                new Options().setScrubRate(1024 * 1024))) {
+            for (int i = 0; i < 1000; i++) {
+                dao.upsert(randomKey(), randomValue());
+            }
+            dao.compact();
+            assertTrue(threads("compaction-") - compactionThreads <= processors);
+            assertTrue(threads("scrubber-") - scrubThreads <= 1);
+        }
+    }
+
+    @Test
+    void givenExecutorsAreKept(@TempDir File data) throws IOException {
+        final ExecutorService compactionExecutor = Executors.newSingleThreadExecutor();
+        final ScheduledExecutorService scrubExecutor = Executors.newSingleThreadScheduledExecutor();
+        try {
+            final Options options = new Options().setBackgroundExecutors(compactionExecutor, scrubExecutor);
+            try (DAO dao = new ShardedDAO(data, DAOFactory.MAX_HEAP, SHARDS, options)) {
+                final Map<ByteBuffer, ByteBuffer> expected = fill(dao, 1000);
+                dao.compact();
+                assertContents(expected, dao);
+            }
+            assertFalse(compactionExecutor.isShutdown());
+            assertFalse(scrubExecutor.isShutdown());
+        } finally {
+            compactionExecutor.shutdown();
+            scrubExecutor.shutdown();
+        }
+    }
+}
@@ -0,0 +1,94 @@
+package ru.mail.polis;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+import ru.mail.polis.rubtsov.MyDAO;
+import ru.mail.polis.rubtsov.Snapshot;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/**
+ * Checks that snapshots see the storage as it was when they were taken.
+ *
+ * @author Nikolai Rubtsov
+ */
+class SnapshotTest extends TestBase {
+    @Test
+    void writesAreInvisible(@TempDir File data) throws IOException {
+        final ByteBuffer updated = randomKey();
+        final ByteBuffer removed = randomKey();
+        final ByteBuffer added = randomKey();
+        final ByteBuffer value = randomValue();
+
+        try (MyDAO dao = new MyDAO(data, DAOFactory.MAX_HEAP)) {
+            dao.upsert(updated, value);
+            dao.upsert(removed, value);
+            try (Snapshot snapshot = dao.snapshot()) {
+                dao.upsert(updated, randomValue());
+                dao.remove(removed);
+                dao.upsert(added, value);
+
+                assertEquals(value, snapshot.get(updated));
+                assertEquals(value, snapshot.get(removed));
+                assertThrows(NoSuchElementException.class, () -> snapshot.get(added));
+            }
+            assertThrows(NoSuchElementException.class, () -> dao.get(removed));
+            assertEquals(value, dao.get(added));
+        }
+    }
+
+    @Test
+    void survivesCompaction(@TempDir File data) throws IOException {
+        final ByteBuffer key = randomKey();
+        final ByteBuffer value = randomValue();
+
+        try (MyDAO dao = new MyDAO(data, DAOFactory.MAX_HEAP)) {
+            dao.upsert(key, value);
+            dao.compact();
+            try (Snapshot snapshot = dao.snapshot()) {
+                dao.remove(key);
+                dao.compact();
+                assertEquals(value, snapshot.get(key));
+            }
+            assertThrows(NoSuchElementException.class, () -> dao.get(key));
+        }
+    }
+
+    @Test
+    void iteratorIsStable(@TempDir File data) throws IOException {
+        final ByteBuffer first = randomKey();
+        final ByteBuffer value = randomValue();
+
+        try (MyDAO dao = new MyDAO(data, DAOFactory.MAX_HEAP)) {
+            dao.upsert(first, value);
+            final Iterator<Record> iterator = dao.iterator(ByteBuffer.allocate(0));
+            for (int i = 0; i < 1000; i++) {
+                dao.upsert(randomKey(), randomValue());
+            }
+            dao.compact();
+
+            assertTrue(iterator.hasNext());
+            assertEquals(Record.of(first, value), iterator.next());
+            assertFalse(iterator.hasNext());
+        }
+    }
+
+    @Test
+    void closedSnapshot(@TempDir File data) throws IOException {
+        try (MyDAO dao = new MyDAO(data, DAOFactory.MAX_HEAP)) {
+            final Snapshot snapshot = dao.snapshot();
+            snapshot.close();
+            snapshot.close();
+            assertThrows(IllegalStateException.class, () -> snapshot.get(randomKey()));
+        }
+    }
+}
@@ -0,0 +1,162 @@
+package ru.mail.polis;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+import ru.mail.polis.rubtsov.ShardedDAO;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Spliterator;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNotNull;
+
+/**
+ * Checks sequential and parallel streams over ranges.
+ *
+ * @author Nikolai Rubtsov
+ */
+class StreamTest extends TestBase {
+    private static final int TABLES = 3;
+    private static final int SHARDS = 3;
+
+    private static List<Record> fill(final File data) throws IOException {
+        final List<Record> records = new ArrayList<>();
+
+        // Every session leaves its own table
+        for (int table = 0; table < TABLES; table++) {
+            try (DAO dao = DAOFactory.create(data)) {
+                for (int i = 0; i < 1000; i++) {
+                    final ByteBuffer key = randomKey();
+                    final ByteBuffer value = randomValue();
+                    dao.upsert(key, value);
+                    records.add(Record.of(key, value));
+                }
+            }
+        }
+        records.sort(Record::compareTo);
+        return records;
+    }
+
+    private static int tables(final File data) {
+        return data.list((dir, name) -> name.endsWith(".dat")).length;
+    }
+
+    private static int shardTables(final File data) {
+        int tables = 0;
+        for (int shard = 0; shard < SHARDS; shard++) {
+            tables += tables(new File(data, "shard-" + shard));
+        }
+        return tables;
+    }
+
+    @Test
+    void parallelRange(@TempDir File data) throws IOException {
+        final List<Record> records = fill(data);
+        final ByteBuffer from = records.get(100).getKey();
+        final ByteBuffer to = records.get(records.size() - 100).getKey();
+        final List<Record> expected = records.subList(100, records.size() - 100);
+
+        try (DAO dao = DAOFactory.create(data)) {
+            try (Stream<Record> stream = dao.stream(from, to)) {
+                assertEquals(expected, stream.collect(Collectors.toList()));
+            }
+            try (Stream<Record> stream = dao.stream(from, to)) {
+                assertEquals(expected, stream.parallel().collect(Collectors.toList()));
+            }
+
+            try (Stream<Record> stream = dao.stream(from, to)) {
+                final Spliterator<Record> spliterator = stream.spliterator();
+                final Spliterator<Record> lowerHalf = spliterator.trySplit();
+                assertNotNull(lowerHalf);
+                final List<Record> parts = new ArrayList<>();
+                lowerHalf.forEachRemaining(parts::add);
+                spliterator.forEachRemaining(parts::add);
+                assertEquals(expected, parts);
+            }
+        }
+    }
+
+    @Test
+    void compactionWhileStreaming(@TempDir File data) throws IOException {
+        final List<Record> records = fill(data);
+
+        try (DAO dao = DAOFactory.create(data)) {
+            try (Stream<Record> stream = dao.stream(ByteBuffer.allocate(0), null)) {
+                final Spliterator<Record> spliterator = stream.spliterator();
+                final Spliterator<Record> lowerHalf = spliterator.trySplit();
+                assertNotNull(lowerHalf);
+                final List<Record> parts = new ArrayList<>();
+                lowerHalf.forEachRemaining(parts::add);
+
+                // The upper half starts reading tables which are already replaced
+                dao.upsert(records.get(records.size() - 1).getKey(), randomValue());
+                dao.compact();
+                assertEquals(TABLES + 1, tables(data));
+                spliterator.forEachRemaining(parts::add);
+                assertEquals(records, parts);
+            }
+            assertEquals(1, tables(data));
+        }
+    }
+
+    @Test
+    void defaultStreamIsClosed(@TempDir File data) throws IOException {
+        final List<Record> records = fill(data);
+
+        try (DAO dao = new RecordsOnly(DAOFactory.create(data))) {
+            try (Stream<Record> stream = dao.stream(ByteBuffer.allocate(0), null)) {
+                final Iterator<Record> iterator = stream.iterator();
+                assertEquals(records.get(0), iterator.next());
+                dao.compact();
+                assertEquals(TABLES + 1, tables(data));
+            }
+            // Closed stream releases the replaced tables
+            assertEquals(1, tables(data));
+        }
+    }
+
+    @Test
+    void shardedStream(@TempDir File data) throws IOException {
+        final List<Record> records = new ArrayList<>();
+        // Every session leaves its own table in every shard
+        for (int table = 0; table < TABLES; table++) {
+            try (DAO dao = new ShardedDAO(data, DAOFactory.MAX_HEAP, SHARDS)) {
+                for (int i = 0; i < 1000; i++) {
+                    final ByteBuffer key = randomKey();
+                    final ByteBuffer value = randomValue();
+                    dao.upsert(key, value);
+                    records.add(Record.of(key, value));
+                }
+            }
+        }
+        records.sort(Record::compareTo);
+
+        try (DAO dao = new ShardedDAO(data, DAOFactory.MAX_HEAP, SHARDS)) {
+            final ByteBuffer from = records.get(100).getKey();
+            final ByteBuffer to = records.get(records.size() - 100).getKey();
+            try (Stream<Record> stream = dao.stream(from, to)) {
+                assertEquals(records.subList(100, records.size() - 100), stream.collect(Collectors.toList()));
+            }
+
+            try (Stream<Record> stream = dao.stream(ByteBuffer.allocate(0), null)) {
+                final Iterator<Record> iterator = stream.iterator();
+                assertEquals(records.get(0), iterator.next());
+                dao.compact();
+                assertEquals(SHARDS * (TABLES + 1), shardTables(data));
+                // Stream is left unfinished, so only closing it releases the tables
+                for (int i = 1; i < 100; i++) {
+                    assertEquals(records.get(i), iterator.next());
+                }
+            }
+            // Closed stream releases the replaced tables of every shard
+            assertEquals(SHARDS, shardTables(data));
+        }
+    }
+}
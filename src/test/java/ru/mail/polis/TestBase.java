@@ -17,9 +17,23 @@
 package ru.mail.polis;
 
 import org.jetbrains.annotations.NotNull;
+import ru.mail.polis.rubtsov.MyDAO;
+import ru.mail.polis.rubtsov.Options;
 
+import java.io.File;
+import java.io.IOException;
 import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.SortedMap;
+import java.util.TreeMap;
 import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
 
 /**
  * Contains utility methods for unit tests.
@@ -29,6 +43,7 @@ import java.util.concurrent.ThreadLocalRandom;
 abstract class TestBase {
     static final int KEY_LENGTH = 16;
     private static final int VALUE_LENGTH = 1024;
+    private static final long QUARANTINE_TIMEOUT_MILLIS = TimeUnit.SECONDS.toMillis(10);
 
     @NotNull
     static ByteBuffer randomBuffer(final int length) {
@@ -58,4 +73,76 @@ abstract class TestBase {
         result.rewind();
         return result;
     }
+
+    @NotNull
+    static ByteBuffer key(final int i) {
+        // Digits keep the order of numbers
+        return ByteBuffer.wrap(String.format("%016d", i).getBytes(StandardCharsets.US_ASCII));
+    }
+
+    @NotNull
+    static ByteBuffer value(final int i) {
+        return ByteBuffer.allocate(Integer.BYTES).putInt(0, i);
+    }
+
+    @NotNull
+    static DAO open(
+            @NotNull final File data,
+            @NotNull final Options options) throws IOException {
+        return new MyDAO(data, DAOFactory.MAX_HEAP, options);
+    }
+
+    /**
+     * Writes random values by keys from {@code key(0)} to {@code key(count - 1)}.
+     *
+     * @return written records
+     */
+    @NotNull
+    static SortedMap<ByteBuffer, ByteBuffer> fill(
+            @NotNull final DAO dao,
+            final int count) throws IOException {
+        final SortedMap<ByteBuffer, ByteBuffer> written = new TreeMap<>();
+        for (int i = 0; i < count; i++) {
+            final ByteBuffer value = randomValue();
+            dao.upsert(key(i), value);
+            written.put(key(i), value);
+        }
+        return written;
+    }
+
+    @NotNull
+    static SortedMap<ByteBuffer, ByteBuffer> contents(@NotNull final DAO dao) throws IOException {
+        final SortedMap<ByteBuffer, ByteBuffer> found = new TreeMap<>();
+        dao.iterator(ByteBuffer.allocate(0)).forEachRemaining(r -> found.put(r.getKey(), r.getValue()));
+        return found;
+    }
+
+    /**
+     * Checks that storage contains exactly the expected records
+     * by point lookups, by a batched lookup and by iteration in order.
+     */
+    static void assertContents(
+            @NotNull final Map<ByteBuffer, ByteBuffer> expected,
+            @NotNull final DAO dao) throws IOException {
+        for (final Map.Entry<ByteBuffer, ByteBuffer> entry : expected.entrySet()) {
+            assertEquals(entry.getValue(), dao.get(entry.getKey()));
+        }
+        assertEquals(expected, dao.getAll(expected.keySet()));
+        final List<Record> expectedRecords = new ArrayList<>(expected.size());
+        new TreeMap<>(expected).forEach((k, v) -> expectedRecords.add(Record.of(k, v)));
+        final List<Record> records = new ArrayList<>(expected.size());
+        dao.iterator(ByteBuffer.allocate(0)).forEachRemaining(records::add);
+        assertEquals(expectedRecords, records);
+    }
+
+    /**
+     * Waits until storage quarantines the table found corrupted, it is done in background.
+     */
+    static void awaitQuarantine(@NotNull final File table) throws InterruptedException {
+        final long deadline = System.currentTimeMillis() + QUARANTINE_TIMEOUT_MILLIS;
+        while (table.exists() && System.currentTimeMillis() < deadline) {
+            Thread.sleep(10);
+        }
+        assertFalse(table.exists());
+    }
 }
@@ -2,16 +2,19 @@ package ru.mail.polis;
 
 import org.jetbrains.annotations.NotNull;
 import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.function.Executable;
 import org.junit.jupiter.api.io.TempDir;
 
 import java.io.File;
 import java.io.IOException;
 import java.nio.ByteBuffer;
 import java.util.Iterator;
+import java.util.NoSuchElementException;
 import java.util.stream.Stream;
 
 import static org.junit.jupiter.api.Assertions.assertEquals;
 import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertThrows;
 
 /**
  * Generates random values with various time-to-live
@@ -24,6 +27,7 @@ class TimeToLiveTest extends TestBase {
 
     private static final int ITEMS_COUNT = 1_000_000;
     private static final long LONG_LIFE = 15_000;
+    private static final long SHORT_LIFE = 100;
     private static final int VALUE_LENGTH = 16;
 
     @NotNull
@@ -90,4 +94,35 @@ class TimeToLiveTest extends TestBase {
             assertFalse(empty.hasNext());
         }
     }
+
+    /**
+     * Writes a value within one millisecond, so its expiration
+     * time is known, and checks that it is dead at that very millisecond.
+     */
+    @Test
+    void deadAtExpirationTime(@TempDir File data) throws IOException, InterruptedException {
+        try (DAO dao = DAOFactory.create(data)) {
+            ByteBuffer key;
+            ByteBuffer value;
+            long writeTime;
+            do {
+                key = TestBase.randomKey();
+                value = randomValue();
+                writeTime = System.currentTimeMillis();
+                dao.upsert(key, value, SHORT_LIFE);
+            } while (System.currentTimeMillis() != writeTime);
+            final ByteBuffer written = key;
+            // Created in advance, since the first call of a lambda takes milliseconds
+            final Executable read = () -> dao.get(written);
+            assertEquals(value, dao.get(key));
+            final long expiry = writeTime + SHORT_LIFE;
+            // Sleep may oversleep, so the last milliseconds are waited actively
+            Thread.sleep(Math.max(0, expiry - System.currentTimeMillis() - SHORT_LIFE / 5));
+            while (System.currentTimeMillis() < expiry) {
+                Thread.onSpinWait();
+            }
+            assertThrows(NoSuchElementException.class, read);
+            assertFalse(dao.iterator(ByteBuffer.allocate(0)).hasNext());
+        }
+    }
 }
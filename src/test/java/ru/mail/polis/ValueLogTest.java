@@ -0,0 +1,137 @@
+package ru.mail.polis;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+import ru.mail.polis.rubtsov.Options;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.stream.Collectors;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/**
+ * Checks separation of large values into value log and its garbage collection.
+ *
+ * @author Nikolai Rubtsov
+ */
+class ValueLogTest extends TestBase {
+    private static final int THRESHOLD = 1024;
+    private static final int LARGE_VALUE_SIZE = 4 * 1024;
+    private static final int RECORDS = 1000;
+
+    private static final Options OPTIONS = new Options().setValueLogThreshold(THRESHOLD);
+
+    private static ByteBuffer largeValue() {
+        return randomBuffer(LARGE_VALUE_SIZE);
+    }
+
+    private static Set<String> valueLogFiles(final File data) {
+        return Arrays.stream(data.list((dir, name) -> name.endsWith(".vlog"))).collect(Collectors.toSet());
+    }
+
+    @Test
+    void largeAndSmallValues(@TempDir File data) throws IOException {
+        final Map<ByteBuffer, ByteBuffer> expected = new TreeMap<>();
+        try (DAO dao = open(data, OPTIONS)) {
+            for (int i = 0; i < RECORDS; i++) {
+                final ByteBuffer value = i % 2 == 0 ? largeValue() : randomValue();
+                dao.upsert(key(i), value);
+                expected.put(key(i), value);
+            }
+        }
+        assertFalse(valueLogFiles(data).isEmpty());
+        // Tables keep pointers instead of large values
+        final File[] tables = data.listFiles((dir, name) -> name.endsWith(".dat"));
+        long tablesSize = 0;
+        for (final File table : tables) {
+            tablesSize += table.length();
+        }
+        assertTrue(tablesSize < RECORDS / 2 * LARGE_VALUE_SIZE);
+
+        try (DAO dao = open(data, OPTIONS)) {
+            assertContents(expected, dao);
+            dao.compact();
+            assertContents(expected, dao);
+        }
+        try (DAO dao = open(data, OPTIONS)) {
+            assertContents(expected, dao);
+        }
+    }
+
+    @Test
+    void iterationDuringGarbageCollection(@TempDir File data) throws IOException {
+        final Map<ByteBuffer, ByteBuffer> expected = new TreeMap<>();
+        try (DAO dao = open(data, OPTIONS)) {
+            for (int i = 0; i < RECORDS; i++) {
+                final ByteBuffer value = largeValue();
+                dao.upsert(key(i), value);
+                expected.put(key(i), value);
+            }
+        }
+        final Set<String> oldFiles = valueLogFiles(data);
+        try (DAO dao = open(data, OPTIONS)) {
+            final Iterator<Record> records = dao.iterator(ByteBuffer.allocate(0));
+            final Map<ByteBuffer, ByteBuffer> found = new TreeMap<>();
+            final Record first = records.next();
+            found.put(first.getKey(), first.getValue());
+
+            // All the old values become dead, but the iterator still reads them
+            for (int i = 0; i < RECORDS; i++) {
+                dao.upsert(key(i), largeValue());
+            }
+            dao.compact();
+            assertTrue(valueLogFiles(data).containsAll(oldFiles));
+            records.forEachRemaining(r -> found.put(r.getKey(), r.getValue()));
+            assertEquals(expected, found);
+
+            final Set<String> files = valueLogFiles(data);
+            for (final String oldFile : oldFiles) {
+                assertFalse(files.contains(oldFile));
+            }
+        }
+    }
+
+    @Test
+    void garbageCollection(@TempDir File data) throws IOException {
+        final Map<ByteBuffer, ByteBuffer> expected = new TreeMap<>();
+        try (DAO dao = open(data, OPTIONS)) {
+            for (int i = 0; i < RECORDS; i++) {
+                final ByteBuffer value = largeValue();
+                dao.upsert(key(i), value);
+                expected.put(key(i), value);
+            }
+        }
+        final Set<String> oldFiles = valueLogFiles(data);
+        try (DAO dao = open(data, OPTIONS)) {
+            // Most of values become dead
+            for (int i = 0; i < RECORDS; i++) {
+                if (i % 4 == 0) {
+                    dao.remove(key(i));
+                    expected.remove(key(i));
+                } else if (i % 4 != 1) {
+                    final ByteBuffer value = largeValue();
+                    dao.upsert(key(i), value);
+                    expected.put(key(i), value);
+                }
+            }
+            dao.compact();
+            assertContents(expected, dao);
+        }
+        final Set<String> files = valueLogFiles(data);
+        for (final String oldFile : oldFiles) {
+            assertFalse(files.contains(oldFile));
+        }
+        try (DAO dao = open(data, OPTIONS)) {
+            assertContents(expected, dao);
+        }
+    }
+}